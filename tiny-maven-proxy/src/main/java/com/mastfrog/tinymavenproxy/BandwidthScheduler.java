@@ -0,0 +1,256 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.tinymavenproxy;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.mastfrog.acteur.server.ServerModule;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Paces how fast response bodies are read from upstream, using a token
+ * bucket for each traffic class that has a bandwidth limit, and one for
+ * all upstream traffic if there is a global limit.  A body subscriber
+ * reports the bytes it has just received and asks for more only once the
+ * scheduler says so; while the global bucket is empty, waiters are served
+ * in traffic class order, so a large jar download cannot starve POM and
+ * metadata fetches of bandwidth.  With no limits configured, subscribers
+ * read as fast as they can and only report what they got, for statistics.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class BandwidthScheduler {
+
+    private static final long MIN_BURST = 64 * 1024;
+    private static final long MIN_DELAY_NANOS = 1_000_000;
+    private final Bucket global;
+    private final Bucket[] classBuckets;
+    private final LongSupplier clock;
+    private final BiConsumer<Long, Runnable> timer;
+    // Sorted by traffic class, then arrival
+    private final List<Waiter> waiters = new ArrayList<>();
+    private final LongAdder[] bytes = new LongAdder[TrafficClass.values().length];
+    private final long[] throttledNanos = new long[TrafficClass.values().length];
+    private long pumpAt = -1;
+
+    @Inject
+    BandwidthScheduler(Config config,
+            @Named(ServerModule.BACKGROUND_THREAD_POOL_NAME) ExecutorService pool) {
+        this(config, System::nanoTime, (delay, run) -> {
+            CompletableFuture.delayedExecutor(delay, NANOSECONDS, pool).execute(run);
+        });
+    }
+
+    BandwidthScheduler(Config config, LongSupplier clock, BiConsumer<Long, Runnable> timer) {
+        this.clock = clock;
+        this.timer = timer;
+        long now = clock.getAsLong();
+        global = config.bandwidthLimit > 0 ? new Bucket(config.bandwidthLimit, now) : null;
+        classBuckets = new Bucket[TrafficClass.values().length];
+        for (TrafficClass c : TrafficClass.values()) {
+            long limit = config.bandwidthLimit(c);
+            classBuckets[c.ordinal()] = limit > 0 ? new Bucket(limit, now) : null;
+            bytes[c.ordinal()] = new LongAdder();
+        }
+    }
+
+    boolean isUnlimited(TrafficClass cls) {
+        return global == null && classBuckets[cls.ordinal()] == null;
+    }
+
+    /**
+     * Record bytes received for a class which is not being paced.
+     */
+    void account(TrafficClass cls, long count) {
+        bytes[cls.ordinal()].add(count);
+    }
+
+    /**
+     * Pay for bytes just received; the passed runnable is run - possibly
+     * synchronously - once the budget allows reading more.
+     */
+    void acquire(TrafficClass cls, long count, Runnable then) {
+        bytes[cls.ordinal()].add(count);
+        Waiter waiter = new Waiter(cls, count, then, clock.getAsLong());
+        synchronized (this) {
+            ListIterator<Waiter> it = waiters.listIterator(waiters.size());
+            while (it.hasPrevious()) {
+                if (it.previous().cls.ordinal() <= cls.ordinal()) {
+                    it.next();
+                    break;
+                }
+            }
+            it.add(waiter);
+        }
+        pump();
+    }
+
+    private void pump() {
+        List<Runnable> ready = null;
+        long delay = -1;
+        synchronized (this) {
+            long now = clock.getAsLong();
+            if (global != null) {
+                global.refill(now);
+            }
+            for (Bucket b : classBuckets) {
+                if (b != null) {
+                    b.refill(now);
+                }
+            }
+            long wait = Long.MAX_VALUE;
+            for (ListIterator<Waiter> it = waiters.listIterator(); it.hasNext();) {
+                if (global != null && global.tokens < 0) {
+                    wait = Math.min(wait, global.nanosUntilAvailable());
+                    break;
+                }
+                Waiter w = it.next();
+                Bucket b = classBuckets[w.cls.ordinal()];
+                if (b != null && b.tokens < 0) {
+                    // Its class is over budget; lower classes may go
+                    wait = Math.min(wait, b.nanosUntilAvailable());
+                    continue;
+                }
+                it.remove();
+                if (b != null) {
+                    b.take(w.count);
+                }
+                if (global != null) {
+                    global.take(w.count);
+                }
+                throttledNanos[w.cls.ordinal()] += now - w.since;
+                if (ready == null) {
+                    ready = new ArrayList<>(3);
+                }
+                ready.add(w.then);
+            }
+            if (!waiters.isEmpty() && wait != Long.MAX_VALUE) {
+                wait = Math.max(MIN_DELAY_NANOS, wait);
+                if (pumpAt < 0 || now + wait < pumpAt) {
+                    pumpAt = now + wait;
+                    delay = wait;
+                }
+            }
+        }
+        if (delay >= 0) {
+            timer.accept(delay, this::timerFired);
+        }
+        if (ready != null) {
+            for (Runnable r : ready) {
+                r.run();
+            }
+        }
+    }
+
+    private void timerFired() {
+        synchronized (this) {
+            pumpAt = -1;
+        }
+        pump();
+    }
+
+    synchronized Map<String, Object> stats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        if (global != null) {
+            result.put("limit", global.bytesPerSecond);
+        }
+        result.put("waiting", waiters.size());
+        Map<String, Object> classes = new LinkedHashMap<>();
+        for (TrafficClass c : TrafficClass.values()) {
+            Map<String, Object> m = new LinkedHashMap<>();
+            Bucket b = classBuckets[c.ordinal()];
+            if (b != null) {
+                m.put("limit", b.bytesPerSecond);
+            }
+            m.put("bytes", bytes[c.ordinal()].sum());
+            m.put("throttledMillis", throttledNanos[c.ordinal()] / 1_000_000);
+            classes.put(c.settingsName(), m);
+        }
+        result.put("classes", classes);
+        return Collections.unmodifiableMap(result);
+    }
+
+    private static final class Waiter {
+
+        final TrafficClass cls;
+        final long count;
+        final Runnable then;
+        final long since;
+
+        Waiter(TrafficClass cls, long count, Runnable then, long since) {
+            this.cls = cls;
+            this.count = count;
+            this.then = then;
+            this.since = since;
+        }
+    }
+
+    /**
+     * A token bucket which may go into debt - a chunk larger than the
+     * bucket is let through, and the next waiter pays for it.
+     */
+    static final class Bucket {
+
+        final long bytesPerSecond;
+        private final double capacity;
+        double tokens;
+        private long lastRefill;
+
+        Bucket(long bytesPerSecond, long now) {
+            this.bytesPerSecond = bytesPerSecond;
+            this.capacity = Math.max(MIN_BURST, bytesPerSecond);
+            this.tokens = capacity;
+            this.lastRefill = now;
+        }
+
+        void refill(long now) {
+            tokens = Math.min(capacity, tokens + ((now - lastRefill) * bytesPerSecond) / 1_000_000_000D);
+            lastRefill = now;
+        }
+
+        void take(long count) {
+            tokens -= count;
+        }
+
+        long nanosUntilAvailable() {
+            if (tokens >= 0) {
+                return 0;
+            }
+            return (long) Math.ceil((-tokens * 1_000_000_000D) / bytesPerSecond);
+        }
+    }
+}
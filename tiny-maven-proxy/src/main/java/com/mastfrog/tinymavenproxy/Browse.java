@@ -98,7 +98,7 @@ public class Browse extends Acteur {
             }
             return;
         }
-        File f = finder.folder(path);
+        File f = FileFinder.isPrivate(path) ? null : finder.folder(path);
         if (f == null) {
             notFound();
             return;
@@ -116,6 +116,9 @@ public class Browse extends Acteur {
                 continue;
             } else if ("maven-metadata-local.xml".equals(name)) {
                 continue;
+            } else if (name.charAt(0) == '.' && name.endsWith(".lock")) {
+                // Download locks shared with other processes
+                continue;
             }
 
             long lastModified = file.lastModified();
@@ -0,0 +1,92 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.tinymavenproxy;
+
+import com.mastfrog.bunyan.java.v2.Log;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Counts what arrives in one response body in primitive fields, so the
+ * per-chunk path allocates nothing and the download is logged once, as a
+ * summary, when it ends.  Updated only from the body subscriber, which the
+ * HTTP client calls serially.
+ *
+ * @author Tim Boudreau
+ */
+final class ChunkStats {
+
+    private long items;
+    private long buffers;
+    private long bytes;
+    private int smallestBuffer = Integer.MAX_VALUE;
+    private int largestBuffer;
+    private int maxQueued;
+    private long queuedBehindDisk;
+
+    /**
+     * Record an item received while <code>queued</code> items were
+     * waiting to be written; returns its size in bytes.
+     */
+    long received(List<ByteBuffer> item, int queued) {
+        long itemBytes = 0;
+        for (int i = 0; i < item.size(); i++) {
+            int size = item.get(i).remaining();
+            itemBytes += size;
+            if (size < smallestBuffer) {
+                smallestBuffer = size;
+            }
+            if (size > largestBuffer) {
+                largestBuffer = size;
+            }
+        }
+        items++;
+        buffers += item.size();
+        bytes += itemBytes;
+        if (queued > 0) {
+            queuedBehindDisk++;
+            if (queued > maxQueued) {
+                maxQueued = queued;
+            }
+        }
+        return itemBytes;
+    }
+
+    long bytes() {
+        return bytes;
+    }
+
+    long items() {
+        return items;
+    }
+
+    Log addTo(Log log) {
+        log.add("items", items).add("buffers", buffers).add("bytes", bytes);
+        if (buffers > 0) {
+            log.add("smallestBuffer", smallestBuffer).add("largestBuffer", largestBuffer);
+        }
+        log.add("queuedBehindDisk", queuedBehindDisk).add("maxQueued", maxQueued);
+        return log;
+    }
+}
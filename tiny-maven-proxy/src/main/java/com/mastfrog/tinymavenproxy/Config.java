@@ -41,7 +41,9 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.function.Supplier;
 import org.netbeans.validation.api.Problems;
@@ -56,7 +58,111 @@ public class Config implements Iterable<URL> {
     public static final String SETTINGS_KEY_MIRROR_URLS = "mirror";
     public static final String MAVEN_CACHE_DIR = "maven.dir";
     public static final String SETTINGS_KEY_CACHE_FAILED_PATHS_MINUTES = "failed.path.cache.minutes";
+    /**
+     * How many missing paths, per mirror, to remember at a time; this fixes
+     * the memory used for them, at two and a half bytes each.
+     */
+    public static final String SETTINGS_KEY_CACHE_FAILED_PATHS_ENTRIES = "failed.path.cache.entries";
     public static final String SETTINGS_KEY_INDEX_DIR = "index.dir";
+    public static final String SETTINGS_KEY_STREAM_THROUGH = "download.stream.through";
+    /**
+     * Bodies smaller than this many bytes are downloaded into memory, sent to
+     * clients from there, and written to the cache afterwards; 0 to
+     * disable.
+     */
+    public static final String SETTINGS_KEY_MEMORY_THRESHOLD = "download.memory.threshold";
+    public static final String SETTINGS_KEY_DOWNLOAD_STRATEGY = "download.strategy";
+    public static final String SETTINGS_KEY_MIRROR_SCORE_STALE_SECONDS = "mirror.score.stale.seconds";
+    public static final String SETTINGS_KEY_HEDGE_DELAY_MILLIS = "download.hedge.delay.millis";
+    public static final String SETTINGS_KEY_STATE_DIR = "state.dir";
+    public static final String SETTINGS_KEY_HEAD_BACKGROUND_FILL = "head.background.fill";
+    /**
+     * Maximum concurrent requests to any one mirror; may be overridden for
+     * a single mirror by appending its host name, e.g.
+     * <code>mirror.max.concurrent.repo1.maven.org=4</code>.
+     */
+    public static final String SETTINGS_KEY_MIRROR_MAX_CONCURRENT = "mirror.max.concurrent";
+    /**
+     * How many requests in a row to a mirror may fail to get any response
+     * before no more are sent to it until it answers a probe; 0 to disable.
+     */
+    public static final String SETTINGS_KEY_BREAKER_FAILURES = "mirror.breaker.failures";
+    public static final String SETTINGS_KEY_BREAKER_PROBE_SECONDS = "mirror.breaker.probe.seconds";
+    /**
+     * Cap on all upstream traffic in bytes per second, 0 for none; may be
+     * set for a single traffic class by appending its name, e.g.
+     * <code>upstream.bandwidth.limit.large=1000000</code>.
+     */
+    public static final String SETTINGS_KEY_BANDWIDTH_LIMIT = "upstream.bandwidth.limit";
+    public static final String SETTINGS_KEY_LARGE_THRESHOLD = "upstream.large.threshold";
+    /**
+     * How many times a download which fails part-way through may be resumed
+     * with a range request before giving up on it.
+     */
+    public static final String SETTINGS_KEY_RESUME_ATTEMPTS = "download.resume.attempts";
+    public static final String SETTINGS_KEY_VERIFY_CHECKSUMS = "download.verify.checksums";
+    /**
+     * How many ranges to download a file larger than
+     * <code>upstream.large.threshold</code> in at once, if the mirror
+     * supports range requests; 1 to disable.
+     */
+    public static final String SETTINGS_KEY_SEGMENTS = "download.segments";
+    /**
+     * Whether the ranges of such a file may be fetched from other mirrors
+     * than the one which sent its headers.
+     */
+    public static final String SETTINGS_KEY_SEGMENTS_ACROSS_MIRRORS = "download.segments.across.mirrors";
+    /**
+     * Whether to coordinate downloads with other proxy processes sharing the
+     * same cache directory, through lock files beside the files being
+     * downloaded, so each missing file is downloaded by only one of them.
+     */
+    public static final String SETTINGS_KEY_SHARED_LOCKS = "download.shared.locks";
+    /**
+     * How often a process waiting on another's download checks whether it
+     * has finished.
+     */
+    public static final String SETTINGS_KEY_LOCK_POLL_MILLIS = "download.lock.poll.millis";
+    /**
+     * How long a lock file may go untouched before the process which made
+     * it is presumed dead and the lock is taken over.
+     */
+    public static final String SETTINGS_KEY_LOCK_STALE_SECONDS = "download.lock.stale.seconds";
+    /**
+     * How many levels of dependencies of a POM passing through the proxy to
+     * download ahead of the client asking for them; 0 to disable.
+     */
+    public static final String SETTINGS_KEY_PREFETCH_DEPTH = "prefetch.depth";
+    public static final String SETTINGS_KEY_PREFETCH_CONCURRENCY = "prefetch.concurrency";
+    /**
+     * Whether to download the files that go with a POM a client has asked
+     * for; which files go with which packaging can be set by appending the
+     * packaging, e.g. <code>prefetch.siblings.aar=.aar</code>.
+     */
+    public static final String SETTINGS_KEY_SIBLINGS = "prefetch.siblings";
+    /**
+     * How long, in seconds, a cached file which can change upstream is
+     * served before being revalidated with a conditional GET, by kind:
+     * <code>cache.ttl.metadata</code>, <code>cache.ttl.snapshot</code> and
+     * <code>cache.ttl.release</code>; -1 for never.
+     */
+    public static final String SETTINGS_KEY_CACHE_TTL = "cache.ttl";
+    /**
+     * How many times a file which expires must be asked for between
+     * revalidations for it to be revalidated in the background before it
+     * expires, within the last <code>cache.refresh.ahead.percent</code> of
+     * its time-to-live; 0 to disable.
+     */
+    public static final String SETTINGS_KEY_REFRESH_AHEAD_HITS = "cache.refresh.ahead.hits";
+    public static final String SETTINGS_KEY_REFRESH_AHEAD_PERCENT = "cache.refresh.ahead.percent";
+    /**
+     * How long a client asking for a file being revalidated waits for
+     * upstream before being sent the stale cached copy; 0 to wait for as
+     * long as revalidation takes.
+     */
+    public static final String SETTINGS_KEY_STALE_IF_ERROR_MILLIS = "cache.stale.if.error.millis";
+    public static final String SETTINGS_KEY_STALE_RETRY_SECONDS = "cache.stale.retry.seconds";
+    private static final String DEFAULT_SIBLINGS = "jar=.jar;bundle=.jar;maven-plugin=.jar";
     private static final String DEFAULT_URLS
             = "https://repo.maven.apache.org/maven2/,"
             + "https://repo1.maven.org/maven2/,"
@@ -65,15 +171,88 @@ public class Config implements Iterable<URL> {
             + ",https://maven.atlassian.com/3rdparty/";
 
     private final URL[] urls;
+    private final int[] maxConcurrent;
+    private final int defaultMaxConcurrent;
     public final File dir;
     final File indexDir;
+    final File stateDir;
     final boolean debugLog;
     final int bufferSize;
     final int failedPathCacheMinutes;
+    final int failedPathCacheEntries;
+    final boolean streamThrough;
+    final int memoryThreshold;
+    final DownloadStrategy strategy;
+    final int mirrorScoreStaleSeconds;
+    final long hedgeDelayMillis;
+    final int breakerFailures;
+    final int breakerProbeSeconds;
+    final boolean headBackgroundFill;
+    final long bandwidthLimit;
+    final long largeThreshold;
+    final int resumeAttempts;
+    final boolean verifyChecksums;
+    final int segments;
+    final boolean segmentsAcrossMirrors;
+    final boolean sharedLocks;
+    final long lockPollMillis;
+    final int lockStaleSeconds;
+    final int prefetchDepth;
+    final int prefetchConcurrency;
+    final boolean siblings;
+    final Map<String, List<String>> siblingSuffixes = new LinkedHashMap<>();
+    private final long[] classBandwidthLimits = new long[TrafficClass.values().length];
+    final int refreshAheadHits;
+    final int refreshAheadPercent;
+    final long staleIfErrorMillis;
+    final int staleRetrySeconds;
+    private final long[] ttlSeconds = new long[Freshness.Kind.values().length];
 
     @Inject
     Config(Settings s) throws IOException {
+        streamThrough = s.getBoolean(SETTINGS_KEY_STREAM_THROUGH, true);
+        memoryThreshold = Math.max(0, s.getInt(SETTINGS_KEY_MEMORY_THRESHOLD, 64 * 1024));
+        strategy = DownloadStrategy.parse(s.getString(SETTINGS_KEY_DOWNLOAD_STRATEGY, "ranked"));
+        mirrorScoreStaleSeconds = s.getInt(SETTINGS_KEY_MIRROR_SCORE_STALE_SECONDS, 300);
+        hedgeDelayMillis = s.getLong(SETTINGS_KEY_HEDGE_DELAY_MILLIS, 1000);
+        breakerFailures = s.getInt(SETTINGS_KEY_BREAKER_FAILURES, 3);
+        breakerProbeSeconds = Math.max(1, s.getInt(SETTINGS_KEY_BREAKER_PROBE_SECONDS, 15));
+        headBackgroundFill = s.getBoolean(SETTINGS_KEY_HEAD_BACKGROUND_FILL, false);
+        bandwidthLimit = s.getLong(SETTINGS_KEY_BANDWIDTH_LIMIT, 0);
+        for (TrafficClass c : TrafficClass.values()) {
+            classBandwidthLimits[c.ordinal()] = s.getLong(SETTINGS_KEY_BANDWIDTH_LIMIT + "." + c.settingsName(), 0);
+        }
+        largeThreshold = s.getLong(SETTINGS_KEY_LARGE_THRESHOLD, 8 * 1024 * 1024);
+        resumeAttempts = Math.max(0, s.getInt(SETTINGS_KEY_RESUME_ATTEMPTS, 3));
+        verifyChecksums = s.getBoolean(SETTINGS_KEY_VERIFY_CHECKSUMS, true);
+        segments = Math.max(1, s.getInt(SETTINGS_KEY_SEGMENTS, 4));
+        segmentsAcrossMirrors = s.getBoolean(SETTINGS_KEY_SEGMENTS_ACROSS_MIRRORS, false);
+        sharedLocks = s.getBoolean(SETTINGS_KEY_SHARED_LOCKS, false);
+        lockPollMillis = Math.max(10, s.getLong(SETTINGS_KEY_LOCK_POLL_MILLIS, 250));
+        lockStaleSeconds = Math.max(3, s.getInt(SETTINGS_KEY_LOCK_STALE_SECONDS, 30));
+        prefetchDepth = Math.max(0, s.getInt(SETTINGS_KEY_PREFETCH_DEPTH, 2));
+        prefetchConcurrency = Math.max(1, s.getInt(SETTINGS_KEY_PREFETCH_CONCURRENCY, 4));
+        siblings = s.getBoolean(SETTINGS_KEY_SIBLINGS, true);
+        for (String rule : DEFAULT_SIBLINGS.split(";")) {
+            String[] parts = rule.split("=");
+            siblingSuffixes.put(parts[0], suffixes(parts[1]));
+        }
+        String siblingPrefix = SETTINGS_KEY_SIBLINGS + ".";
+        for (String key : s) {
+            if (key.startsWith(siblingPrefix) && key.length() > siblingPrefix.length()) {
+                siblingSuffixes.put(key.substring(siblingPrefix.length()), suffixes(s.getString(key, "")));
+            }
+        }
+        for (Freshness.Kind kind : Freshness.Kind.values()) {
+            ttlSeconds[kind.ordinal()] = s.getLong(SETTINGS_KEY_CACHE_TTL + "." + kind.settingsName(),
+                    kind == Freshness.Kind.RELEASE ? -1 : 300);
+        }
+        refreshAheadHits = Math.max(0, s.getInt(SETTINGS_KEY_REFRESH_AHEAD_HITS, 3));
+        refreshAheadPercent = Math.max(1, Math.min(100, s.getInt(SETTINGS_KEY_REFRESH_AHEAD_PERCENT, 20)));
+        staleIfErrorMillis = Math.max(0, s.getLong(SETTINGS_KEY_STALE_IF_ERROR_MILLIS, 3000));
+        staleRetrySeconds = s.getInt(SETTINGS_KEY_STALE_RETRY_SECONDS, 30);
         failedPathCacheMinutes = s.getInt(SETTINGS_KEY_CACHE_FAILED_PATHS_MINUTES, 90);
+        failedPathCacheEntries = s.getInt(SETTINGS_KEY_CACHE_FAILED_PATHS_ENTRIES, 100_000);
         bufferSize = s.getInt(SETTINGS_KEY_DOWNLOAD_CHUNK_SIZE, 1480);
         debugLog = s.getBoolean("maven.proxy.debug", false);
         String[] u = s.getString(SETTINGS_KEY_MIRROR_URLS, DEFAULT_URLS).split(",");
@@ -97,6 +276,15 @@ public class Config implements Iterable<URL> {
             throw new ConfigurationError("No urls to proxy");
         }
         this.urls = urls.toArray(URL[]::new);
+        defaultMaxConcurrent = s.getInt(SETTINGS_KEY_MIRROR_MAX_CONCURRENT, 8);
+        if (defaultMaxConcurrent < 1) {
+            throw new ConfigurationError(SETTINGS_KEY_MIRROR_MAX_CONCURRENT + " must be > 0");
+        }
+        maxConcurrent = new int[this.urls.length];
+        for (int i = 0; i < this.urls.length; i++) {
+            String key = SETTINGS_KEY_MIRROR_MAX_CONCURRENT + "." + this.urls[i].getHost();
+            maxConcurrent[i] = Math.max(1, s.getInt(key, defaultMaxConcurrent));
+        }
         debugLog("START WITH URLS ", () -> new Object[]{Strings.commas(this.urls)});
         String dirname = s.getString(MAVEN_CACHE_DIR);
         if (dirname == null) {
@@ -131,6 +319,17 @@ public class Config implements Iterable<URL> {
                 throw new ConfigurationError("Could not create index dirs " + this.indexDir);
             }
         }
+        // Neither served nor listed - see FileFinder.isPrivate()
+        String stateDir = s.getString(SETTINGS_KEY_STATE_DIR, "_");
+        if ("_".equals(stateDir)) {
+            stateDir = new File(dir, "_state").getAbsolutePath();
+        }
+        this.stateDir = new File(stateDir);
+        if (!this.stateDir.exists()) {
+            if (!this.stateDir.mkdirs()) {
+                throw new ConfigurationError("Could not create state dir " + this.stateDir);
+            }
+        }
     }
 
     @JsonProperty("mirroring")
@@ -154,15 +353,46 @@ public class Config implements Iterable<URL> {
     public Collection<URL> withPath(Path path) {
         List<URL> result = new ArrayList(urls.length);
         for (URL u : this) {
-            URLBuilder b = URL.builder(u);
-            for (PathElement p : path) {
-                b.add(p);
+            result.add(withPath(u, path));
+        }
+        return result;
+    }
+
+    static URL withPath(URL mirror, Path path) {
+        URLBuilder b = URL.builder(mirror);
+        for (PathElement p : path) {
+            b.add(p);
+        }
+        return b.create();
+    }
+
+    private static List<String> suffixes(String value) {
+        List<String> result = new ArrayList<>();
+        for (String suffix : value.split(",")) {
+            if (!suffix.trim().isEmpty()) {
+                result.add(suffix.trim());
             }
-            result.add(b.create());
         }
         return result;
     }
 
+    long bandwidthLimit(TrafficClass cls) {
+        return classBandwidthLimits[cls.ordinal()];
+    }
+
+    long ttlSeconds(Freshness.Kind kind) {
+        return ttlSeconds[kind.ordinal()];
+    }
+
+    int maxConcurrent(URL mirror) {
+        for (int i = 0; i < urls.length; i++) {
+            if (urls[i].equals(mirror)) {
+                return maxConcurrent[i];
+            }
+        }
+        return defaultMaxConcurrent;
+    }
+
     @Override
     public Iterator<URL> iterator() {
         return Arrays.asList(urls).iterator();
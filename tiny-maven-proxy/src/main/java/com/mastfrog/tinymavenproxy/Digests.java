@@ -0,0 +1,136 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.tinymavenproxy;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Digests of a file computed as it is written, so verifying it never
+ * requires reading it again.
+ *
+ * @author Tim Boudreau
+ */
+final class Digests {
+
+    private final Map<Kind, MessageDigest> digests = new EnumMap<>(Kind.class);
+    // The same digests, for the per-chunk path, which should not allocate
+    // an iterator per call
+    private final MessageDigest[] all;
+    private Map<Kind, String> finished;
+
+    Digests() {
+        for (Kind kind : Kind.values()) {
+            digests.put(kind, kind.newDigest());
+        }
+        all = digests.values().toArray(new MessageDigest[0]);
+    }
+
+    /**
+     * Add the remaining bytes of a buffer, leaving its position unchanged.
+     */
+    void update(ByteBuffer buf) {
+        int pos = buf.position();
+        for (int i = 0; i < all.length; i++) {
+            buf.position(pos);
+            all[i].update(buf);
+        }
+        buf.position(pos);
+    }
+
+    /**
+     * Get the lower-case hex digest of everything added; once called, no
+     * more may be added.
+     */
+    synchronized String hex(Kind kind) {
+        if (finished == null) {
+            finished = new EnumMap<>(Kind.class);
+            digests.forEach((k, digest) -> finished.put(k, toHex(digest.digest())));
+        }
+        return finished.get(kind);
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16))
+                    .append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Get the digest from the contents of a checksum file, which may be
+     * followed by a file name, or null if it does not look like one - an
+     * HTML error page served with a 200, for example.
+     */
+    static String parseSidecar(String body, Kind kind) {
+        String trimmed = body.trim();
+        int end = 0;
+        while (end < trimmed.length() && !Character.isWhitespace(trimmed.charAt(end))) {
+            end++;
+        }
+        if (end != kind.hexLength) {
+            return null;
+        }
+        for (int i = 0; i < end; i++) {
+            if (Character.digit(trimmed.charAt(i), 16) < 0) {
+                return null;
+            }
+        }
+        return trimmed.substring(0, end).toLowerCase();
+    }
+
+    /**
+     * The checksums Maven repositories publish alongside files, by the
+     * extension of the file they are published in.
+     */
+    enum Kind {
+        MD5("MD5", "md5", 32),
+        SHA1("SHA-1", "sha1", 40),
+        SHA256("SHA-256", "sha256", 64),
+        SHA512("SHA-512", "sha512", 128);
+        final String algorithm;
+        final String extension;
+        final int hexLength;
+
+        Kind(String algorithm, String extension, int hexLength) {
+            this.algorithm = algorithm;
+            this.extension = extension;
+            this.hexLength = hexLength;
+        }
+
+        MessageDigest newDigest() {
+            try {
+                return MessageDigest.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException ex) {
+                // Every JDK is required to have these
+                throw new IllegalStateException(ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.tinymavenproxy;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.mastfrog.acteur.server.ServerModule;
+import com.mastfrog.function.throwing.ThrowingRunnable;
+import com.mastfrog.shutdown.hooks.ShutdownHooks;
+import com.mastfrog.url.Path;
+import java.io.IOException;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.WRITE;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock files which let several proxy processes sharing one cache directory
+ * download each missing file once between them.  A process about to
+ * download a path creates <code>.name.lock</code> beside where the file
+ * will go; creating it fails if another process already has, in which case
+ * this one polls until the file appears in the cache - or the lock goes
+ * away without it, and it tries to take the lock itself.  The holder
+ * touches its lock files as it goes, so one left behind by a process which
+ * died is recognized by its age and taken over.
+ * <p>
+ * Two processes which notice the same stale lock at the same moment may
+ * both end up downloading the file; that costs bandwidth, not correctness,
+ * since files are moved into the cache atomically.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class DownloadLocks implements ThrowingRunnable {
+
+    private static final String SUFFIX = ".lock";
+    private final java.nio.file.Path root;
+    private final String owner;
+    private final long pollMillis;
+    private final long staleMillis;
+    private final Executor pool;
+    private final Set<Lock> held = ConcurrentHashMap.newKeySet();
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder waits = new LongAdder();
+    private final LongAdder servedByOthers = new LongAdder();
+    private final LongAdder takenOver = new LongAdder();
+
+    @Inject
+    DownloadLocks(Config config, @Named("runId") String runId, ShutdownHooks onShutdown,
+            @Named(ServerModule.BACKGROUND_THREAD_POOL_NAME) ExecutorService pool) {
+        this(config.dir.toPath(), runId, config.lockPollMillis,
+                SECONDS.toMillis(config.lockStaleSeconds), pool);
+        onShutdown.addLastThrowing(this);
+    }
+
+    DownloadLocks(java.nio.file.Path root, String owner, long pollMillis, long staleMillis, Executor pool) {
+        this.root = root;
+        this.owner = owner;
+        this.pollMillis = pollMillis;
+        this.staleMillis = staleMillis;
+        this.pool = pool;
+    }
+
+    /**
+     * Lock a path for downloading it into the cache.  The returned future
+     * completes with the lock once this process holds it, or with null if
+     * the file is in the cache by then - put there by whichever process
+     * held the lock before.  Cancelling it stops waiting.
+     */
+    CompletableFuture<Lock> acquire(Path path) {
+        CompletableFuture<Lock> result = new CompletableFuture<>();
+        tryAcquire(root.resolve(path.toString()), result, false);
+        return result;
+    }
+
+    private void tryAcquire(java.nio.file.Path target, CompletableFuture<Lock> result, boolean waiting) {
+        if (result.isDone()) {
+            return;
+        }
+        java.nio.file.Path lockFile = target.resolveSibling("." + target.getFileName() + SUFFIX);
+        try {
+            if (Files.exists(target)) {
+                if (waiting) {
+                    servedByOthers.increment();
+                }
+                result.complete(null);
+                return;
+            }
+            Files.createDirectories(lockFile.getParent());
+            try {
+                Files.write(lockFile, owner.getBytes(UTF_8), CREATE_NEW, WRITE);
+            } catch (FileAlreadyExistsException ex) {
+                if (!waiting) {
+                    waits.increment();
+                }
+                if (isStale(lockFile)) {
+                    removeStale(lockFile);
+                    tryAcquire(target, result, true);
+                } else {
+                    CompletableFuture.delayedExecutor(pollMillis, MILLISECONDS, pool)
+                            .execute(() -> tryAcquire(target, result, true));
+                }
+                return;
+            }
+            if (Files.exists(target)) {
+                // Finished by another process between the check and the lock
+                Files.deleteIfExists(lockFile);
+                servedByOthers.increment();
+                result.complete(null);
+                return;
+            }
+            Lock lock = new Lock(lockFile);
+            held.add(lock);
+            if (result.complete(lock)) {
+                acquired.increment();
+                lock.heartbeat();
+            } else {
+                lock.release();
+            }
+        } catch (IOException ex) {
+            result.completeExceptionally(ex);
+        }
+    }
+
+    private boolean isStale(java.nio.file.Path lockFile) throws IOException {
+        try {
+            return System.currentTimeMillis()
+                    - Files.getLastModifiedTime(lockFile).toMillis() > staleMillis;
+        } catch (NoSuchFileException ex) {
+            // Released while we looked - try again at once
+            return true;
+        }
+    }
+
+    private void removeStale(java.nio.file.Path lockFile) throws IOException {
+        // Renaming it first means only one of several processes which
+        // noticed it removes it, rather than one removing another's new lock
+        java.nio.file.Path moved = lockFile.resolveSibling(lockFile.getFileName() + "." + owner);
+        try {
+            Files.move(lockFile, moved, ATOMIC_MOVE);
+            Files.deleteIfExists(moved);
+            takenOver.increment();
+        } catch (NoSuchFileException ex) {
+            // Released or taken over by someone else
+        } catch (AtomicMoveNotSupportedException ex) {
+            if (Files.deleteIfExists(lockFile)) {
+                takenOver.increment();
+            }
+        }
+    }
+
+    Map<String, Object> stats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("held", held.size());
+        result.put("acquired", acquired.sum());
+        result.put("waits", waits.sum());
+        result.put("servedByOthers", servedByOthers.sum());
+        result.put("takenOver", takenOver.sum());
+        return result;
+    }
+
+    @Override
+    public void run() {
+        // Let other processes have our locks now rather than once they go stale
+        for (Lock lock : new ArrayList<>(held)) {
+            lock.release();
+        }
+    }
+
+    /**
+     * A lock held by this process, until released.
+     */
+    final class Lock {
+
+        private final java.nio.file.Path file;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        Lock(java.nio.file.Path file) {
+            this.file = file;
+        }
+
+        private void heartbeat() {
+            CompletableFuture.delayedExecutor(Math.max(1, staleMillis / 3), MILLISECONDS, pool).execute(() -> {
+                if (released.get()) {
+                    return;
+                }
+                try {
+                    Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+                    heartbeat();
+                } catch (IOException ex) {
+                    // Taken over - we were presumed dead
+                }
+            });
+        }
+
+        void release() {
+            if (released.compareAndSet(false, true)) {
+                held.remove(this);
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException ex) {
+                    // Other processes will take it over once it is stale
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return file.toString();
+        }
+    }
+}
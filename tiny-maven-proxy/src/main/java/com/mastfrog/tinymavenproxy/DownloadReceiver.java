@@ -23,6 +23,7 @@
  */
 package com.mastfrog.tinymavenproxy;
 
+import com.mastfrog.tinymavenproxy.TempFiles.TempFile;
 import io.netty.buffer.ByteBuf;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpResponseStatus;
@@ -38,6 +39,10 @@ interface DownloadReceiver {
 
     void receive(HttpResponseStatus status, File file, HttpHeaders headers);
 
+    void streaming(HttpResponseStatus status, TempFile file, HttpHeaders headers);
+
+    void probed(HttpResponseStatus status, HttpHeaders headers);
+
     void failed(HttpResponseStatus status);
 
     void failed(HttpResponseStatus status, String msg);
@@ -23,6 +23,7 @@
  */
 package com.mastfrog.tinymavenproxy;
 
+import com.mastfrog.tinymavenproxy.TempFiles.TempFile;
 import io.netty.buffer.ByteBuf;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpResponseStatus;
@@ -38,6 +39,8 @@ class DownloadResult {
     ByteBuf buf;
     HttpHeaders headers;
     File file;
+    TempFile stream;
+    boolean headersOnly;
 
     DownloadResult(HttpResponseStatus status, File file, HttpHeaders headers) {
         this.file = file;
@@ -45,6 +48,19 @@ class DownloadResult {
         this.headers = headers;
     }
 
+    DownloadResult(HttpResponseStatus status, TempFile stream, HttpHeaders headers) {
+        this.stream = stream;
+        this.status = status;
+        this.headers = headers;
+    }
+
+    DownloadResult(HttpResponseStatus status, HttpHeaders headers) {
+        // Upstream was probed for a HEAD request; there is no body
+        this.status = status;
+        this.headers = headers;
+        this.headersOnly = true;
+    }
+
     DownloadResult(HttpResponseStatus status, ByteBuf message) {
         this(status, message, null);
     }
@@ -72,6 +88,12 @@ class DownloadResult {
         if (buf != null) {
             sb.append(" bytes=").append(buf.readableBytes());
         }
+        if (stream != null) {
+            sb.append(" streaming=").append(stream.path());
+        }
+        if (headersOnly) {
+            sb.append(" headers-only");
+        }
         return sb.toString();
     }
 
@@ -79,8 +101,16 @@ class DownloadResult {
         return this.file != null;
     }
 
+    boolean isStream() {
+        return this.stream != null;
+    }
+
+    boolean isHeadersOnly() {
+        return headersOnly;
+    }
+
     boolean isFail() {
-        return status.code() > 399 || (buf == null && file == null);
+        return status.code() > 399 || (!headersOnly && buf == null && file == null && stream == null);
     }
 
 }
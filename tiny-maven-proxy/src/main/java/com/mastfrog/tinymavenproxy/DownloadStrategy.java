@@ -0,0 +1,59 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.tinymavenproxy;
+
+import com.mastfrog.util.preconditions.ConfigurationError;
+
+/**
+ * How a cache miss is fetched from the configured mirrors.
+ *
+ * @author Tim Boudreau
+ */
+enum DownloadStrategy {
+    /**
+     * Request from every mirror at once, take the first success and cancel
+     * the rest.
+     */
+    RACE,
+    /**
+     * Request from the best-scoring mirror, falling back to the next best
+     * on failure.
+     */
+    RANKED,
+    /**
+     * Like RANKED, but if a mirror has not sent response headers within its
+     * recent 95th percentile header latency, also request from the next
+     * one, and keep whichever responds first.
+     */
+    HEDGED;
+
+    static DownloadStrategy parse(String value) {
+        for (DownloadStrategy s : values()) {
+            if (s.name().equalsIgnoreCase(value.trim())) {
+                return s;
+            }
+        }
+        throw new ConfigurationError("Unknown download strategy '" + value + "'");
+    }
+}
@@ -26,6 +26,7 @@ package com.mastfrog.tinymavenproxy;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.inject.Inject;
+import com.google.inject.Singleton;
 import com.google.inject.name.Named;
 import com.mastfrog.acteur.errors.ResponseException;
 import com.mastfrog.acteur.headers.Headers;
@@ -40,34 +41,56 @@ import static com.mastfrog.tinymavenproxy.TinyMavenProxy.DOWNLOAD_LOGGER;
 import com.mastfrog.url.Path;
 import com.mastfrog.url.URL;
 import com.mastfrog.util.libversion.VersionInfo;
+import com.mastfrog.util.time.TimeUtil;
+import io.netty.buffer.ByteBuf;
 import io.netty.handler.codec.http.DefaultHttpHeaders;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import static io.netty.handler.codec.http.HttpResponseStatus.GONE;
 import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpResponseStatus.SERVICE_UNAVAILABLE;
 import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
 import java.net.http.HttpResponse;
 import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.BodyHandlers;
 import java.net.http.HttpResponse.BodySubscriber;
+import java.net.http.HttpResponse.BodySubscribers;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.time.Duration;
-import java.time.ZoneId;
-import java.time.ZonedDateTime;
+import java.time.ZoneOffset;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Flow;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import java.util.concurrent.TimeUnit;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -75,204 +98,1968 @@ import java.util.logging.Logger;
  *
  * @author Tim Boudreau
  */
+@Singleton
 public class DownloaderV2A {
 
-    private final HttpClient client;
+    private final MirrorBulkheads bulkheads;
     private final Config config;
     private final FileFinder finder;
-    private final Cache<Path, Path> failedURLs;
+    private final NegativeCache negatives;
+    private final MirrorBreakers breakers;
+    private final Freshness freshness;
     private final Logs logger;
     private final ApplicationControl control;
+    private final DownloadLocks locks;
 
     static final AtomicLong counter = new AtomicLong();
     private final TempFiles tempFiles;
     private final String runId;
     private final String userAgent;
     private final ExecutorService pool;
+    private final Map<Path, SharedDownload> inFlight = new ConcurrentHashMap<>();
+    // In-flight downloads no client has asked for yet
+    private final Set<Path> prefetching = ConcurrentHashMap.newKeySet();
+    private final Map<Path, CompletableFuture<Revalidated>> revalidating = new ConcurrentHashMap<>();
+    // Paths whose revalidation failed and is being retried, by attempts made
+    private final Map<Path, Integer> staleRetries = new ConcurrentHashMap<>();
+    // Revalidations no client is waiting on
+    private final Set<Path> refreshing = ConcurrentHashMap.newKeySet();
+    private final Prefetcher prefetcher;
+    private final MirrorScores scores;
+    private final MirrorRoutes routes;
+    private final BandwidthScheduler bandwidth;
+    private final LongAdder hedgedDownloads = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+    private final LongAdder resumes = new LongAdder();
+    private final LongAdder verified = new LongAdder();
+    private final LongAdder unverified = new LongAdder();
+    private final LongAdder checksumMismatches = new LongAdder();
+    private final LongAdder notModified = new LongAdder();
+    private final LongAdder modified = new LongAdder();
+    private final LongAdder revalidationFailures = new LongAdder();
+    private final LongAdder servedStale = new LongAdder();
+    // Mirrors whose gzipped responses could not be read
+    private final Cache<URL, Boolean> gzipBroken = CacheBuilder.newBuilder()
+            .expireAfterWrite(1, TimeUnit.HOURS).build();
+    private final LongAdder gzipDownloads = new LongAdder();
+    private final LongAdder segmentedDownloads = new LongAdder();
+    private final LongAdder inMemoryDownloads = new LongAdder();
+    private final LongAdder segmentRetries = new LongAdder();
+    private final LongAdder gzipBytes = new LongAdder();
+    private final LongAdder gzipInflatedBytes = new LongAdder();
+    // The order sidecar checksums are asked for in - nearly every repository
+    // publishes SHA-1
+    private static final Digests.Kind[] SIDECARS = {Digests.Kind.SHA1, Digests.Kind.SHA256};
+    private static final String QUARANTINE_DIR = "quarantine";
+    private static final int MAX_STALE_RETRIES = 10;
+    private static final long MIN_SEGMENT_BYTES = 1024 * 1024;
+    private static final String WARNING = "Warning";
 
     @Inject
-    public DownloaderV2A(HttpClient client, Config config, FileFinder finder,
+    public DownloaderV2A(MirrorBulkheads bulkheads, Config config, FileFinder finder,
             @Named(DOWNLOAD_LOGGER) Logs logger, ApplicationControl control,
             @Named("runId") String runId, TempFiles tempFiles, VersionInfo ver,
-            @Named(ServerModule.BACKGROUND_THREAD_POOL_NAME) ExecutorService pool) {
+            @Named(ServerModule.BACKGROUND_THREAD_POOL_NAME) ExecutorService pool,
+            MirrorScores scores, MirrorRoutes routes, BandwidthScheduler bandwidth,
+            Prefetcher prefetcher, NegativeCache negatives, MirrorBreakers breakers,
+            Freshness freshness, DownloadLocks locks) {
         this.pool = pool;
-        failedURLs = CacheBuilder.newBuilder().expireAfterWrite(config.failedPathCacheMinutes, TimeUnit.MINUTES).build();
-        this.client = client;
+        this.locks = locks;
+        this.freshness = freshness;
+        this.breakers = breakers;
+        this.negatives = negatives;
+        this.prefetcher = prefetcher;
+        this.scores = scores;
+        this.routes = routes;
+        this.bandwidth = bandwidth;
+        this.bulkheads = bulkheads;
         this.config = config;
         this.finder = finder;
         this.logger = logger.child("rid", runId);
         this.control = control;
         this.runId = runId;
         this.tempFiles = tempFiles;
-        userAgent = "tmpx-" + ver.version;
+        userAgent = userAgent(ver);
+    }
+
+    /**
+     * The User-Agent sent with every request to a mirror.
+     */
+    static String userAgent(VersionInfo ver) {
+        return "tmpx-" + ver.version;
     }
 
     String nextDownloadId() {
         return runId + Long.toString(counter.getAndIncrement(), 36);
     }
 
-    public boolean isFailedPath(Path path) {
-        return failedURLs.getIfPresent(path) != null;
-    }
+    Map<String, Object> stats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("inFlight", inFlight.size());
+        long downloads = hedgedDownloads.sum();
+        long hedged = hedges.sum();
+        long won = hedgeWins.sum();
+        Map<String, Object> hedging = new LinkedHashMap<>();
+        hedging.put("downloads", downloads);
+        hedging.put("hedges", hedged);
+        hedging.put("hedgeWins", won);
+        hedging.put("hedgeRate", downloads == 0 ? 0D : (double) hedged / downloads);
+        hedging.put("hedgeWinRate", hedged == 0 ? 0D : (double) won / hedged);
+        result.put("hedging", hedging);
+        result.put("routes", routes.size());
+        result.put("resumes", resumes.sum());
+        Map<String, Object> checksums = new LinkedHashMap<>();
+        checksums.put("verified", verified.sum());
+        checksums.put("unverified", unverified.sum());
+        checksums.put("mismatches", checksumMismatches.sum());
+        result.put("checksums", checksums);
+        Map<String, Object> revalidations = new LinkedHashMap<>();
+        revalidations.put("inFlight", revalidating.size());
+        revalidations.put("notModified", notModified.sum());
+        revalidations.put("modified", modified.sum());
+        revalidations.put("failed", revalidationFailures.sum());
+        revalidations.put("servedStale", servedStale.sum());
+        revalidations.put("retrying", staleRetries.size());
+        result.put("revalidations", revalidations);
+        long wire = gzipBytes.sum();
+        long inflated = gzipInflatedBytes.sum();
+        Map<String, Object> compression = new LinkedHashMap<>();
+        compression.put("downloads", gzipDownloads.sum());
+        compression.put("bytes", wire);
+        compression.put("inflatedBytes", inflated);
+        compression.put("ratio", wire == 0 ? 0D : (double) inflated / wire);
+        result.put("compression", compression);
+        Map<String, Object> segmented = new LinkedHashMap<>();
+        segmented.put("downloads", segmentedDownloads.sum());
+        segmented.put("retries", segmentRetries.sum());
+        result.put("segmented", segmented);
+        result.put("inMemory", inMemoryDownloads.sum());
+        if (config.sharedLocks) {
+            result.put("locks", locks.stats());
+        }
+        return result;
+    }
+
+    public boolean isFailedPath(Path path) {
+        return negatives.isFailed(path.normalize().elideEmptyElements());
+    }
+
+    /**
+     * The mirrors to try for a path, in order, leaving out those known not
+     * to have it and those whose circuit breakers are open.
+     */
+    private List<URL> candidates(Path path) {
+        return routes.prefer(path, breakers.filter(negatives.filter(path, scores.rank())));
+    }
+
+    private static boolean isNotFound(int status) {
+        return status == 404 || status == 410;
+    }
+
+    CompletableFuture<TempFile> download(Path path, RequestID rid, DownloadReceiver recv) throws URISyntaxException {
+        // Only one of streaming or completion may resume the request
+        AtomicBoolean responded = new AtomicBoolean();
+        CompletableFuture<TempFile> tf = join(path, rid, streaming -> {
+            if (responded.compareAndSet(false, true)) {
+                recv.streaming(statusOf(streaming), streaming, nettyHeaders(streaming));
+            }
+        });
+        tf.whenComplete((file, thrown) -> {
+            if (!responded.compareAndSet(false, true)) {
+                return;
+            }
+            // A new reference, if the file is still in memory
+            ByteBuf content = file == null ? null : file.content().orElse(null);
+            if (thrown instanceof CancellationException) {
+                // Our client went away; if other clients are waiting on the
+                // same path, the download carries on without us, and either
+                // way it does not mean the path is bad
+                recv.failed(GONE, "Cancelled");
+            } else if (thrown instanceof MirrorBreakers.CircuitOpenException) {
+                recv.failed(SERVICE_UNAVAILABLE, thrown.getMessage());
+            } else if (thrown != null) {
+                recv.failed(GONE, thrown.getMessage());
+            } else if (content != null) {
+                recv.receive(statusOf(file), content, nettyHeaders(file));
+            } else if (file != null && file.path().toFile().isFile()) {
+                recv.receive(statusOf(file), file.path().toFile(), nettyHeaders(file));
+            } else {
+                // Downloaded by another process sharing the cache, or kept
+                // in memory and let go of - cached, or failing to be - before
+                // we got to it
+                File cached = finder.find(path);
+                if (cached != null) {
+                    recv.receive(OK, cached, new DefaultHttpHeaders(false));
+                } else {
+                    recv.failed(GONE, "No result " + path);
+                }
+            }
+        });
+        return tf;
+    }
+
+    /**
+     * Serve a cached file whose time-to-live has passed, after checking it
+     * against upstream with a conditional GET, to the mirror it came from
+     * first and then to the others: if it has changed, the new version
+     * replaces it in the cache and is served; if not, the cached file is.
+     * If every mirror fails, or none has answered by the stale-if-error
+     * deadline, the cached file is served at once with a Warning header,
+     * and revalidation is retried in the background.  Concurrent requests
+     * for the same path share one revalidation.
+     */
+    CompletableFuture<Revalidated> revalidate(Path path, File cached, RequestID rid, DownloadReceiver recv) {
+        Path key = path.normalize().elideEmptyElements();
+        CompletableFuture<Revalidated> result;
+        if (staleRetries.containsKey(key)) {
+            // Upstream failed last time and is being retried - don't wait on it
+            result = CompletableFuture.completedFuture(Revalidated.FAILED);
+        } else {
+            CompletableFuture<Revalidated> shared = revalidation(key, cached,
+                    logger.child("req", rid).child("revalidate", true), false);
+            result = shared.copy();
+            if (config.staleIfErrorMillis > 0) {
+                result.completeOnTimeout(Revalidated.TIMED_OUT, config.staleIfErrorMillis, MILLISECONDS);
+            }
+        }
+        result.whenComplete((outcome, thrown) -> {
+            if (thrown instanceof CancellationException) {
+                recv.failed(GONE, "Cancelled");
+            } else if (thrown != null) {
+                recv.failed(GONE, thrown.getMessage());
+            } else {
+                HttpHeaders headers = new DefaultHttpHeaders(false);
+                headers.add(LAST_MODIFIED, Headers.LAST_MODIFIED.toCharSequence(
+                        TimeUtil.fromUnixTimestamp(cached.lastModified()).withZoneSameInstant(ZoneOffset.UTC)));
+                if (outcome.warning != null) {
+                    servedStale.increment();
+                    headers.add(WARNING, outcome.warning);
+                }
+                recv.receive(OK, cached, headers);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Revalidate a cached file no client is waiting on, behind all other
+     * upstream traffic, unless it is being revalidated already.
+     */
+    CompletableFuture<Revalidated> refresh(Path path, File cached) {
+        Path key = path.normalize().elideEmptyElements();
+        return revalidation(key, cached, logger.child("refresh", true), true);
+    }
+
+    /**
+     * Get the revalidation of a path in progress, starting one if there is
+     * none.  Its future is in the map before it starts, since it can
+     * complete - and remove itself - before starting returns.
+     */
+    private CompletableFuture<Revalidated> revalidation(Path key, File cached, Logs requestLog, boolean refresh) {
+        CompletableFuture<Revalidated> created = new CompletableFuture<>();
+        CompletableFuture<Revalidated> existing = revalidating.putIfAbsent(key, created);
+        if (existing != null) {
+            return existing;
+        }
+        if (refresh) {
+            refreshing.add(key);
+            created.whenComplete((outcome, thrown) -> refreshing.remove(key));
+        }
+        startRevalidation(key, cached, requestLog, created);
+        return created;
+    }
+
+    private void startRevalidation(Path path, File cached, Logs requestLog, CompletableFuture<Revalidated> result) {
+        result.whenComplete((outcome, thrown) -> {
+            revalidating.remove(path, result);
+            if (outcome == Revalidated.FAILED) {
+                retryLater(path, cached);
+            } else {
+                staleRetries.remove(path);
+            }
+        });
+        Freshness.Validators validators = freshness.validators(path, cached);
+        revalidateNext(path, cached, validators, revalidationMirrors(path, validators).iterator(),
+                result, requestLog, null);
+    }
+
+    private void revalidateNext(Path path, File cached, Freshness.Validators validators, Iterator<URL> mirrors,
+            CompletableFuture<Revalidated> result, Logs requestLog, Throwable lastFailure) {
+        if (!mirrors.hasNext()) {
+            revalidationFailures.increment();
+            Log l = requestLog.warn("revalidation-failed").add("path", path.toString());
+            if (lastFailure != null && !(lastFailure instanceof CancellationException)) {
+                l.add(lastFailure);
+            }
+            l.close();
+            result.complete(Revalidated.FAILED);
+            return;
+        }
+        URL mirror = mirrors.next();
+        // An ETag is only meaningful to the mirror which sent it
+        Freshness.Validators forMirror = validators.forMirror(mirror.toString(), cached);
+        CompletableFuture<TempFile> fut = new CompletableFuture<>();
+        CompletableFuture<TempFile> committed = new CompletableFuture<>();
+        fut.whenComplete((file, thrown) -> {
+            if (file != null) {
+                commit(path, mirror, file, committed, requestLog);
+            } else {
+                committed.completeExceptionally(thrown);
+            }
+        });
+        committed.whenComplete((file, thrown) -> {
+            if (file != null) {
+                modified.increment();
+                result.complete(Revalidated.CURRENT);
+            } else if (thrown instanceof NotModifiedException) {
+                notModified.increment();
+                try {
+                    freshness.validated(path, mirror.toString(), ((NotModifiedException) thrown).headers, forMirror);
+                } catch (IOException ex) {
+                    requestLog.warn("record-validators").add(ex).close();
+                }
+                result.complete(Revalidated.CURRENT);
+            } else {
+                revalidateNext(path, cached, validators, mirrors, result, requestLog, thrown);
+            }
+        });
+        try {
+            attempt(mirror, path, requestLog, fut, null, forMirror);
+        } catch (URISyntaxException ex) {
+            fut.completeExceptionally(ex);
+        }
+    }
+
+    /**
+     * Retry a failed revalidation in the background, backing off, until it
+     * succeeds or enough attempts have failed that the next client request
+     * may as well try again itself.
+     */
+    private void retryLater(Path path, File cached) {
+        int attempts = staleRetries.merge(path, 1, Integer::sum);
+        if (attempts > MAX_STALE_RETRIES || config.staleRetrySeconds <= 0) {
+            staleRetries.remove(path);
+            return;
+        }
+        CompletableFuture.delayedExecutor(config.staleRetrySeconds * attempts, SECONDS, pool)
+                .execute(() -> refresh(path, cached));
+    }
+
+    /**
+     * The mirrors to revalidate a cached file with: the one it came from, if
+     * it is still configured and answering, and then the others.
+     */
+    private List<URL> revalidationMirrors(Path path, Freshness.Validators validators) {
+        List<URL> result = new ArrayList<>(candidates(path));
+        if (validators.mirror != null) {
+            for (URL url : config) {
+                if (url.toString().equals(validators.mirror) && !breakers.isOpen(url)) {
+                    result.remove(url);
+                    result.add(0, url);
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * How a revalidation ended, and the Warning header to serve the cached
+     * file with if it could not be revalidated.
+     */
+    enum Revalidated {
+        CURRENT(null),
+        FAILED("111 - \"Revalidation Failed\""),
+        TIMED_OUT("110 - \"Response is Stale\"");
+
+        final String warning;
+
+        Revalidated(String warning) {
+            this.warning = warning;
+        }
+    }
+
+    private static HttpResponseStatus statusOf(TempFile file) {
+        return file.info().map(info -> {
+            return HttpResponseStatus.valueOf(info.statusCode());
+        }).orElse(OK);
+    }
+
+    private static HttpHeaders nettyHeaders(TempFile file) {
+        return file.info().map(info -> nettyHeaders(info.headers()))
+                .orElseGet(() -> new DefaultHttpHeaders(false));
+    }
+
+    private static HttpHeaders nettyHeaders(java.net.http.HttpHeaders headers) {
+        HttpHeaders nettyHeaders = new DefaultHttpHeaders(false);
+        headers.map().forEach(nettyHeaders::add);
+        return nettyHeaders;
+    }
+
+    boolean isInFlight(Path path) {
+        return inFlight.containsKey(path.normalize().elideEmptyElements());
+    }
+
+    /**
+     * Answer a HEAD request for a path which is not cached by sending HEAD
+     * requests to mirrors, one at a time in the order a download would try
+     * them, and passing on the first successful response's headers.  Nothing
+     * is downloaded unless background fill is enabled, in which case a
+     * successful probe starts a download of the path into the cache.
+     */
+    CompletableFuture<HttpResponse<Void>> probe(Path path, RequestID rid, DownloadReceiver recv) {
+        Path key = path.normalize().elideEmptyElements();
+        Logs requestLog = logger.child("req", rid).child("probe", true);
+        CompletableFuture<HttpResponse<Void>> result = new CompletableFuture<>();
+        result.whenComplete((response, thrown) -> {
+            if (thrown instanceof CancellationException) {
+                recv.failed(GONE, "Cancelled");
+            } else if (thrown != null) {
+                recv.failed(GONE, thrown.getMessage());
+            } else {
+                recv.probed(HttpResponseStatus.valueOf(response.statusCode()),
+                        nettyHeaders(response.headers()));
+                if (config.headBackgroundFill) {
+                    fill(key, rid);
+                }
+            }
+        });
+        probeNext(key, candidates(key).iterator(), result, requestLog);
+        return result;
+    }
+
+    private void fill(Path path, RequestID rid) {
+        try {
+            // Nothing is waiting on it, so nothing will cancel it
+            join(path, rid, null);
+        } catch (URISyntaxException | RuntimeException ex) {
+            logger.warn("background-fill").add("path", path).add(ex).close();
+        }
+    }
+
+    private void probeNext(Path path, Iterator<URL> mirrors, CompletableFuture<HttpResponse<Void>> result,
+            Logs requestLog) {
+        if (result.isDone()) {
+            return;
+        }
+        if (!mirrors.hasNext()) {
+            result.completeExceptionally(new ResponseException(GONE, "No result " + path));
+            return;
+        }
+        URL mirror = mirrors.next();
+        URL u = Config.withPath(mirror, path);
+        HttpRequest req;
+        try {
+            req = HttpRequest.newBuilder(u.toURI())
+                    .header("User-Agent", userAgent)
+                    .timeout(Duration.ofSeconds(30))
+                    .method("HEAD", BodyPublishers.noBody())
+                    .build();
+        } catch (URISyntaxException ex) {
+            probeNext(path, mirrors, result, requestLog);
+            return;
+        }
+        Logs perUrl = requestLog.child("url", u.toString());
+        MirrorScores.Sample sample = scores.start(mirror);
+        // No body, so as urgent as anything
+        CompletableFuture<HttpResponse<Void>> sent = bulkheads.send(mirror, req, info -> {
+            sample.headers(info.statusCode());
+            return BodySubscribers.discarding();
+        }, TrafficClass.METADATA, sample::dispatched);
+        result.whenComplete((response, thrown) -> {
+            if (thrown instanceof CancellationException) {
+                sent.cancel(true);
+            }
+        });
+        sent.whenComplete((response, thrown) -> {
+            if (response != null && response.statusCode() < 400) {
+                sample.completed(0);
+                routes.learn(path, mirror);
+                perUrl.debug("probe-success").add("status", response.statusCode()).close();
+                result.complete(response);
+                return;
+            }
+            // A mirror which is down or does not support HEAD proves nothing
+            if (response != null && isNotFound(response.statusCode())) {
+                negatives.notFound(mirror, path);
+            }
+            if (thrown != null) {
+                sample.failed();
+                perUrl.warn("probe-failed").add(thrown).close();
+            } else {
+                perUrl.debug("probe-miss").add("status", response.statusCode()).close();
+            }
+            probeNext(path, mirrors, result, requestLog);
+        });
+    }
+
+    /**
+     * Attach to the in-flight download of the passed path if there is one,
+     * starting it if not, so that a burst of requests for the same missing
+     * artifact results in one set of upstream requests.  The returned future
+     * belongs to the caller; cancelling it detaches the caller, and only
+     * cancels the shared download if no one else is still waiting on it.
+     * If stream-through is enabled, the passed consumer is called with the
+     * temp file as soon as a mirror starts sending a body.
+     */
+    private CompletableFuture<TempFile> join(Path path, RequestID rid, Consumer<TempFile> onStreamable) throws URISyntaxException {
+        Path key = path.normalize().elideEmptyElements();
+        for (;;) {
+            SharedDownload existing = inFlight.get(key);
+            if (existing != null) {
+                CompletableFuture<TempFile> waiter = existing.attach(onStreamable);
+                if (waiter != null) {
+                    // If it was a prefetch, a client wants it now, so any
+                    // further attempts should not wait behind other traffic
+                    prefetching.remove(key);
+                    logger.debug("join-in-flight").add("path", key)
+                            .add("id", rid).add("waiters", existing.waiterCount()).close();
+                    return waiter;
+                }
+                // Abandoned by all of its waiters - start over
+                inFlight.remove(key, existing);
+                continue;
+            }
+            SharedDownload created = new SharedDownload(key);
+            if (inFlight.putIfAbsent(key, created) != null) {
+                continue;
+            }
+            CompletableFuture<TempFile> waiter = created.attach(onStreamable);
+            try {
+                created.start(locked(key, rid, config.streamThrough ? created.streaming : null));
+            } catch (URISyntaxException | RuntimeException ex) {
+                created.finish(null, ex);
+                throw ex;
+            }
+            return waiter;
+        }
+    }
+
+    /**
+     * Download a path once this process holds its lock in the cache
+     * directory, if locking is enabled.  If another process puts the file
+     * in the cache while we wait, the result is null rather than a temp
+     * file.
+     */
+    private CompletableFuture<TempFile> locked(Path path, RequestID rid, CompletableFuture<TempFile> streaming) throws URISyntaxException {
+        if (!config.sharedLocks) {
+            return download(path, rid, streaming);
+        }
+        CompletableFuture<TempFile> result = new CompletableFuture<>();
+        CompletableFuture<DownloadLocks.Lock> lock = locks.acquire(path);
+        result.whenComplete((file, thrown) -> {
+            if (thrown instanceof CancellationException) {
+                lock.cancel(false);
+            }
+        });
+        lock.whenComplete((held, thrown) -> {
+            if (thrown != null) {
+                result.completeExceptionally(thrown);
+                return;
+            } else if (held == null) {
+                logger.debug("downloaded-elsewhere").add("path", path).add("id", rid).close();
+                result.complete(null);
+                return;
+            }
+            CompletableFuture<TempFile> dl;
+            try {
+                dl = download(path, rid, streaming);
+            } catch (URISyntaxException | RuntimeException ex) {
+                held.release();
+                result.completeExceptionally(ex);
+                return;
+            }
+            result.whenComplete((file, thrown2) -> {
+                if (thrown2 instanceof CancellationException) {
+                    dl.cancel(false);
+                }
+            });
+            dl.whenComplete((file, thrown2) -> {
+                if (file != null && file.isInMemory()) {
+                    // Not in the cache until it is written out
+                    file.whenAvailable(file.written(), held::release);
+                } else {
+                    held.release();
+                }
+                if (thrown2 != null) {
+                    result.completeExceptionally(thrown2);
+                } else {
+                    result.complete(file);
+                }
+            });
+        });
+        return result;
+    }
+
+    /**
+     * Download a path into the cache ahead of any client asking for it,
+     * unless it is already being downloaded or known not to exist; returns
+     * null in that case.  Speculative prefetches wait behind all other
+     * traffic.
+     */
+    CompletableFuture<TempFile> prefetch(Path path, RequestID rid, boolean speculative) throws URISyntaxException {
+        Path key = path.normalize().elideEmptyElements();
+        if (inFlight.containsKey(key) || isFailedPath(key)) {
+            return null;
+        }
+        if (!speculative) {
+            return join(key, rid, null);
+        }
+        prefetching.add(key);
+        CompletableFuture<TempFile> result = join(key, rid, null);
+        result.whenComplete((file, thrown) -> prefetching.remove(key));
+        return result;
+    }
+
+    public CompletableFuture<TempFile> download(Path path, RequestID rid) throws URISyntaxException {
+        return download(path, rid, (CompletableFuture<TempFile>) null);
+    }
+
+    private CompletableFuture<TempFile> download(Path path, RequestID rid, CompletableFuture<TempFile> streaming) throws URISyntaxException {
+        List<URL> all = new ArrayList<>();
+        config.forEach(all::add);
+        List<URL> possible = negatives.filter(path, all);
+        if (!possible.isEmpty() && breakers.filter(possible).isEmpty()) {
+            // Fail fast, and without marking the path as failed
+            return CompletableFuture.failedFuture(new MirrorBreakers.CircuitOpenException(
+                    "Circuit open for every mirror which may have " + path));
+        }
+        switch (config.strategy) {
+            case RACE:
+                return downloadRacing(path, rid, streaming);
+            case HEDGED:
+                return new HedgedDownload(path, logger.child("req", rid), streaming).start();
+            default:
+                return downloadRanked(path, rid, streaming);
+        }
+    }
+
+    /**
+     * Download a path from the best-scoring mirror, falling back to the
+     * others in rank order.  If a <code>streaming</code> future is passed,
+     * it is completed with the temp file as soon as a mirror starts sending a
+     * body - from then on there is no falling back, since clients may already
+     * have been sent some of it.  A mirror known to serve the path's groupId
+     * is tried first regardless of its score.
+     */
+    private CompletableFuture<TempFile> downloadRanked(Path path, RequestID rid, CompletableFuture<TempFile> streaming) {
+        Logs requestLog = logger.child("req", rid);
+        CompletableFuture<TempFile> result = downloadInOrder(path, candidates(path), requestLog, streaming);
+        logFailure(result, requestLog);
+        return result;
+    }
+
+    private CompletableFuture<TempFile> downloadInOrder(Path path, List<URL> mirrors,
+            Logs requestLog, CompletableFuture<TempFile> streaming) {
+        CompletableFuture<TempFile> result = new CompletableFuture<>();
+        tryNext(path, mirrors.iterator(), result, requestLog, streaming, null);
+        return result;
+    }
+
+    private void tryNext(Path path, Iterator<URL> mirrors, CompletableFuture<TempFile> result,
+            Logs requestLog, CompletableFuture<TempFile> streaming, Throwable lastFailure) {
+        if (result.isDone()) {
+            return;
+        }
+        if (!mirrors.hasNext()) {
+            result.completeExceptionally(noResult(path, lastFailure));
+            return;
+        }
+        URL mirror = mirrors.next();
+        CompletableFuture<TempFile> fut = new CompletableFuture<>();
+        AtomicBoolean streamed = new AtomicBoolean();
+        Predicate<TempFile> onBody = streaming == null ? null : file -> {
+            streamed.set(true);
+            streaming.complete(file);
+            return true;
+        };
+        result.whenComplete((file, thrown) -> {
+            if (thrown instanceof CancellationException) {
+                fut.cancel(false);
+            }
+        });
+        fut.whenComplete((file, thrown) -> {
+            if (file != null) {
+                commit(path, mirror, file, result, requestLog);
+            } else if (streamed.get()) {
+                result.completeExceptionally(thrown == null || thrown instanceof CancellationException
+                        ? new ResponseException(GONE, "Failed mid-stream " + path) : thrown);
+            } else {
+                tryNext(path, mirrors, result, requestLog, streaming, thrown);
+            }
+        });
+        try {
+            attempt(mirror, path, requestLog, fut, onBody);
+        } catch (URISyntaxException ex) {
+            fut.completeExceptionally(ex);
+        }
+    }
+
+    private static void logFailure(CompletableFuture<TempFile> result, Logs requestLog) {
+        result.whenComplete((file, thrown) -> {
+            if (thrown != null && !(thrown instanceof CancellationException)) {
+                Log l = requestLog.warn("all-failed");
+                if (!(thrown instanceof ResponseException)) {
+                    l.add(thrown);
+                }
+                l.close();
+            }
+        });
+    }
+
+    private static Throwable noResult(Path path, Throwable lastFailure) {
+        return lastFailure == null || lastFailure instanceof CancellationException
+                ? new ResponseException(GONE, "No result " + path) : lastFailure;
+    }
+
+    private void commit(Path path, URL mirror, TempFile file, CompletableFuture<TempFile> result, Logs requestLog) {
+        if (!file.isInMemory()) {
+            store(path, mirror, file, result, requestLog);
+            return;
+        }
+        if (result.isDone()) {
+            try {
+                file.close();
+            } catch (IOException ex) {
+                requestLog.warn("close-temp-file").add(ex).close();
+            }
+            return;
+        }
+        // Clients are answered from memory, and the cache written after
+        inMemoryDownloads.increment();
+        result.complete(file);
+        pool.execute(() -> {
+            CompletableFuture<TempFile> stored = new CompletableFuture<>();
+            store(path, mirror, file, stored, requestLog);
+            stored.whenComplete((f, thrown) -> {
+                if (thrown != null) {
+                    requestLog.warn("store-failed").add("path", path.toString()).add(thrown).close();
+                    try {
+                        file.close();
+                    } catch (IOException ex) {
+                        requestLog.warn("close-temp-file").add(ex).close();
+                    }
+                }
+            });
+        });
+    }
+
+    private void store(Path path, URL mirror, TempFile file, CompletableFuture<TempFile> result, Logs requestLog) {
+        try (Log lr = requestLog.debug("completed")) {
+            if (result.isDone()) {
+                file.close();
+                return;
+            }
+            lr.add("file", file.path().toString());
+            file.info().ifPresent(info -> {
+                lr.add("status", info.statusCode());
+            });
+            file.lastModified().ifPresent(lm -> lr.add("lastModified", lm));
+            File dest = finder.put(path, file);
+            lr.add("saved", dest.toString());
+            file.gzipped().ifPresent(gz -> {
+                gzipDownloads.increment();
+                gzipBytes.add(gz.length);
+                gzipInflatedBytes.add(file.written());
+                lr.add("gzipped", gz.length);
+            });
+            if (!TrafficClass.isChecksum(path)) {
+                try {
+                    finder.putDigests(path, file.digests());
+                } catch (IOException ex) {
+                    // The checksums can still be fetched from upstream
+                    lr.add("digestsFailed", ex.toString());
+                }
+            }
+            if (freshness.expires(path) && file.info().isPresent()) {
+                try {
+                    freshness.validated(path, mirror.toString(), file.info().get().headers(), null);
+                } catch (IOException ex) {
+                    // It will be revalidated by modification time instead
+                    lr.add("validatorsFailed", ex.toString());
+                }
+            }
+            routes.learn(path, mirror);
+            result.complete(file);
+            prefetcher.cached(path, dest);
+        } catch (IOException ex) {
+            result.completeExceptionally(ex);
+        }
+    }
+
+    /**
+     * Download a path, racing all mirrors - unless a mirror is known to serve
+     * the path's groupId, in which case only it is asked, and the rest are
+     * raced only if it does not have the path.
+     */
+    private CompletableFuture<TempFile> downloadRacing(Path path, RequestID rid, CompletableFuture<TempFile> streaming) throws URISyntaxException {
+        List<URL> all = new ArrayList<>();
+        config.forEach(all::add);
+        List<URL> mirrors = new ArrayList<>(breakers.filter(negatives.filter(path, all)));
+        if (mirrors.isEmpty()) {
+            return CompletableFuture.failedFuture(new ResponseException(GONE, "No result " + path));
+        }
+        URL routed = routes.route(path);
+        if (routed == null || mirrors.size() < 2 || !mirrors.remove(routed)) {
+            return race(path, rid, streaming, mirrors);
+        }
+        Logs requestLog = logger.child("req", rid);
+        CompletableFuture<TempFile> result = new CompletableFuture<>();
+        AtomicReference<CompletableFuture<TempFile>> current = new AtomicReference<>();
+        result.whenComplete((file, thrown) -> {
+            if (thrown instanceof CancellationException) {
+                CompletableFuture<TempFile> curr = current.get();
+                if (curr != null) {
+                    curr.cancel(false);
+                }
+            }
+        });
+        CompletableFuture<TempFile> first = downloadInOrder(path, Collections.singletonList(routed), requestLog, streaming);
+        current.set(first);
+        first.whenComplete((file, thrown) -> {
+            if (file != null) {
+                result.complete(file);
+            } else if (thrown instanceof CancellationException || (streaming != null && streaming.isDone())) {
+                result.completeExceptionally(thrown);
+            } else {
+                requestLog.debug("route-miss").add("mirror", routed.toString()).close();
+                CompletableFuture<TempFile> rest;
+                try {
+                    rest = race(path, rid, streaming, mirrors);
+                } catch (URISyntaxException ex) {
+                    result.completeExceptionally(ex);
+                    return;
+                }
+                current.set(rest);
+                if (result.isDone()) {
+                    rest.cancel(false);
+                }
+                rest.whenComplete((f, t) -> {
+                    if (t != null) {
+                        result.completeExceptionally(t);
+                    } else {
+                        result.complete(f);
+                    }
+                });
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Race a set of mirrors.  If a <code>streaming</code> future is passed,
+     * the first mirror to respond with a body wins outright - the others are
+     * cancelled and the future is completed with the temp file it is being
+     * written to, so it can be sent to clients as it arrives.
+     */
+    private CompletableFuture<TempFile> race(Path path, RequestID rid, CompletableFuture<TempFile> streaming,
+            List<URL> mirrors) throws URISyntaxException {
+        List<CompletableFuture<TempFile>> futures = new ArrayList<>(mirrors.size());
+        Int remainder = Int.createAtomic();
+        remainder.set(mirrors.size());
+        CompletableFuture<TempFile> result = new CompletableFuture<>();
+        Logs requestLog = logger.child("req", rid);
+
+        final Object lock = new Object();
+        AtomicBoolean won = new AtomicBoolean();
+        AtomicBoolean streamClaimed = new AtomicBoolean();
+
+        Consumer<CompletableFuture<TempFile>> cancelOthers = fut -> {
+            synchronized (lock) {
+                List<CompletableFuture<TempFile>> copy = new ArrayList<>(futures);
+                futures.clear();
+                for (CompletableFuture<TempFile> f : copy) {
+                    if (f != fut) {
+                        f.cancel(false);
+                    }
+                }
+            }
+        };
+
+        result.whenCompleteAsync((file, thrown) -> {
+            if (thrown instanceof CancellationException) {
+                requestLog.info("request-cancelled-killing-downloads")
+                        .add("tasks", futures.size())
+                        .add("alive", remainder.get()).close();
+                cancelOthers.accept(null);
+            } else if (thrown != null) {
+                Log l = requestLog.warn("all-failed");
+                if (!(thrown instanceof ResponseException)) {
+                    l.add(thrown);
+                }
+                l.close();
+            }
+        });
+
+        for (URL mirror : mirrors) {
+            CompletableFuture<TempFile> fut = new CompletableFuture<>();
+            fut.whenComplete((file, thrown) -> {
+                remainder.decrement();
+                int remaining = remainder.getAsInt();
+                if (remaining < 0) {
+                    throw new IllegalStateException("" + remaining);
+                }
+                if (file != null) {
+                    if (result.isDone() || !won.compareAndSet(false, true)) {
+                        try {
+                            file.close();
+                        } catch (IOException ex) {
+                            requestLog.warn("close-temp-file").add(ex).close();
+                        }
+                        return;
+                    }
+                    // Complete before cancelling the others, or the last
+                    // one cancelled sees remaining == 0 and fails the
+                    // result out from under us
+                    commit(path, mirror, file, result, requestLog);
+                    cancelOthers.accept(fut);
+                } else if (remaining == 0 && !result.isDone()) {
+                    if (thrown == null || thrown instanceof CancellationException) {
+                        result.completeExceptionally(new ResponseException(GONE, "No result " + path));
+                    } else {
+                        result.completeExceptionally(thrown);
+                    }
+                }
+            });
+            Predicate<TempFile> onBody = streaming == null ? null : file -> {
+                if (!streamClaimed.compareAndSet(false, true)) {
+                    return false;
+                }
+                cancelOthers.accept(fut);
+                streaming.complete(file);
+                return true;
+            };
+            futures.add(fut);
+            attempt(mirror, path, requestLog, fut, onBody);
+        }
+        return result;
+    }
+
+    /**
+     * Downloads from mirrors in rank order like downloadRanked(), but if the
+     * current mirror has not sent response headers within its recent 95th
+     * percentile header latency, also sends the request to the next mirror -
+     * at most two are outstanding at a time.  The first to respond with a
+     * body wins and the other is cancelled.
+     */
+    final class HedgedDownload {
+
+        private final Path path;
+        private final Logs requestLog;
+        private final CompletableFuture<TempFile> streaming;
+        private final Iterator<URL> mirrors;
+        private final CompletableFuture<TempFile> result = new CompletableFuture<>();
+        private final List<CompletableFuture<TempFile>> outstanding = new ArrayList<>(2);
+        private CompletableFuture<TempFile> winner;
+        private Throwable lastFailure;
+
+        HedgedDownload(Path path, Logs requestLog, CompletableFuture<TempFile> streaming) {
+            this.path = path;
+            this.requestLog = requestLog;
+            this.streaming = streaming;
+            this.mirrors = candidates(path).iterator();
+        }
+
+        CompletableFuture<TempFile> start() {
+            hedgedDownloads.increment();
+            logFailure(result, requestLog);
+            result.whenComplete((file, thrown) -> {
+                if (thrown instanceof CancellationException) {
+                    cancelAllBut(null);
+                }
+            });
+            launch(false);
+            return result;
+        }
+
+        private void launch(boolean hedge) {
+            CompletableFuture<TempFile> fut = new CompletableFuture<>();
+            URL mirror = null;
+            boolean exhausted = false;
+            synchronized (this) {
+                if (result.isDone() || winner != null) {
+                    return;
+                }
+                if (mirrors.hasNext()) {
+                    mirror = mirrors.next();
+                    outstanding.add(fut);
+                } else {
+                    exhausted = outstanding.isEmpty();
+                }
+            }
+            if (mirror == null) {
+                if (exhausted) {
+                    result.completeExceptionally(noResult(path, lastFailure()));
+                }
+                return;
+            }
+            if (hedge) {
+                hedges.increment();
+                requestLog.debug("hedge").add("mirror", mirror.toString()).close();
+            }
+            URL m = mirror;
+            fut.whenComplete((file, thrown) -> onAttemptDone(fut, m, hedge, file, thrown));
+            MirrorScores.Sample sample;
+            try {
+                sample = attempt(mirror, path, requestLog, fut, file -> claim(fut, file));
+            } catch (URISyntaxException ex) {
+                fut.completeExceptionally(ex);
+                return;
+            }
+            long delay = scores.hedgeDelayMillis(mirror);
+            CompletableFuture.delayedExecutor(delay, MILLISECONDS, pool).execute(() -> {
+                if (!sample.hasHeaders() && !fut.isDone()) {
+                    hedge();
+                }
+            });
+        }
+
+        private void hedge() {
+            synchronized (this) {
+                if (winner != null || result.isDone() || outstanding.size() > 1) {
+                    return;
+                }
+            }
+            launch(true);
+        }
+
+        private synchronized Throwable lastFailure() {
+            return lastFailure;
+        }
+
+        private boolean claim(CompletableFuture<TempFile> fut, TempFile file) {
+            synchronized (this) {
+                if (winner != null || result.isDone()) {
+                    return false;
+                }
+                winner = fut;
+            }
+            cancelAllBut(fut);
+            if (streaming != null) {
+                streaming.complete(file);
+            }
+            return true;
+        }
+
+        private void cancelAllBut(CompletableFuture<TempFile> keep) {
+            List<CompletableFuture<TempFile>> toCancel;
+            synchronized (this) {
+                toCancel = new ArrayList<>(outstanding);
+            }
+            for (CompletableFuture<TempFile> f : toCancel) {
+                if (f != keep) {
+                    f.cancel(false);
+                }
+            }
+        }
+
+        private void onAttemptDone(CompletableFuture<TempFile> fut, URL mirror, boolean hedge, TempFile file, Throwable thrown) {
+            boolean wasWinner;
+            boolean next;
+            synchronized (this) {
+                outstanding.remove(fut);
+                if (thrown != null && !(thrown instanceof CancellationException)) {
+                    lastFailure = thrown;
+                }
+                wasWinner = winner == fut;
+                next = file == null && winner == null && outstanding.isEmpty();
+            }
+            if (file != null) {
+                if (hedge) {
+                    hedgeWins.increment();
+                }
+                commit(path, mirror, file, result, requestLog);
+            } else if (wasWinner) {
+                result.completeExceptionally(thrown == null || thrown instanceof CancellationException
+                        ? new ResponseException(GONE, "Failed mid-download " + path) : thrown);
+            } else if (next) {
+                launch(false);
+            }
+        }
+    }
+
+    /**
+     * Send a request for a path to one mirror, completing the passed future
+     * with the temp file once the whole body has arrived, or cancelling it if
+     * the mirror does not have the path.
+     */
+    private MirrorScores.Sample attempt(URL mirror, Path path, Logs requestLog,
+            CompletableFuture<TempFile> fut, Predicate<TempFile> onBody) throws URISyntaxException {
+        return attempt(mirror, path, requestLog, fut, onBody, null);
+    }
+
+    /**
+     * As above, but if validators are passed, the request is conditional, and
+     * a 304 completes the future with a NotModifiedException.
+     */
+    private MirrorScores.Sample attempt(URL mirror, Path path, Logs requestLog,
+            CompletableFuture<TempFile> fut, Predicate<TempFile> onBody,
+            Freshness.Validators validators) throws URISyntaxException {
+        if (!TrafficClass.of(path).isCompressible() || TrafficClass.isChecksum(path)
+                || gzipBroken.getIfPresent(mirror) != null) {
+            return attempt(mirror, path, requestLog, fut, onBody, validators, null);
+        }
+        // Ask for gzip, and if a gzipped body fails, ask again without it,
+        // and stop asking that mirror for a while - better to pay for the
+        // bytes than fail a download over a mirror's broken compression
+        AtomicBoolean gzipSeen = new AtomicBoolean();
+        CompletableFuture<TempFile> gzipped = new CompletableFuture<>();
+        fut.whenComplete((file, thrown) -> {
+            if (thrown instanceof CancellationException) {
+                gzipped.cancel(false);
+            }
+        });
+        gzipped.whenComplete((file, thrown) -> {
+            if (file != null) {
+                fut.complete(file);
+            } else if (gzipSeen.get() && !(thrown instanceof CancellationException) && !fut.isDone()) {
+                gzipBroken.put(mirror, Boolean.TRUE);
+                requestLog.warn("gzip-failed").add("mirror", mirror.toString()).add(thrown).close();
+                try {
+                    attempt(mirror, path, requestLog, fut, onBody, validators, null);
+                } catch (URISyntaxException ex) {
+                    fut.completeExceptionally(ex);
+                }
+            } else {
+                fut.completeExceptionally(thrown);
+            }
+        });
+        return attempt(mirror, path, requestLog, gzipped, onBody, validators, gzipSeen);
+    }
+
+    /**
+     * As above; if gzipSeen is non-null, the mirror is asked to gzip the
+     * response, and it is set if it does.
+     */
+    private MirrorScores.Sample attempt(URL mirror, Path path, Logs requestLog,
+            CompletableFuture<TempFile> fut, Predicate<TempFile> onBody,
+            Freshness.Validators validators, AtomicBoolean gzipSeen) throws URISyntaxException {
+        URL u = Config.withPath(mirror, path);
+        String dlId = nextDownloadId();
+        Logs perUrl = requestLog.child("dl", dlId)
+                .child("url", u.toString());
+        HttpRequest.Builder bldr
+                = HttpRequest.newBuilder(u.toURI())
+                        .header("User-Agent", userAgent)
+                        .timeout(Duration.ofMinutes(2))
+                        .GET();
+        if (validators != null) {
+            if (validators.etag != null) {
+                bldr.header("If-None-Match", validators.etag);
+            }
+            if (validators.lastModified != null) {
+                bldr.header("If-Modified-Since", validators.lastModified);
+            }
+        }
+        TrafficClass kind = TrafficClass.of(path);
+        if (gzipSeen != null) {
+            bldr.header("Accept-Encoding", GzipTransfer.GZIP);
+        }
+        HttpRequest req = bldr.build();
+        MirrorScores.Sample sample = scores.start(mirror);
+        Verification verification = config.verifyChecksums && (kind == TrafficClass.JAR || kind == TrafficClass.POM)
+                ? new Verification(mirror, path, perUrl, fut) : null;
+        TrafficClass cls = prefetching.contains(path) || refreshing.contains(path) ? TrafficClass.PREFETCH : kind;
+        Resumption resumption = new Resumption(mirror, path, perUrl, fut, cls, verification);
+        BH bh = new BH(dlId, path, u, fut, perUrl, onBody, sample, cls, resumption, verification,
+                validators != null, gzipSeen);
+        CompletableFuture<HttpResponse<TempFile>> sent = bulkheads.send(mirror, req, bh, cls, sample::dispatched);
+        sent.whenComplete((response, thrown) -> {
+            // Connection failures and timeouts never reach the body handler;
+            // a body which failed part-way may be being resumed
+            if (thrown != null && !fut.isDone() && !resumption.isActive() && !bh.isSegmented()) {
+                Throwable cause = thrown instanceof CompletionException && thrown.getCause() != null
+                        ? thrown.getCause() : thrown;
+                sample.failed();
+                perUrl.warn("request-failed").add(cause).close();
+                fut.completeExceptionally(cause);
+            }
+        });
+        fut.whenComplete((file, thrown) -> {
+            if (thrown instanceof CancellationException) {
+                sent.cancel(true);
+            }
+        });
+        return sample;
+    }
+
+    /**
+     * A download of one path which any number of requests may be waiting on.
+     */
+    final class SharedDownload {
+
+        private final Path path;
+        private final List<CompletableFuture<TempFile>> waiters = new ArrayList<>(3);
+        final CompletableFuture<TempFile> streaming = new CompletableFuture<>();
+        private CompletableFuture<TempFile> download;
+        private boolean abandoned;
+        private boolean done;
+        private TempFile file;
+        private Throwable failure;
+
+        SharedDownload(Path path) {
+            this.path = path;
+        }
+
+        synchronized int waiterCount() {
+            return waiters.size();
+        }
+
+        /**
+         * Get a future for a new waiter, or null if every previous waiter
+         * has gone away and the download was cancelled.
+         */
+        CompletableFuture<TempFile> attach(Consumer<TempFile> onStreamable) {
+            CompletableFuture<TempFile> waiter = new CompletableFuture<>();
+            synchronized (this) {
+                if (abandoned) {
+                    return null;
+                }
+                if (!done) {
+                    waiters.add(waiter);
+                    waiter.whenComplete((f, thrown) -> {
+                        if (thrown instanceof CancellationException) {
+                            detach(waiter);
+                        }
+                    });
+                    if (onStreamable != null) {
+                        streaming.thenAccept(onStreamable);
+                    }
+                    return waiter;
+                }
+            }
+            // The file is already in the cache, or the failure is fresh
+            if (failure != null) {
+                waiter.completeExceptionally(failure);
+            } else {
+                waiter.complete(file);
+            }
+            return waiter;
+        }
+
+        private void detach(CompletableFuture<TempFile> waiter) {
+            CompletableFuture<TempFile> toCancel;
+            synchronized (this) {
+                if (!waiters.remove(waiter) || done || !waiters.isEmpty()) {
+                    return;
+                }
+                abandoned = true;
+                toCancel = download;
+            }
+            logger.debug("abandon-in-flight").add("path", path).close();
+            inFlight.remove(path, this);
+            if (toCancel != null) {
+                toCancel.cancel(false);
+            }
+        }
+
+        void start(CompletableFuture<TempFile> download) {
+            boolean cancelNow;
+            synchronized (this) {
+                this.download = download;
+                cancelNow = abandoned;
+            }
+            if (cancelNow) {
+                download.cancel(false);
+            }
+            download.whenComplete(this::finish);
+        }
+
+        void finish(TempFile file, Throwable thrown) {
+            List<CompletableFuture<TempFile>> toNotify;
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                done = true;
+                this.file = file;
+                this.failure = thrown;
+                toNotify = new ArrayList<>(waiters);
+                waiters.clear();
+            }
+            if (file != null && file.isInMemory()) {
+                // Until it is written to the cache, later requests are
+                // answered from memory too
+                file.whenAvailable(file.written(), () -> inFlight.remove(path, this));
+            } else {
+                inFlight.remove(path, this);
+            }
+            if (thrown != null && !(thrown instanceof CancellationException)
+                    && !(thrown instanceof MirrorBreakers.CircuitOpenException)) {
+                negatives.failed(path);
+            }
+            for (CompletableFuture<TempFile> waiter : toNotify) {
+                if (thrown != null) {
+                    waiter.completeExceptionally(thrown);
+                } else {
+                    waiter.complete(file);
+                }
+            }
+        }
+    }
+
+    static void sleep() {
+        try {
+            Thread.sleep(50);
+        } catch (InterruptedException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    private final static Noop<TempFile> NO_OP = new Noop<>();
+
+    /**
+     * Completes a conditional download when upstream answers that the
+     * cached copy is still current.
+     */
+    static final class NotModifiedException extends Exception {
+
+        final java.net.http.HttpHeaders headers;
+
+        NotModifiedException(java.net.http.HttpHeaders headers) {
+            super("Not modified", null, false, false);
+            this.headers = headers;
+        }
+    }
+
+    private static final String LAST_MODIFIED = Headers.LAST_MODIFIED.name().toString();
+
+    /**
+     * Resumes a download whose body failed part-way through, with a range
+     * request for the rest of the file, appending to the same temp file - so
+     * clients being streamed it just see a pause.  The mirror which was
+     * sending it is asked first, and asked again if the resumed body also
+     * fails part-way; if a resume request itself fails or is refused, the
+     * other mirrors are tried in rank order, which requires that the original
+     * response had a Last-Modified date, since ETags are only meaningful to
+     * the server that issued them.  If-Range ensures that a file which has
+     * changed upstream is never spliced onto the old one.
+     */
+    final class Resumption {
+
+        private final URL origin;
+        private final Path path;
+        private final Logs logs;
+        private final CompletableFuture<TempFile> result;
+        private final TrafficClass cls;
+        private final Verification verification;
+        private volatile RangeResume validators;
+        private volatile boolean active;
+        private List<URL> candidates;
+        private int candidate;
+        private int attemptsLeft = config.resumeAttempts;
+        private CompletableFuture<?> current;
+
+        Resumption(URL origin, Path path, Logs logs, CompletableFuture<TempFile> result, TrafficClass cls,
+                Verification verification) {
+            this.origin = origin;
+            this.path = path;
+            this.logs = logs;
+            this.result = result;
+            this.cls = cls;
+            this.verification = verification;
+            result.whenComplete((file, thrown) -> {
+                if (thrown instanceof CancellationException) {
+                    CompletableFuture<?> curr;
+                    synchronized (this) {
+                        curr = current;
+                    }
+                    if (curr != null) {
+                        curr.cancel(true);
+                    }
+                }
+            });
+        }
+
+        void validators(RangeResume validators) {
+            this.validators = validators;
+        }
+
+        boolean isActive() {
+            return active;
+        }
+
+        /**
+         * Called when a body fails part-way; returns true if a request for
+         * the rest of it has been sent, in which case the caller must leave
+         * the file open and the result alone.
+         */
+        boolean resume(TempFile file, Throwable cause) {
+            return resume(file, cause, false);
+        }
+
+        private synchronized boolean resume(TempFile file, Throwable cause, boolean nextMirror) {
+            RangeResume v = validators;
+            long offset = file.written();
+            if (v == null || attemptsLeft <= 0 || offset == 0 || result.isDone() || file.isClosed()) {
+                return false;
+            }
+            if (candidates == null) {
+                candidates = new ArrayList<>();
+                candidates.add(origin);
+                for (URL u : breakers.filter(scores.rank())) {
+                    if (!u.equals(origin)) {
+                        candidates.add(u);
+                    }
+                }
+            }
+            if (nextMirror) {
+                candidate++;
+            }
+            String ifRange = null;
+            while (candidate < candidates.size()) {
+                ifRange = v.ifRange(candidate == 0);
+                if (ifRange != null) {
+                    break;
+                }
+                candidate++;
+            }
+            if (ifRange == null) {
+                return false;
+            }
+            attemptsLeft--;
+            active = true;
+            URL mirror = candidates.get(candidate);
+            URL u = Config.withPath(mirror, path);
+            Logs perUrl = logs.child("resume", offset).child("url", u.toString());
+            HttpRequest req;
+            try {
+                req = HttpRequest.newBuilder(u.toURI())
+                        .header("User-Agent", userAgent)
+                        .header("Range", "bytes=" + offset + "-")
+                        .header("If-Range", ifRange)
+                        .timeout(Duration.ofMinutes(2))
+                        .GET()
+                        .build();
+            } catch (URISyntaxException ex) {
+                if (!resume(file, ex, true)) {
+                    giveUp(file, ex);
+                }
+                return true;
+            }
+            perUrl.info("resuming").add("cause", cause.toString())
+                    .add("attemptsLeft", attemptsLeft).close();
+            resumes.increment();
+            MirrorScores.Sample sample = scores.start(mirror);
+            AtomicBoolean accepted = new AtomicBoolean();
+            BodyHandler<TempFile> handler = info -> {
+                sample.headers(info.statusCode());
+                String problem = v.check(info.statusCode(), info.headers(), offset);
+                if (problem != null) {
+                    perUrl.warn("resume-refused").add("reason", problem).close();
+                    return NO_OP;
+                } else if (result.isDone()) {
+                    return NO_OP;
+                }
+                accepted.set(true);
+                return new BS(file, result, perUrl, sample, bandwidth,
+                        cls.withLength(v.length(), config.largeThreshold), this, verification, offset, null, null);
+            };
+            CompletableFuture<HttpResponse<TempFile>> sent
+                    = bulkheads.send(mirror, req, handler, cls, sample::dispatched);
+            current = sent;
+            sent.whenComplete((response, thrown) -> {
+                if (accepted.get()) {
+                    // The body subscriber takes it from here
+                    return;
+                }
+                Throwable why;
+                if (thrown != null) {
+                    why = thrown instanceof CompletionException && thrown.getCause() != null
+                            ? thrown.getCause() : thrown;
+                    sample.failed();
+                } else {
+                    why = new IOException("Resume refused by " + mirror + " with " + response.statusCode());
+                }
+                if (!resume(file, why, true)) {
+                    giveUp(file, why);
+                }
+            });
+            return true;
+        }
+
+        private void giveUp(TempFile file, Throwable cause) {
+            try {
+                file.close();
+            } catch (IOException ex) {
+                cause.addSuppressed(ex);
+            }
+            if (!result.isDone()) {
+                logs.warn("resume-failed").add(cause).close();
+                result.completeExceptionally(cause);
+            }
+        }
+    }
+
+    /**
+     * Fetches the checksum a mirror publishes alongside a file, in parallel
+     * with downloading the file from it, and compares it with the digest
+     * computed as the file was written, before the file is cached.  A file
+     * which does not match - truncated, or an error page served with a 200 -
+     * is moved into the quarantine directory under the state directory, and
+     * the download fails, so that the next mirror is tried.  If the mirror
+     * publishes no usable checksum, the file is cached unverified.
+     */
+    final class Verification {
+
+        private final URL mirror;
+        private final Path path;
+        private final Logs logs;
+        private final CompletableFuture<TempFile> result;
+        private final CompletableFuture<Map.Entry<Digests.Kind, String>> expected = new CompletableFuture<>();
+        private final AtomicBoolean started = new AtomicBoolean();
+        private volatile CompletableFuture<?> current;
+
+        Verification(URL mirror, Path path, Logs logs, CompletableFuture<TempFile> result) {
+            this.mirror = mirror;
+            this.path = path;
+            this.logs = logs;
+            this.result = result;
+            result.whenComplete((file, thrown) -> {
+                CompletableFuture<?> curr = current;
+                if (thrown instanceof CancellationException && curr != null) {
+                    curr.cancel(true);
+                }
+            });
+        }
+
+        /**
+         * Start fetching the checksum, once the mirror has said it has the
+         * file.
+         */
+        void start() {
+            if (started.compareAndSet(false, true)) {
+                fetch(0);
+            }
+        }
 
-    CompletableFuture<TempFile> download(Path path, RequestID rid, DownloadReceiver recv) throws URISyntaxException {
-        CompletableFuture<TempFile> tf = download(path, rid);
-        Logs requestLog = logger.child("download", rid);
-        tf.whenComplete((file, thrown) -> {
-            if (thrown != null) {
-                failedURLs.put(path, path);
-//                System.out.println("DO FAIL FOR " + thrown + " " + path);
-                recv.failed(GONE, thrown.getMessage());
-            } else if (file != null) {
-                HttpResponseStatus status = file.info().map(info -> {
-                    return HttpResponseStatus.valueOf(info.statusCode());
-                }).orElse(OK);
-                HttpHeaders nettyHeaders = new DefaultHttpHeaders(false);
-                file.info().ifPresent(info -> {
-                    info.headers().map().forEach(nettyHeaders::add);
-                });
-                recv.receive(status, file.path().toFile(), nettyHeaders);
+        private void fetch(int index) {
+            if (index >= SIDECARS.length || result.isDone()) {
+                expected.complete(null);
+                return;
             }
-        });
-        return tf;
+            Digests.Kind kind = SIDECARS[index];
+            URL u = Config.withPath(mirror, Path.parse(path.toString() + "." + kind.extension));
+            HttpRequest req;
+            try {
+                req = HttpRequest.newBuilder(u.toURI())
+                        .header("User-Agent", userAgent)
+                        .timeout(Duration.ofSeconds(30))
+                        .GET()
+                        .build();
+            } catch (URISyntaxException ex) {
+                expected.complete(null);
+                return;
+            }
+            CompletableFuture<HttpResponse<String>> sent = bulkheads.send(mirror, req,
+                    BodyHandlers.ofString(), TrafficClass.CHECKSUM, () -> {
+                    });
+            current = sent;
+            sent.whenComplete((response, thrown) -> {
+                String hex = response == null || response.statusCode() != 200
+                        ? null : Digests.parseSidecar(response.body(), kind);
+                if (hex != null) {
+                    expected.complete(new AbstractMap.SimpleImmutableEntry<>(kind, hex));
+                } else if (thrown != null) {
+                    logs.debug("checksum-unavailable").add(thrown).close();
+                    expected.complete(null);
+                } else {
+                    fetch(index + 1);
+                }
+            });
+        }
+
+        /**
+         * Complete the result with the fully written file if it matches the
+         * published checksum, or exceptionally if it does not.
+         */
+        void verify(TempFile file, MirrorScores.Sample sample) {
+            if (!started.get()) {
+                result.complete(file);
+                return;
+            }
+            expected.whenComplete((exp, thrown) -> {
+                if (exp == null) {
+                    unverified.increment();
+                    logs.debug("unverified").close();
+                    result.complete(file);
+                    return;
+                }
+                String actual = file.digests().hex(exp.getKey());
+                if (actual.equals(exp.getValue())) {
+                    verified.increment();
+                    result.complete(file);
+                    return;
+                }
+                checksumMismatches.increment();
+                sample.failed();
+                try (Log log = logs.error("checksum-mismatch")) {
+                    log.add("kind", exp.getKey().name())
+                            .add("expected", exp.getValue())
+                            .add("actual", actual)
+                            .add("length", file.written());
+                    quarantine(file, log);
+                }
+                IOException ex = new IOException("Checksum mismatch for " + path + " from " + mirror);
+                try {
+                    file.close();
+                } catch (IOException ex1) {
+                    ex.addSuppressed(ex1);
+                }
+                result.completeExceptionally(ex);
+            });
+        }
+
+        private void quarantine(TempFile file, Log log) {
+            String name = path.toString().replace('/', '_') + "-" + mirror.getHost()
+                    + "-" + System.currentTimeMillis();
+            java.nio.file.Path dest = config.stateDir.toPath().resolve(QUARANTINE_DIR).resolve(name);
+            try {
+                Files.createDirectories(dest.getParent());
+                file.copyTo(dest);
+                log.add("quarantined", dest.toString());
+            } catch (IOException ex) {
+                log.add("quarantineFailed", ex.toString());
+            }
+        }
     }
 
-    public CompletableFuture<TempFile> download(Path path, RequestID rid) throws URISyntaxException {
-        Collection<URL> urls = config.withPath(path);
-        List<CompletableFuture<TempFile>> futures = new ArrayList<>(urls.size());
-        Int remainder = Int.createAtomic();
-        remainder.set(urls.size());
-        CompletableFuture<TempFile> result = new CompletableFuture<>();
-        Logs requestLog = logger.child("req", rid);
+    /**
+     * Downloads a large file in several ranges at once, into one temp file
+     * allocated at its full length, once the first response has shown the
+     * length and that the mirror accepts range requests.  That response
+     * supplies the first range and is cut off at its end; the rest are
+     * requested with <code>Range</code> and <code>If-Range</code> headers,
+     * from the same mirror or, if so configured, round-robin from the
+     * others.  A range which fails or comes up short is requested again from
+     * where it left off, from the next mirror.  The file is verified and
+     * cached only once every range has been written.
+     */
+    final class SegmentedDownload {
 
-        final Object lock = new Object();
+        private final URL origin;
+        private final Path path;
+        private final TempFile file;
+        private final CompletableFuture<TempFile> result;
+        private final Logs logs;
+        private final RangeResume validators;
+        private final long length;
+        private final TrafficClass cls;
+        private final Verification verification;
+        private final MirrorScores.Sample sample;
+        private final List<URL> mirrors = new ArrayList<>(3);
+        private final Part[] parts;
+        private final AtomicInteger remaining;
+        private final Set<CompletableFuture<?>> requests = ConcurrentHashMap.newKeySet();
 
-        Consumer<CompletableFuture<TempFile>> cancelOthers = fut -> {
-            synchronized (lock) {
-                List<CompletableFuture<TempFile>> copy = new ArrayList<>(futures);
-                futures.clear();
-                for (CompletableFuture<TempFile> f : copy) {
-                    if (f != fut) {
-                        f.cancel(false);
+        SegmentedDownload(URL origin, Path path, TempFile file, CompletableFuture<TempFile> result, Logs logs,
+                RangeResume validators, long length, int count, TrafficClass cls, Verification verification,
+                MirrorScores.Sample sample) {
+            this.origin = origin;
+            this.path = path;
+            this.file = file;
+            this.result = result;
+            this.logs = logs;
+            this.validators = validators;
+            this.length = length;
+            this.cls = cls;
+            this.verification = verification;
+            this.sample = sample;
+            mirrors.add(origin);
+            // Only a Last-Modified date means anything to another mirror
+            if (config.segmentsAcrossMirrors && validators.ifRange(false) != null) {
+                for (URL u : breakers.filter(negatives.filter(path, scores.rank()))) {
+                    if (!u.equals(origin)) {
+                        mirrors.add(u);
                     }
                 }
             }
-        };
-
-        result.whenCompleteAsync((file, thrown) -> {
-            if (thrown instanceof CancellationException) {
-                requestLog.info("request-cancelled-killing-downloads")
-                        .add("tasks", futures.size())
-                        .add("alive", remainder.get()).close();
-                cancelOthers.accept(null);
-            } else if (thrown != null) {
-                Log l = requestLog.warn("all-failed");
-                if (!(thrown instanceof ResponseException)) {
-                    l.add(thrown).close();
+            long size = (length + count - 1) / count;
+            parts = new Part[count];
+            for (int i = 0; i < count; i++) {
+                parts[i] = new Part(i, i * size, Math.min(length, (i + 1) * size));
+            }
+            remaining = new AtomicInteger(count);
+            result.whenComplete((f, thrown) -> {
+                if (thrown instanceof CancellationException) {
+                    for (CompletableFuture<?> req : requests) {
+                        req.cancel(true);
+                    }
                 }
+            });
+        }
+
+        /**
+         * Allocate the file and request every range but the first, which is
+         * returned for the response that is already arriving.
+         */
+        Part start() throws IOException {
+            file.preallocate(length);
+            for (int i = 1; i < parts.length; i++) {
+                parts[i].writer = file.rangeWriter(parts[i].start);
             }
-        });
+            segmentedDownloads.increment();
+            logs.info("segmented").add("length", length).add("segments", parts.length)
+                    .add("mirrors", mirrors.size()).close();
+            parts[0].mirror = origin;
+            for (int i = 1; i < parts.length; i++) {
+                fetch(parts[i], mirrors.get(i % mirrors.size()));
+            }
+            return parts[0];
+        }
 
-        for (URL u : urls) {
-            String dlId = nextDownloadId();
-            Logs perUrl = requestLog.child("dl", dlId)
-                    .child("url", u.toString());
-            HttpRequest req
-                    = HttpRequest.newBuilder(u.toURI())
-                            .header("User-Agent", userAgent)
-                            .timeout(Duration.ofMinutes(2))
-                            .GET()
-                            .build();
-            CompletableFuture<TempFile> fut = new CompletableFuture<>();
-            fut.whenComplete((file, thrown) -> {
-//                synchronized (lock) {
-                remainder.decrement();
-                int remaining = remainder.getAsInt();
-                if (remaining < 0) {
-                    throw new IllegalStateException("" + remaining);
+        private void fetch(Part part, URL mirror) {
+            if (result.isDone()) {
+                return;
+            }
+            part.mirror = mirror;
+            long from = part.position();
+            URL u = Config.withPath(mirror, path);
+            Logs perUrl = logs.child("segment", part.index).child("url", u.toString());
+            HttpRequest req;
+            try {
+                req = HttpRequest.newBuilder(u.toURI())
+                        .header("User-Agent", userAgent)
+                        .header("Range", "bytes=" + from + "-" + (part.end - 1))
+                        .header("If-Range", validators.ifRange(mirror.equals(origin)))
+                        .timeout(Duration.ofMinutes(2))
+                        .GET()
+                        .build();
+            } catch (URISyntaxException ex) {
+                failed(part, ex);
+                return;
+            }
+            MirrorScores.Sample partSample = scores.start(mirror);
+            AtomicBoolean accepted = new AtomicBoolean();
+            BodyHandler<TempFile> handler = info -> {
+                partSample.headers(info.statusCode());
+                String problem = validators.check(info.statusCode(), info.headers(), from);
+                if (problem != null) {
+                    perUrl.warn("segment-refused").add("reason", problem).close();
+                    return NO_OP;
+                } else if (result.isDone()) {
+                    return NO_OP;
                 }
-                try (Log lr = perUrl.debug("completed")) {
-                    if (result.isDone()) {
-                        if (file != null) {
-                            file.close();
-                        }
-                        return;
-                    }
-                    if (file != null) {
-                        cancelOthers.accept(fut);
-                        if (fut.isCancelled()) {
-                            return;
-                        }
-                        lr.add("file", file.path().toString());
-                        file.info().ifPresent(info -> {
-                            lr.add("status", info.statusCode());
-                        });
-                        file.lastModified().ifPresent(lm -> lr.add("lastModified", lm));
-                        ZonedDateTime zdt = file.lastModified().map(ins -> ZonedDateTime.ofInstant(ins, ZoneId.of("Z"))).orElse(ZonedDateTime.now());
-                        File dest = finder.put(path, file);
-                        lr.add("saved", dest.toString());
-                        result.complete(file);
-                    } else if (thrown instanceof CancellationException) {
-                        lr.add("cancelled");
-                        if (remaining == 0) {
-//                                System.out.println("REMAINING 0 COMPLETE 1 " + path);
-                            result.completeExceptionally(new ResponseException(GONE, "No result " + path));
-                        }
-                    } else if (thrown != null) {
-                        if (remaining == 0) {
-//                                System.out.println("REMAINING 0 COMPLETE 2 " + path);
-                            result.completeExceptionally(thrown);
-                        }
-                        lr.add(thrown);
-                    } else {
-                        lr.add("state", "No info.");
-                        if (remaining == 0) {
-//                                System.out.println("REMAINING 0 COMPLETE 3 " + path);
-                            result.completeExceptionally(new ResponseException(GONE, "No result " + path));
-                        }
-                    }
-                } catch (IOException ex) {
-                    result.completeExceptionally(ex);
+                accepted.set(true);
+                return new BS(file, result, perUrl, partSample, bandwidth, cls, null, null, from, null, part);
+            };
+            CompletableFuture<HttpResponse<TempFile>> sent
+                    = bulkheads.send(mirror, req, handler, cls, partSample::dispatched);
+            requests.add(sent);
+            sent.whenComplete((response, thrown) -> {
+                requests.remove(sent);
+                if (accepted.get()) {
+                    // The body subscriber takes it from here
+                    return;
                 }
-//                }
+                Throwable why;
+                if (thrown != null) {
+                    why = thrown instanceof CompletionException && thrown.getCause() != null
+                            ? thrown.getCause() : thrown;
+                    partSample.failed();
+                } else {
+                    why = new IOException("Range refused by " + mirror + " with " + response.statusCode());
+                }
+                failed(part, why);
             });
-//            fut.whenComplete(onComplete);
-            BH bh = new BH(dlId, u, fut, perUrl);
-            futures.add(fut);
-            client.sendAsync(req, bh);
         }
-        return result;
-    }
 
-    static void sleep() {
-        try {
-            Thread.sleep(50);
-        } catch (InterruptedException ex) {
-            ex.printStackTrace();
+        private void failed(Part part, Throwable cause) {
+            URL next;
+            synchronized (this) {
+                if (result.isDone()) {
+                    return;
+                }
+                if (part.attemptsLeft-- <= 0) {
+                    giveUp(cause);
+                    return;
+                }
+                next = mirrors.get((mirrors.indexOf(part.mirror) + 1) % mirrors.size());
+            }
+            segmentRetries.increment();
+            logs.info("segment-retry").add("segment", part.index).add("from", part.position())
+                    .add("cause", cause.toString()).close();
+            fetch(part, next);
         }
-    }
 
-    private final static Noop<TempFile> NO_OP = new Noop<>();
+        private void giveUp(Throwable cause) {
+            try {
+                file.close();
+            } catch (IOException ex) {
+                cause.addSuppressed(ex);
+            }
+            if (!result.isDone()) {
+                logs.warn("segments-failed").add(cause).close();
+                result.completeExceptionally(cause);
+            }
+        }
 
-    private static final String LAST_MODIFIED = Headers.LAST_MODIFIED.name().toString();
+        private void received(Part part) {
+            if (!part.isFull()) {
+                failed(part, new IOException("Range " + part.index + " of " + path
+                        + " ended at " + part.position() + " not " + part.end));
+                return;
+            }
+            if (part.writer != null) {
+                file.rangeWritten(part.start, part.end);
+            }
+            if (remaining.decrementAndGet() == 0) {
+                pool.execute(this::complete);
+            }
+        }
+
+        private void complete() {
+            // The first range was digested as it arrived; the others arrived
+            // out of order, and are read back now they are all there
+            try (FileChannel ch = file.openForRead()) {
+                if (file.written() != length) {
+                    throw new IOException("Wrote " + file.written() + " of " + length + " for " + path);
+                }
+                ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+                long position = parts[0].end;
+                while (position < length) {
+                    buf.clear();
+                    int count = ch.read(buf, position);
+                    if (count < 0) {
+                        throw new IOException("Unexpected end of " + file.path() + " at " + position);
+                    }
+                    buf.flip();
+                    file.digests().update(buf);
+                    position += count;
+                }
+            } catch (IOException ex) {
+                giveUp(ex);
+                return;
+            }
+            logs.info("segments-received").add("length", length).close();
+            if (verification == null) {
+                result.complete(file);
+            } else {
+                verification.verify(file, sample);
+            }
+        }
+
+        /**
+         * One range of the file.  The first is written by the file's own
+         * writer, in order, so is digested as it arrives; the rest each have
+         * a writer of their own.
+         */
+        final class Part {
+
+            private final int index;
+            private final long start;
+            private final long end;
+            private long position;
+            private TempFiles.TempFile.RangeWriter writer;
+            private volatile URL mirror;
+            private int attemptsLeft = config.resumeAttempts;
+
+            Part(int index, long start, long end) {
+                this.index = index;
+                this.start = start;
+                this.end = end;
+                this.position = start;
+            }
+
+            synchronized long position() {
+                return position;
+            }
+
+            synchronized boolean isFull() {
+                return position >= end;
+            }
+
+            /**
+             * Take what of a batch of buffers belongs to this range, limiting
+             * the buffer which crosses its end.
+             */
+            synchronized List<ByteBuffer> accept(List<ByteBuffer> item) {
+                long room = end - position;
+                for (int i = 0; i < item.size(); i++) {
+                    ByteBuffer buf = item.get(i);
+                    if (buf.remaining() >= room) {
+                        buf.limit(buf.position() + (int) room);
+                        position = end;
+                        return i == item.size() - 1 ? item : item.subList(0, i + 1);
+                    }
+                    room -= buf.remaining();
+                }
+                position = end - room;
+                return item;
+            }
+
+            void write(List<ByteBuffer> buffers, TempFiles.WriteCallback callback) {
+                if (writer == null) {
+                    file.write(buffers, callback);
+                } else {
+                    writer.write(buffers, callback);
+                }
+            }
+
+            boolean isDigested() {
+                return writer == null;
+            }
+
+            void received() {
+                SegmentedDownload.this.received(this);
+            }
+
+            void failed(Throwable cause) {
+                SegmentedDownload.this.failed(this, cause);
+            }
+        }
+    }
 
     class BH implements BodyHandler<TempFile> {
 
         private final CompletableFuture<TempFile> result;
         private final String downloadId;
+        private final Path path;
         private final URL url;
         private final Logs logs;
+        private final Predicate<TempFile> onBody;
+        private final MirrorScores.Sample sample;
+        private final TrafficClass cls;
+        private final Resumption resumption;
+        private final Verification verification;
+        private final boolean conditional;
+        private final AtomicBoolean gzipSeen;
+        private volatile boolean segmented;
 
-        public BH(String downloadId, URL url, CompletableFuture<TempFile> result, Logs logs) {
+        public BH(String downloadId, Path path, URL url, CompletableFuture<TempFile> result, Logs logs,
+                Predicate<TempFile> onBody, MirrorScores.Sample sample, TrafficClass cls,
+                Resumption resumption, Verification verification, boolean conditional,
+                AtomicBoolean gzipSeen) {
+            this.conditional = conditional;
+            this.gzipSeen = gzipSeen;
             this.downloadId = downloadId;
+            this.path = path;
             this.url = url;
             this.result = result;
             this.logs = logs;
+            this.onBody = onBody;
+            this.sample = sample;
+            this.cls = cls;
+            this.resumption = resumption;
+            this.verification = verification;
         }
 
         @Override
         public BodySubscriber<TempFile> apply(HttpResponse.ResponseInfo info) {
+            sample.headers(info.statusCode());
+            if (result.isDone()) {
+                return NO_OP;
+            }
+            if (conditional && info.statusCode() == 304) {
+                logs.debug("not-modified").close();
+                result.completeExceptionally(new NotModifiedException(info.headers()));
+                return NO_OP;
+            }
             if (info.statusCode() > 399) {
+                if (isNotFound(info.statusCode())) {
+                    negatives.notFound(sample.mirror(), path);
+                }
                 logs.warn("request-failed")
                         .add("status", info.statusCode()).close();
 //                        .add("headers", info.headers().map()).close();
@@ -282,26 +2069,160 @@ public class DownloaderV2A {
                 logs.info("potential-success")
                         .add("status", info.statusCode()).close();
 //                        .add("headers", info.headers().map()).close();
-                TempFile tempFile = tempFiles.tempFile(downloadId);
+                long length = info.headers().firstValueAsLong("content-length").orElse(-1);
+                // Offsets into a gzipped body are not offsets into the file,
+                // so one cannot be resumed with a range request
+                GzipTransfer gzip = gzipSeen != null && GzipTransfer.isGzipped(info) ? new GzipTransfer() : null;
+                if (gzip != null) {
+                    gzipSeen.set(true);
+                }
+                // A small body is kept in memory and sent to clients from
+                // there once complete; a revalidated one is read back from
+                // the cache, so goes straight to disk
+                boolean inMemory = !conditional && length >= 0 && length < config.memoryThreshold;
+                TempFile tempFile = inMemory
+                        ? tempFiles.inMemory(downloadId, (int) length)
+                        : tempFiles.tempFile(downloadId);
                 info.headers().firstValue(LAST_MODIFIED)
                         .map(Headers.LAST_MODIFIED)
                         .ifPresent(tempFile::setLastModified);
-                return new BS(tempFile.withResponseInfo(info), result, logs);
+                tempFile.withResponseInfo(gzip == null ? info : GzipTransfer.inflated(info));
+                // Neither a small body nor a gzipped one is streamed through;
+                // a gzipped one so that if it cannot be inflated it can be
+                // asked for again
+                if (onBody != null && gzip == null && !inMemory && !onBody.test(tempFile)) {
+                    // Another mirror is already streaming this path
+                    logs.debug("lost-stream-race").close();
+                    try {
+                        tempFile.close();
+                    } catch (IOException ex) {
+                        logs.warn("close-temp-file").add(ex).close();
+                    }
+                    result.cancel(true);
+                    return NO_OP;
+                }
+                if (info.statusCode() == 200) {
+                    if (gzip == null) {
+                        resumption.validators(RangeResume.of(info.headers()));
+                    }
+                    if (verification != null) {
+                        verification.start();
+                    }
+                }
+                TrafficClass sized = cls.withLength(length, config.largeThreshold);
+                int segments = gzip == null && info.statusCode() == 200 ? segments(info, length) : 1;
+                if (segments > 1) {
+                    SegmentedDownload dl = new SegmentedDownload(sample.mirror(), path, tempFile, result, logs,
+                            RangeResume.of(info.headers()), length, segments, sized, verification, sample);
+                    SegmentedDownload.Part first;
+                    try {
+                        first = dl.start();
+                    } catch (IOException ex) {
+                        logs.warn("segmenting-failed").add(ex).close();
+                        try {
+                            tempFile.close();
+                        } catch (IOException ex1) {
+                            ex.addSuppressed(ex1);
+                        }
+                        result.completeExceptionally(ex);
+                        return NO_OP;
+                    }
+                    segmented = true;
+                    return new BS(tempFile, result, logs, sample, bandwidth, sized, null, verification, 0, null, first);
+                }
+                return new BS(tempFile, result, logs, sample, bandwidth,
+                        sized, resumption, verification, 0, gzip, null);
             }
         }
+
+        /**
+         * How many ranges to download the body of a response in - more than
+         * one only for a large file from a mirror which accepts range
+         * requests and sent validators for <code>If-Range</code>, so every
+         * range is sure to come from the same file.  Prefetches are left to
+         * one connection, to leave the rest for clients.
+         */
+        private int segments(HttpResponse.ResponseInfo info, long length) {
+            if (config.segments < 2 || cls == TrafficClass.PREFETCH || length <= config.largeThreshold
+                    || RangeResume.of(info.headers()) == null) {
+                return 1;
+            }
+            boolean ranges = info.headers().allValues("accept-ranges").stream()
+                    .anyMatch(v -> v.toLowerCase().contains("bytes"));
+            return ranges ? (int) Math.min(config.segments, length / MIN_SEGMENT_BYTES) : 1;
+        }
+
+        /**
+         * Whether the body is being downloaded in ranges, so its response
+         * failing is not the end of it.
+         */
+        boolean isSegmented() {
+            return segmented;
+        }
     }
 
-    static class BS implements BodySubscriber<TempFile> {
+    /**
+     * Writes a response body to a temp file with bounded demand: at most
+     * WINDOW items are requested ahead of the disk, and items are written
+     * with non-blocking file writes, one item at a time, more being
+     * requested as each is written - so neither a slow disk blocks the HTTP
+     * client's threads, nor a fast link piles up buffers.
+     */
+    static class BS implements BodySubscriber<TempFile>, TempFiles.WriteCallback,
+            NettyHttpClient.ReleasingSubscriber {
+
+        private static final int WINDOW = 4;
 
         private final TempFile file;
         private Flow.Subscription subscription;
         private final CompletableFuture<TempFile> result;
         private final Logs logs;
+        private final MirrorScores.Sample sample;
+        private final BandwidthScheduler bandwidth;
+        private final TrafficClass cls;
+        private final boolean paced;
+        private final Resumption resumption;
+        private final Verification verification;
+        private final long offset;
+        private final GzipTransfer gzip;
+        private final SegmentedDownload.Part part;
+        private final Deque<List<ByteBuffer>> pending = new ArrayDeque<>(WINDOW);
+        // What each pending item was received as, to release once written
+        private final Deque<List<ByteBuffer>> received = new ArrayDeque<>(WINDOW);
+        private List<ByteBuffer> inWrite;
+        private boolean writing;
+        private boolean complete;
+        private boolean terminated;
+        private Throwable error;
+        // Touched only by the subscriber's serially-called methods
+        private final ChunkStats stats = new ChunkStats();
+        private final Runnable requestMore = this::requestMore;
+        // Completes when this response is over, which, if the download is
+        // resumed, is before the download is
+        private final CompletableFuture<TempFile> body = new CompletableFuture<>();
 
-        BS(TempFile file, CompletableFuture<TempFile> result, Logs logs) {
+        BS(TempFile file, CompletableFuture<TempFile> result, Logs logs, MirrorScores.Sample sample,
+                BandwidthScheduler bandwidth, TrafficClass cls, Resumption resumption,
+                Verification verification, long offset, GzipTransfer gzip, SegmentedDownload.Part part) {
             this.file = file;
+            this.gzip = gzip;
+            this.part = part;
             this.result = result;
             this.logs = logs;
+            this.sample = sample;
+            this.bandwidth = bandwidth;
+            this.cls = cls;
+            this.paced = !bandwidth.isUnlimited(cls);
+            this.resumption = resumption;
+            this.verification = verification;
+            this.offset = offset;
+            result.whenComplete((f, thrown) -> {
+                if (thrown != null) {
+                    body.completeExceptionally(thrown);
+                } else {
+                    body.complete(f);
+                }
+            });
         }
 
         synchronized void cancel() {
@@ -316,7 +2237,7 @@ public class DownloaderV2A {
 
         @Override
         public CompletionStage<TempFile> getBody() {
-            return result;
+            return body;
         }
 
         @Override
@@ -331,35 +2252,185 @@ public class DownloaderV2A {
             synchronized (this) {
                 this.subscription = subscription;
             }
-            subscription.request(Long.MAX_VALUE);
+            // Only as many items as can be buffered while the disk catches
+            // up; if paced, one at a time, each once the bandwidth
+            // scheduler has been paid for the last
+            subscription.request(paced ? 1 : WINDOW);
+        }
+
+        private void requestMore() {
+            if (!result.isDone()) {
+                subscription.request(1);
+            }
         }
 
         @Override
         public void onNext(List<ByteBuffer> item) {
+            List<ByteBuffer> original = item;
             if (result.isDone()) {
+                NettyHttpClient.release(item);
                 subscription.cancel();
+                try {
+                    file.close();
+                } catch (IOException ex) {
+                    logs.warn("close-temp-file").add(ex).close();
+                }
                 return;
             }
-            try (Log log = logs.info("onNext")) {
-                log.add("buffers", item.size());
+            if (gzip != null) {
+                try {
+                    item = gzip.inflate(item);
+                } catch (IOException ex) {
+                    subscription.cancel();
+                    onError(ex);
+                    return;
+                } finally {
+                    // The inflater copies what it is given
+                    NettyHttpClient.release(original);
+                }
+                original = item;
+                if (item.isEmpty()) {
+                    // Nothing to write until more arrives
+                    requestMore();
+                    return;
+                }
+            }
+            boolean full = false;
+            if (part != null) {
+                item = part.accept(item);
+                full = part.isFull();
+            }
+            enqueue(item, original);
+            if (full) {
+                // The rest of the body belongs to another range
+                subscription.cancel();
+                synchronized (this) {
+                    complete = true;
+                }
+            }
+            drain();
+        }
+
+        private void enqueue(List<ByteBuffer> item, List<ByteBuffer> original) {
+            // In arrival order, before the write consumes the buffers
+            if (part == null || part.isDigested()) {
                 for (int i = 0; i < item.size(); i++) {
-                    ByteBuffer b = item.get(i);
-                    log.add("buf_" + i, b.remaining());
+                    file.digests().update(item.get(i));
                 }
-                for (ByteBuffer b : item) {
-                    try {
-                        file.append(b);
-                    } catch (IOException ex) {
-                        log.add(ex);
-                        onError(ex);
+            }
+            synchronized (this) {
+                stats.received(item, writing ? pending.size() + 1 : pending.size());
+                pending.add(item);
+                received.add(original);
+            }
+        }
+
+        /**
+         * Write the next pending item if no write is in progress, or, once
+         * everything received has been written, act on the end of the body.
+         */
+        private void drain() {
+            List<ByteBuffer> next;
+            Throwable error;
+            synchronized (this) {
+                if (writing || terminated) {
+                    return;
+                }
+                next = pending.poll();
+                inWrite = received.poll();
+                if (next == null) {
+                    if (!complete && this.error == null) {
                         return;
                     }
+                    terminated = true;
+                    error = this.error;
+                } else {
+                    writing = true;
+                    error = null;
+                }
+            }
+            if (next == null) {
+                if (error != null) {
+                    finishWithError(error);
+                } else {
+                    finish();
+                }
+                return;
+            }
+            if (part == null) {
+                file.write(next, this);
+            } else {
+                part.write(next, this);
+            }
+        }
+
+        @Override
+        public void written(long bytes, Throwable thrown) {
+            List<List<ByteBuffer>> toRelease = new ArrayList<>(WINDOW + 1);
+            boolean alreadyTerminated;
+            synchronized (this) {
+                writing = false;
+                toRelease.add(inWrite);
+                inWrite = null;
+                alreadyTerminated = terminated;
+                if (thrown != null) {
+                    terminated = true;
+                    pending.clear();
+                    toRelease.addAll(received);
+                    received.clear();
                 }
             }
+            toRelease.forEach(NettyHttpClient::release);
+            if (thrown != null) {
+                if (alreadyTerminated) {
+                    return;
+                }
+                // Local trouble, which resuming will not fix
+                subscription.cancel();
+                fail(thrown);
+                return;
+            }
+            if (paced) {
+                bandwidth.acquire(cls, bytes, requestMore);
+            } else {
+                bandwidth.account(cls, bytes);
+                requestMore();
+            }
+            drain();
         }
 
         @Override
         public void onError(Throwable throwable) {
+            // Wait for what has arrived to be written, so a resume picks up
+            // from the right place
+            synchronized (this) {
+                if (complete) {
+                    // Cut off at the end of its range
+                    return;
+                }
+                error = throwable;
+            }
+            drain();
+        }
+
+        private void finishWithError(Throwable throwable) {
+            if (!result.isDone()) {
+                sample.failed();
+                summary("body-failed").add("reason", throwable.toString()).close();
+                if (part != null) {
+                    body.completeExceptionally(throwable);
+                    part.failed(throwable);
+                    return;
+                }
+                if (resumption != null && resumption.resume(file, throwable)) {
+                    body.completeExceptionally(throwable);
+                    return;
+                }
+            }
+            fail(throwable);
+        }
+
+        private void fail(Throwable throwable) {
             try {
                 file.close();
             } catch (Exception ex) {
@@ -371,9 +2442,55 @@ public class DownloaderV2A {
 
         @Override
         public void onComplete() {
-            result.complete(file);
-            if (result.isDone()) {
-                logs.warn("done-but-already-complete").close();
+            if (gzip != null) {
+                try {
+                    List<ByteBuffer> rest = gzip.finish();
+                    if (!rest.isEmpty()) {
+                        enqueue(rest, rest);
+                    }
+                } catch (IOException ex) {
+                    onError(ex);
+                    return;
+                }
+            }
+            synchronized (this) {
+                complete = true;
+            }
+            drain();
+        }
+
+        /**
+         * The once-per-response record of what arrived, in place of logging
+         * each chunk.
+         */
+        private Log summary(String what) {
+            Log log;
+            synchronized (this) {
+                log = stats.addTo(logs.info(what));
+            }
+            return log.add("offset", offset);
+        }
+
+        private void finish() {
+            if (part != null) {
+                summary("segment-received").close();
+                sample.completed(part.position() - offset);
+                body.complete(file);
+                part.received();
+                return;
+            }
+            if (gzip != null) {
+                file.gzipped(gzip.gzipped());
+                summary("body-received").add("gzipped", gzip.compressedBytes()).close();
+            } else {
+                summary("body-received").close();
+            }
+            sample.completed(file.written() - offset);
+            body.complete(file);
+            if (verification == null) {
+                result.complete(file);
+            } else {
+                verification.verify(file, sample);
             }
         }
     }
@@ -38,9 +38,13 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import static java.nio.charset.StandardCharsets.US_ASCII;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import java.nio.file.attribute.FileTime;
 import java.time.ZonedDateTime;
 import java.util.concurrent.ExecutorService;
 
@@ -67,6 +71,16 @@ public class FileFinder {
         return null;
     }
 
+    /**
+     * Whether a path is under a folder of the cache dir which the proxy
+     * keeps its own files in, such as the default state dir, and so must
+     * not be served or listed.  No groupId starts with an underscore.
+     */
+    static boolean isPrivate(Path path) {
+        Path p = path.elideEmptyElements();
+        return p.size() > 0 && p.getElement(0).toString().startsWith("_");
+    }
+
     public File folder(Path path) {
         if (path.size() == 0) {
             return config.dir;
@@ -82,9 +96,45 @@ public class FileFinder {
         java.nio.file.Path target = config.dir.toPath()
                 .resolve(path.toString());
         file.close(target);
+        // A gzipped copy made for clients of the file this replaces is stale
+        java.nio.file.Path gz = target.resolveSibling("_" + target.getFileName() + ".gz");
+        Files.deleteIfExists(gz);
+        byte[] gzipped = file.gzipped().orElse(null);
+        if (gzipped != null) {
+            // Arrived gzipped - keep it as it came rather than compress it again
+            java.nio.file.Path tmp = gz.resolveSibling(gz.getFileName() + ".tmp");
+            Files.write(tmp, gzipped);
+            Files.setLastModifiedTime(tmp, Files.getLastModifiedTime(target));
+            Files.move(tmp, gz, REPLACE_EXISTING);
+        }
         return target.toFile();
     }
 
+    /**
+     * Write a checksum file of each kind next to a cached file, from the
+     * digests computed while it was downloaded, so requests for them need
+     * not go upstream.
+     */
+    public void putDigests(final Path path, final Digests digests) throws IOException {
+        java.nio.file.Path target = config.dir.toPath().resolve(path.toString());
+        FileTime lastModified = Files.getLastModifiedTime(target);
+        for (Digests.Kind kind : Digests.Kind.values()) {
+            java.nio.file.Path sidecar = target.resolveSibling(target.getFileName() + "." + kind.extension);
+            java.nio.file.Path tmp = target.resolveSibling("." + sidecar.getFileName() + ".tmp");
+            Files.write(tmp, digests.hex(kind).getBytes(US_ASCII));
+            Files.setLastModifiedTime(tmp, lastModified);
+            if (TempFile.canAtomicMove()) {
+                try {
+                    Files.move(tmp, sidecar, REPLACE_EXISTING, ATOMIC_MOVE);
+                    continue;
+                } catch (IOException ex) {
+                    TempFile.atomicMoveBroken();
+                }
+            }
+            Files.move(tmp, sidecar, REPLACE_EXISTING);
+        }
+    }
+
     public synchronized void put(final Path path, final ByteBuf content, final ZonedDateTime lastModified) {
         // This method is currently unused, but if we enhance the server to accept
         // uploads, we will likely need code a lot like this
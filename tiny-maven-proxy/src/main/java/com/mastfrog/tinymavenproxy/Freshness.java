@@ -0,0 +1,260 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.tinymavenproxy;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.mastfrog.url.Path;
+import java.io.File;
+import java.io.IOException;
+import java.net.http.HttpHeaders;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.file.Files;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import java.util.function.LongSupplier;
+
+/**
+ * Decides when a cached file must be checked against upstream again.
+ * Releases never change, but <code>maven-metadata.xml</code> files and
+ * <code>-SNAPSHOT</code> artifacts do; each kind has a time-to-live, after
+ * which the file is revalidated with a conditional GET to the mirror that
+ * served it.  The validators for that - the mirror, ETag and Last-Modified
+ * it sent - are kept in a small file per cached path in the state dir,
+ * whose modification time is when the cached file was last known fresh.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class Freshness {
+
+    static final String DIR_NAME = "freshness";
+    private static final String MIRROR = "mirror";
+    private static final String ETAG = "etag";
+    private static final String LAST_MODIFIED = "last-modified";
+    private final java.nio.file.Path dir;
+    private final String owner;
+    private final long[] ttlMillis = new long[Kind.values().length];
+    private final LongSupplier clock;
+
+    @Inject
+    Freshness(Config config, @Named("runId") String runId) {
+        this(config, config.stateDir.toPath().resolve(DIR_NAME), runId, System::currentTimeMillis);
+    }
+
+    Freshness(Config config, java.nio.file.Path dir, String owner, LongSupplier clock) {
+        this.dir = dir;
+        this.owner = owner;
+        this.clock = clock;
+        for (Kind kind : Kind.values()) {
+            long seconds = config.ttlSeconds(kind);
+            ttlMillis[kind.ordinal()] = seconds < 0 ? -1 : SECONDS.toMillis(seconds);
+        }
+    }
+
+    /**
+     * Whether a path can change upstream, so its validators are worth
+     * keeping.
+     */
+    boolean expires(Path path) {
+        return ttlMillis[Kind.of(path).ordinal()] >= 0;
+    }
+
+    /**
+     * Whether a cached file has outlived its time-to-live since it was
+     * downloaded or last revalidated.
+     */
+    boolean isStale(Path path, File cached) {
+        return expiresAt(path, cached) <= clock.getAsLong();
+    }
+
+    /**
+     * When a cached file goes stale, or Long.MAX_VALUE if it never does.
+     */
+    long expiresAt(Path path, File cached) {
+        long ttl = ttlMillis[Kind.of(path).ordinal()];
+        if (ttl < 0 || isLocalChecksum(path, cached)) {
+            return Long.MAX_VALUE;
+        }
+        java.nio.file.Path record = record(path);
+        long checked;
+        try {
+            checked = Files.getLastModifiedTime(record).toMillis();
+        } catch (IOException ex) {
+            // Cached before validators were kept
+            checked = cached.lastModified();
+        }
+        return checked + ttl;
+    }
+
+    long ttlMillis(Path path) {
+        return ttlMillis[Kind.of(path).ordinal()];
+    }
+
+    /**
+     * Checksum files are written next to each file as it is cached, and
+     * rewritten whenever it is replaced, so are as fresh as it is.
+     */
+    private static boolean isLocalChecksum(Path path, File cached) {
+        String name = cached.getName();
+        for (Digests.Kind kind : Digests.Kind.values()) {
+            String ext = "." + kind.extension;
+            if (name.endsWith(ext)) {
+                return new File(cached.getParentFile(), name.substring(0, name.length() - ext.length())).isFile();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the validators to revalidate a cached file with; if none were
+     * recorded, its modification time stands in for Last-Modified.
+     */
+    Validators validators(Path path, File cached) {
+        String mirror = null;
+        String etag = null;
+        String lastModified = null;
+        try {
+            for (String line : Files.readAllLines(record(path), UTF_8)) {
+                int eq = line.indexOf('=');
+                if (eq < 1) {
+                    continue;
+                }
+                String value = line.substring(eq + 1);
+                switch (line.substring(0, eq)) {
+                    case MIRROR:
+                        mirror = value;
+                        break;
+                    case ETAG:
+                        etag = value;
+                        break;
+                    case LAST_MODIFIED:
+                        lastModified = value;
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } catch (IOException ex) {
+            // None recorded
+        }
+        if (etag == null && lastModified == null) {
+            lastModified = httpDate(cached);
+        }
+        return new Validators(mirror, etag, lastModified);
+    }
+
+    /**
+     * Record that a path was just downloaded from, or confirmed unchanged
+     * by, a mirror; a 304 may omit validators, in which case the previous
+     * ones are kept.
+     */
+    void validated(Path path, String mirror, HttpHeaders headers, Validators previous) throws IOException {
+        if (!expires(path)) {
+            return;
+        }
+        String etag = headers.firstValue("etag").orElse(previous == null ? null : previous.etag);
+        String lastModified = headers.firstValue("last-modified")
+                .orElse(previous == null ? null : previous.lastModified);
+        List<String> lines = new ArrayList<>(3);
+        lines.add(MIRROR + "=" + mirror);
+        if (etag != null) {
+            lines.add(ETAG + "=" + etag);
+        }
+        if (lastModified != null) {
+            lines.add(LAST_MODIFIED + "=" + lastModified);
+        }
+        java.nio.file.Path record = record(path);
+        Files.createDirectories(record.getParent());
+        // Another process sharing the state dir may be writing the same record
+        java.nio.file.Path tmp = record.resolveSibling("." + record.getFileName() + "." + owner + ".tmp");
+        Files.write(tmp, lines, UTF_8);
+        Files.setLastModifiedTime(tmp, FileTime.fromMillis(clock.getAsLong()));
+        Files.move(tmp, record, REPLACE_EXISTING);
+    }
+
+    private static String httpDate(File file) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(
+                Instant.ofEpochMilli(file.lastModified()).atOffset(ZoneOffset.UTC));
+    }
+
+    private java.nio.file.Path record(Path path) {
+        return dir.resolve(path.toString());
+    }
+
+    /**
+     * What to send in <code>If-None-Match</code> and
+     * <code>If-Modified-Since</code>, and to which mirror.
+     */
+    static final class Validators {
+
+        final String mirror;
+        final String etag;
+        final String lastModified;
+
+        Validators(String mirror, String etag, String lastModified) {
+            this.mirror = mirror;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * The validators to send to a mirror - only Last-Modified, if it
+         * is not the one which sent them.
+         */
+        Validators forMirror(String mirror, File cached) {
+            if (mirror.equals(this.mirror)) {
+                return this;
+            }
+            return new Validators(mirror, null, lastModified == null ? httpDate(cached) : lastModified);
+        }
+    }
+
+    enum Kind {
+        RELEASE,
+        SNAPSHOT,
+        METADATA;
+
+        static Kind of(Path path) {
+            // PathElement.toString() escapes hyphens; Path.toString() does not
+            String str = path.toString();
+            String name = str.substring(str.lastIndexOf('/') + 1);
+            if (name.startsWith("maven-metadata")) {
+                return METADATA;
+            }
+            return str.contains("-SNAPSHOT/") ? SNAPSHOT : RELEASE;
+        }
+
+        String settingsName() {
+            return name().toLowerCase();
+        }
+    }
+}
@@ -32,6 +32,7 @@ import com.mastfrog.acteur.Response;
 import com.mastfrog.acteur.annotations.Concluders;
 import com.mastfrog.acteur.annotations.HttpCall;
 import com.mastfrog.acteur.errors.Err;
+import com.mastfrog.acteur.headers.HeaderValueType;
 import com.mastfrog.acteur.headers.Headers;
 import static com.mastfrog.acteur.headers.Headers.ACCEPT_ENCODING;
 import static com.mastfrog.acteur.headers.Headers.LAST_MODIFIED;
@@ -83,6 +84,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.StandardOpenOption;
@@ -111,7 +113,8 @@ public class GetActeur extends Acteur {
     @Inject
     GetActeur(HttpEvent req, Deferral def, Config config, FileFinder finder,
             Closables clos, DownloaderV2A dl, @Named(ACCESS_LOGGER) Logs accessLog,
-            RequestID id, ApplicationControl ctrl) throws IOException {
+            RequestID id, ApplicationControl ctrl, Prefetcher prefetcher, Freshness freshness,
+            RefreshAhead refreshAhead) throws IOException {
         this.ctrl = ctrl;
         setChunked(PREFER_CHUNKED);
         if ("true".equals(req.urlParameter("browse")) || "true".equals(req.urlParameter("index"))) {
@@ -131,9 +134,27 @@ public class GetActeur extends Acteur {
             setState(new RespondWith(Err.badRequest("Relative paths not allowed")));
             return;
         }
+        if (FileFinder.isPrivate(path)) {
+            notFound();
+            return;
+        }
+        prefetcher.requested(path);
         File file = finder.find(path.elideEmptyElements());
-        if (file != null) {
+        long expiresAt = file == null ? Long.MAX_VALUE : freshness.expiresAt(path.elideEmptyElements(), file);
+        if (file != null && req.method() != HEAD && expiresAt <= System.currentTimeMillis()) {
+            Path pth = path.elideEmptyElements();
+            File stale = file;
+            def.defer((Resumer res) -> {
+                config.debugLog("  defer and revalidate ", pth);
+                CompletableFuture<?> l = dl.revalidate(pth, stale, id, new DownloadReceiverImpl(res, config));
+                req.channel().closeFuture().addListener(cl -> {
+                    l.cancel(false);
+                });
+            });
+            next();
+        } else if (file != null) {
             config.debugLog("send existing file ", file);
+            refreshAhead.hit(path.elideEmptyElements(), file, expiresAt);
             try (Log log = accessLog.info("fetch")) {
                 log.add("path", path).add("id", id).add("cached", true);
                 add(Headers.LAST_MODIFIED, TimeUtil.fromUnixTimestamp(file.lastModified()).withZoneSameInstant(GMT));
@@ -177,9 +198,14 @@ public class GetActeur extends Acteur {
                 return;
             }
             Path pth = path.elideEmptyElements();
+            // A HEAD only needs upstream's headers, unless a download that
+            // will have them shortly is already under way
+            boolean probe = req.method() == HEAD && !dl.isInFlight(pth);
             def.defer((Resumer res) -> {
-                config.debugLog("  defer and download ", pth);
-                CompletableFuture<TempFile> l = dl.download(pth, id, new DownloadReceiverImpl(res, config));
+                config.debugLog(probe ? "  defer and probe " : "  defer and download ", pth);
+                CompletableFuture<?> l = probe
+                        ? dl.probe(pth, id, new DownloadReceiverImpl(res, config))
+                        : dl.download(pth, id, new DownloadReceiverImpl(res, config));
                 req.channel().closeFuture().addListener(cl -> {
                     l.cancel(false);
                 });
@@ -192,6 +218,7 @@ public class GetActeur extends Acteur {
         }
     }
 
+    private static final HeaderValueType<CharSequence> WARNING = Headers.header("Warning");
     private static final Pattern VERSION_PATTERN = Pattern.compile("^\\d+\\.\\d+.*?");
     private static final MimeType ANY_APPLICATION_TYPE = MimeType.create("application", "*");
 
@@ -237,16 +264,55 @@ public class GetActeur extends Acteur {
                     if (res.headers.contains(LAST_MODIFIED.name())) {
                         add(LAST_MODIFIED, LAST_MODIFIED.toValue(res.headers.get(LAST_MODIFIED.name())));
                     }
-                    if (evt.method() != HEAD) {
+                    if (res.headers.contains(WARNING.name())) {
+                        // A stale copy, served because upstream failed or was slow
+                        add(WARNING, res.headers.get(WARNING.name()));
+                        log.add("stale", true);
+                    }
+                    if (res.isHeadersOnly()) {
+                        // HEAD on a cache miss - nothing was downloaded
+                        log.add("probed", true);
+                        String length = res.headers.get(CONTENT_LENGTH.name());
+                        if (length != null) {
+                            add(CONTENT_LENGTH, Long.parseLong(length));
+                            // With no body writer at all, acteur would set
+                            // the length to zero
+                            ChannelFutureListener noBody = f -> {
+                                ctrl.logFailure(f.channel().writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT));
+                            };
+                            setResponseBodyWriter(noBody);
+                        }
+                    } else if (res.isStream()) {
+                        // Still downloading - send bytes as they arrive
+                        log.add("streaming", res.stream.path().toString());
+                        String length = res.headers.get(CONTENT_LENGTH.name());
+                        if (length != null) {
+                            add(CONTENT_LENGTH, Long.parseLong(length));
+                        }
+                        add(Headers.CONTENT_ENCODING, HttpHeaderValues.IDENTITY);
+                        setChunked(length == null);
+                        if (evt.method() != HEAD) {
+                            add(Headers.CACHE_CONTROL, CacheControl.PUBLIC_MUST_REVALIDATE);
+                            setResponseBodyWriter(new TailWriter(res.stream, accessLog, ctrl,
+                                    length == null ? -1 : Long.parseLong(length)));
+                        }
+                    } else if (evt.method() != HEAD) {
                         add(Headers.CACHE_CONTROL, CacheControl.PUBLIC_MUST_REVALIDATE);
                         if (res.isFile()) {
                             log.add("file", res.file.getPath());
 //                            setResponseBodyWriter(new FW(res.file, accessLog, config, config.bufferSize, true, ctrl));
                             setResponseBodyWriter(writerFor(evt, res.file, accessLog, config, ctrl, response()));
                         } else {
-                            log.add("internalBuffer", true);
+                            // Small enough to have been downloaded into memory
+                            log.add("inMemory", res.buf.readableBytes());
+                            add(Headers.CONTENT_ENCODING, HttpHeaderValues.IDENTITY);
+                            if (!PREFER_CHUNKED) {
+                                add(CONTENT_LENGTH, (long) res.buf.readableBytes());
+                            }
                             setResponseBodyWriter(new Responder2(res.buf, config, PREFER_CHUNKED, ctrl));
                         }
+                    } else if (res.buf != null) {
+                        res.buf.release();
                     }
                     log.add("path", evt.path()).add("id", id).add("cached", false);
                 }
@@ -475,6 +541,110 @@ public class GetActeur extends Acteur {
         }
     }
 
+    /**
+     * Sends a file which is still being downloaded, reading each chunk as it
+     * becomes available, and only reading the next one once the previous
+     * one has been flushed, so a slow client is never handed more than one
+     * chunk at a time.  The download itself proceeds at upstream speed
+     * regardless.
+     */
+    static final class TailWriter implements ChannelFutureListener {
+
+        private static final int CHUNK_SIZE = 64 * 1024;
+        private final TempFile file;
+        private final Logs logger;
+        private final ApplicationControl ctrl;
+        private final boolean chunked;
+        private final long length;
+        private FileChannel channel;
+        private long position;
+
+        TailWriter(TempFile file, Logs logger, ApplicationControl ctrl, long length) {
+            this.file = file;
+            this.logger = logger;
+            this.ctrl = ctrl;
+            this.length = length;
+            this.chunked = length < 0;
+        }
+
+        private void closeChannel() {
+            FileChannel ch = channel;
+            if (ch != null) {
+                try {
+                    ch.close();
+                } catch (IOException ex) {
+                    logger.warn("tail-close").add(ex).close();
+                }
+            }
+        }
+
+        @Override
+        public void operationComplete(ChannelFuture f) throws Exception {
+            if (f.isDone() && !f.isSuccess()) {
+                closeChannel();
+                if (f.cause() != null) {
+                    logger.warn("tail").add("file", file.path().toString()).add(f.cause()).close();
+                }
+                f.channel().close();
+                return;
+            }
+            try {
+                if (channel == null) {
+                    channel = file.openForRead();
+                    f.channel().closeFuture().addListener(cf -> closeChannel());
+                }
+                // Check closed before length - once closed, the length is final
+                boolean closed = file.isClosed();
+                long available = file.written();
+                if (!chunked && position >= length) {
+                    // The client has the whole body, so the response need not
+                    // wait for the file to be verified and cached - which,
+                    // for a file downloaded in ranges, can take a while
+                    closeChannel();
+                    ctrl.logFailure(f.channel().writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT));
+                } else if (position < available) {
+                    int count = (int) Math.min(CHUNK_SIZE, available - position);
+                    ByteBuf buf = f.channel().alloc().ioBuffer(count);
+                    position += buf.writeBytes(channel, position, count);
+                    Object msg = chunked ? new DefaultHttpContent(buf) : buf;
+                    ctrl.logFailure(f.channel().writeAndFlush(msg)).addListener(this);
+                } else if (closed) {
+                    closeChannel();
+                    if (file.isCommitted()) {
+                        ctrl.logFailure(f.channel().writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT));
+                    } else {
+                        // Upstream failed part way through; all we can do is
+                        // hang up and let the client see a truncated response
+                        logger.warn("tail-abandoned").add("file", file.path().toString())
+                                .add("sent", position).close();
+                        f.channel().close();
+                    }
+                } else {
+                    file.whenAvailable(position, () -> {
+                        f.channel().eventLoop().execute(() -> {
+                            try {
+                                operationComplete(f);
+                            } catch (Exception ex) {
+                                closeChannel();
+                                f.channel().close();
+                                logger.warn("tail").add(ex).close();
+                            }
+                        });
+                    });
+                }
+            } catch (Exception ex) {
+                closeChannel();
+                f.channel().close();
+                logger.warn("tail").add("file", file.path().toString()).add(ex).close();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "TailWriter-" + file.path().getFileName();
+        }
+    }
+
     static class Responder2 implements ChannelFutureListener {
 
         private final ByteBuf buf;
@@ -498,15 +668,17 @@ public class GetActeur extends Acteur {
         public void operationComplete(ChannelFuture future) throws Exception {
             config.debugLog("use responder2 with ", buf.readableBytes());
             if (future.isDone() && !future.isSuccess()) {
+                buf.release();
                 if (future.cause() != null) {
                     future.cause().printStackTrace();
                 }
                 return;
             }
+            // The buffer is ours to hand off
             if (chunked) {
-                ctrl.logFailure(future.channel().writeAndFlush(new DefaultLastHttpContent(buf.retain())));
+                ctrl.logFailure(future.channel().writeAndFlush(new DefaultLastHttpContent(buf)));
             } else {
-                ctrl.logFailure(future.channel().writeAndFlush(buf.retain()));
+                ctrl.logFailure(future.channel().writeAndFlush(buf));
             }
         }
     }
@@ -539,6 +711,18 @@ public class GetActeur extends Acteur {
             r.resume(new DownloadResult(status, file, headers));
         }
 
+        @Override
+        public void streaming(HttpResponseStatus status, TempFile file, HttpHeaders headers) {
+            config.debugLog("resume streaming ", file.path());
+            r.resume(new DownloadResult(status, file, headers));
+        }
+
+        @Override
+        public void probed(HttpResponseStatus status, HttpHeaders headers) {
+            config.debugLog("resume probed ", status);
+            r.resume(new DownloadResult(status, headers));
+        }
+
         @Override
         public void failed(HttpResponseStatus status, String msg) {
             config.debugLog("  fail ", status, msg);
@@ -0,0 +1,176 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.tinymavenproxy;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.compression.DecompressionException;
+import io.netty.handler.codec.compression.JdkZlibDecoder;
+import io.netty.handler.codec.compression.ZlibWrapper;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Inflates a gzip-encoded response body as it arrives, so it is written
+ * to the cache - and streamed to clients, and digested - as the file it
+ * encodes, while keeping the compressed bytes as they came, to be saved as
+ * the gzipped copy of the file clients accepting gzip are sent, rather than
+ * compressing the file all over again.  Only bodies of files which compress
+ * well, which are small, are requested gzipped, so the compressed bytes are
+ * kept in memory - up to a limit, past which they are dropped and the
+ * gzipped copy is made the usual way.
+ *
+ * @author Tim Boudreau
+ */
+final class GzipTransfer {
+
+    static final String GZIP = "gzip";
+    private static final int MAX_KEPT = 1024 * 1024;
+    private final JdkZlibDecoder decoder = new JdkZlibDecoder(ZlibWrapper.GZIP);
+    private final EmbeddedChannel inflater = new EmbeddedChannel(decoder);
+    private ByteArrayOutputStream kept = new ByteArrayOutputStream(4096);
+    private long compressed;
+    private long inflated;
+
+    static boolean isGzipped(HttpResponse.ResponseInfo info) {
+        return info.headers().firstValue("content-encoding")
+                .map(GZIP::equalsIgnoreCase).orElse(false);
+    }
+
+    /**
+     * The response as clients should see it once inflated, without the
+     * encoding or the compressed length.
+     */
+    static HttpResponse.ResponseInfo inflated(HttpResponse.ResponseInfo info) {
+        HttpHeaders headers = HttpHeaders.of(info.headers().map(), (name, value) -> {
+            return !"content-encoding".equalsIgnoreCase(name) && !"content-length".equalsIgnoreCase(name);
+        });
+        return new HttpResponse.ResponseInfo() {
+            @Override
+            public int statusCode() {
+                return info.statusCode();
+            }
+
+            @Override
+            public HttpHeaders headers() {
+                return headers;
+            }
+
+            @Override
+            public java.net.http.HttpClient.Version version() {
+                return info.version();
+            }
+        };
+    }
+
+    /**
+     * Inflate the next part of the body; the result may be empty, if the
+     * inflater needs more input first.
+     */
+    List<ByteBuffer> inflate(List<ByteBuffer> item) throws IOException {
+        for (int i = 0; i < item.size(); i++) {
+            ByteBuffer buf = item.get(i);
+            int length = buf.remaining();
+            compressed += length;
+            if (kept != null) {
+                if (kept.size() + length > MAX_KEPT) {
+                    kept = null;
+                } else if (buf.hasArray()) {
+                    kept.write(buf.array(), buf.arrayOffset() + buf.position(), length);
+                } else {
+                    byte[] bytes = new byte[length];
+                    buf.duplicate().get(bytes);
+                    kept.write(bytes);
+                }
+            }
+            try {
+                // A copy - the decoder keeps input it cannot use yet, such as
+                // a header split across reads, after the caller frees it
+                inflater.writeInbound(Unpooled.copiedBuffer(buf.duplicate()));
+            } catch (DecompressionException ex) {
+                throw new IOException("Bad gzip body", ex);
+            }
+        }
+        return drain();
+    }
+
+    /**
+     * The end of the body has arrived; returns whatever remains to be
+     * inflated, failing if the gzip stream was cut short.
+     */
+    List<ByteBuffer> finish() throws IOException {
+        try {
+            inflater.finish();
+        } catch (DecompressionException ex) {
+            throw new IOException("Bad gzip body", ex);
+        }
+        List<ByteBuffer> result = drain();
+        if (!decoder.isClosed()) {
+            throw new IOException("Truncated gzip body after " + compressed + " bytes");
+        }
+        return result;
+    }
+
+    private List<ByteBuffer> drain() {
+        List<ByteBuffer> result = null;
+        ByteBuf buf;
+        while ((buf = inflater.readInbound()) != null) {
+            try {
+                ByteBuffer out = ByteBuffer.allocate(buf.readableBytes());
+                buf.readBytes(out);
+                out.flip();
+                inflated += out.remaining();
+                if (result == null) {
+                    result = new ArrayList<>(2);
+                }
+                result.add(out);
+            } finally {
+                buf.release();
+            }
+        }
+        return result == null ? Collections.emptyList() : result;
+    }
+
+    long compressedBytes() {
+        return compressed;
+    }
+
+    long inflatedBytes() {
+        return inflated;
+    }
+
+    /**
+     * The body as it arrived, or null if it was too large to keep.
+     */
+    byte[] gzipped() {
+        return kept == null ? null : kept.toByteArray();
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.tinymavenproxy;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.mastfrog.acteur.server.ServerModule;
+import com.mastfrog.bunyan.java.v2.Logs;
+import static com.mastfrog.tinymavenproxy.TinyMavenProxy.DOWNLOAD_LOGGER;
+import com.mastfrog.url.URL;
+import com.mastfrog.util.libversion.VersionInfo;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.URISyntaxException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * A circuit breaker per mirror: after a run of requests to a mirror which
+ * fail without getting any response - connection failures and timeouts -
+ * it is opened, and no more traffic is sent to it until a periodic
+ * <code>HEAD</code> request to its root gets a response, of any status.
+ * Any response at all closes it, and resets the run.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class MirrorBreakers {
+
+    private final Map<String, Breaker> breakers = new LinkedHashMap<>();
+    private final int threshold;
+    private final Function<URL, CompletableFuture<?>> prober;
+    private final Executor probeLater;
+    private final LongSupplier clock;
+    private final Logs logs;
+
+    @Inject
+    MirrorBreakers(Config config, Provider<MirrorBulkheads> bulkheads, VersionInfo ver,
+            @Named(DOWNLOAD_LOGGER) Logs logs,
+            @Named(ServerModule.BACKGROUND_THREAD_POOL_NAME) ExecutorService pool) {
+        // The bulkheads depend on this, so are only looked up once needed
+        this(config, config.breakerFailures, mirror -> probe(bulkheads.get(), DownloaderV2A.userAgent(ver), mirror),
+                CompletableFuture.delayedExecutor(config.breakerProbeSeconds, SECONDS, pool),
+                System::nanoTime, logs.child("breaker", true));
+    }
+
+    MirrorBreakers(Iterable<URL> mirrors, int threshold, Function<URL, CompletableFuture<?>> prober,
+            Executor probeLater, LongSupplier clock, Logs logs) {
+        this.threshold = threshold;
+        this.prober = prober;
+        this.probeLater = probeLater;
+        this.clock = clock;
+        this.logs = logs;
+        for (URL u : mirrors) {
+            breaker(u);
+        }
+    }
+
+    private static CompletableFuture<?> probe(MirrorBulkheads bulkheads, String userAgent, URL mirror) {
+        try {
+            return bulkheads.probe(mirror, HttpRequest.newBuilder(mirror.toURI())
+                    .header("User-Agent", userAgent)
+                    .timeout(Duration.ofSeconds(10))
+                    .method("HEAD", BodyPublishers.noBody())
+                    .build());
+        } catch (URISyntaxException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+    }
+
+    private Breaker breaker(URL mirror) {
+        synchronized (breakers) {
+            return breakers.computeIfAbsent(mirror.toString(), m -> new Breaker(mirror));
+        }
+    }
+
+    boolean isOpen(URL mirror) {
+        return threshold > 0 && breaker(mirror).isOpen();
+    }
+
+    /**
+     * Remove mirrors whose breakers are open from a list.
+     */
+    List<URL> filter(List<URL> mirrors) {
+        if (threshold <= 0) {
+            return mirrors;
+        }
+        List<URL> result = null;
+        for (int i = 0; i < mirrors.size(); i++) {
+            URL u = mirrors.get(i);
+            if (breaker(u).shortCircuit()) {
+                if (result == null) {
+                    result = new ArrayList<>(mirrors.subList(0, i));
+                }
+            } else if (result != null) {
+                result.add(u);
+            }
+        }
+        return result == null ? mirrors : result;
+    }
+
+    /**
+     * A mirror sent response headers.
+     */
+    void succeeded(URL mirror) {
+        if (threshold > 0) {
+            breaker(mirror).succeeded("response");
+        }
+    }
+
+    /**
+     * A request to a mirror failed before it sent any response.
+     */
+    void failed(URL mirror, Throwable thrown) {
+        if (threshold > 0 && countsAgainst(thrown)) {
+            breaker(mirror).failed(thrown);
+        }
+    }
+
+    private static boolean countsAgainst(Throwable thrown) {
+        if (thrown instanceof CompletionException && thrown.getCause() != null) {
+            thrown = thrown.getCause();
+        }
+        // Timeouts and connection failures, not cancellation
+        return thrown instanceof IOException && !(thrown instanceof CircuitOpenException);
+    }
+
+    Map<String, Object> stats() {
+        List<Breaker> all;
+        synchronized (breakers) {
+            all = new ArrayList<>(breakers.values());
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        for (Breaker b : all) {
+            result.put(b.mirror.toString(), b.toMap());
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * Fails a request which would otherwise have been sent to a mirror
+     * whose breaker is open.
+     */
+    static final class CircuitOpenException extends ConnectException {
+
+        CircuitOpenException(String msg) {
+            super(msg);
+        }
+    }
+
+    final class Breaker {
+
+        private final URL mirror;
+        private int consecutiveFailures;
+        private boolean open;
+        private long openedAt;
+        private long opens;
+        private long shortCircuited;
+        private long probes;
+
+        Breaker(URL mirror) {
+            this.mirror = mirror;
+        }
+
+        synchronized boolean isOpen() {
+            return open;
+        }
+
+        synchronized boolean shortCircuit() {
+            if (open) {
+                shortCircuited++;
+            }
+            return open;
+        }
+
+        void succeeded(String how) {
+            synchronized (this) {
+                consecutiveFailures = 0;
+                if (!open) {
+                    return;
+                }
+                open = false;
+            }
+            if (logs != null) {
+                logs.warn("closed").add("mirror", mirror.toString()).add("by", how)
+                        .add("openMillis", (clock.getAsLong() - openedAt) / 1_000_000).close();
+            }
+        }
+
+        void failed(Throwable thrown) {
+            synchronized (this) {
+                if (open || ++consecutiveFailures < threshold) {
+                    return;
+                }
+                open = true;
+                opens++;
+                openedAt = clock.getAsLong();
+            }
+            if (logs != null) {
+                logs.error("opened").add("mirror", mirror.toString())
+                        .add("failures", threshold).add("last", thrown.toString()).close();
+            }
+            probeLater.execute(this::probe);
+        }
+
+        private void probe() {
+            synchronized (this) {
+                if (!open) {
+                    return;
+                }
+                probes++;
+            }
+            CompletableFuture<?> fut;
+            try {
+                fut = prober.apply(mirror);
+            } catch (RuntimeException ex) {
+                fut = CompletableFuture.failedFuture(ex);
+            }
+            fut.whenComplete((response, thrown) -> {
+                if (thrown == null) {
+                    succeeded("probe");
+                } else {
+                    if (logs != null) {
+                        logs.debug("probe-failed").add("mirror", mirror.toString())
+                                .add("reason", thrown.toString()).close();
+                    }
+                    probeLater.execute(this::probe);
+                }
+            });
+        }
+
+        synchronized Map<String, Object> toMap() {
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("state", open ? "open" : "closed");
+            if (open) {
+                result.put("openMillis", (clock.getAsLong() - openedAt) / 1_000_000D);
+            }
+            result.put("consecutiveFailures", consecutiveFailures);
+            result.put("opens", opens);
+            result.put("shortCircuited", shortCircuited);
+            result.put("probes", probes);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.tinymavenproxy;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.mastfrog.url.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+
+/**
+ * Limits the number of concurrent requests to each mirror, queueing the
+ * excess in traffic class order and then arrival order, so a cold build
+ * storming the proxy does not open hundreds of connections to one host at
+ * once, and metadata and POM fetches do not wait behind jars.  A request
+ * holds its permit until its response body has been fully received or it
+ * is cancelled.  Requests to a mirror whose circuit breaker is open fail
+ * as they come off the queue, without being sent.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class MirrorBulkheads {
+
+    private final HttpClient client;
+    private final Config config;
+    private final LongSupplier clock;
+    private final MirrorBreakers breakers;
+    private final Map<String, Bulkhead> bulkheads = new LinkedHashMap<>();
+    private static final Comparator<Waiter<?>> QUEUE_ORDER
+            = Comparator.<Waiter<?>>comparingInt(w -> w.cls.ordinal())
+                    .thenComparingLong(w -> w.sequence);
+
+    @Inject
+    MirrorBulkheads(HttpClient client, Config config, MirrorBreakers breakers) {
+        this(client, config, breakers, System::nanoTime);
+    }
+
+    MirrorBulkheads(HttpClient client, Config config, MirrorBreakers breakers, LongSupplier clock) {
+        this.client = client;
+        this.config = config;
+        this.breakers = breakers;
+        this.clock = clock;
+        for (URL u : config) {
+            bulkhead(u);
+        }
+    }
+
+    private Bulkhead bulkhead(URL mirror) {
+        synchronized (bulkheads) {
+            return bulkheads.computeIfAbsent(mirror.toString(),
+                    m -> new Bulkhead(mirror, config.maxConcurrent(mirror)));
+        }
+    }
+
+    /**
+     * Send a request to a mirror as soon as it has a free slot.  The passed
+     * runnable is run at the moment the request is actually sent, so callers
+     * can time the request itself rather than its wait in the queue.
+     * Cancelling the returned future removes the request from the queue, or
+     * aborts it if it has already been sent.
+     */
+    <T> CompletableFuture<HttpResponse<T>> send(URL mirror, HttpRequest req,
+            BodyHandler<T> handler, TrafficClass cls, Runnable onDispatch) {
+        return bulkhead(mirror).send(req, handler, cls, onDispatch, false);
+    }
+
+    /**
+     * Send a circuit breaker's probe to a mirror, which takes a slot like
+     * any other request, but is sent even though the breaker is open, and
+     * whose result is left to the breaker to judge.
+     */
+    CompletableFuture<HttpResponse<Void>> probe(URL mirror, HttpRequest req) {
+        return bulkhead(mirror).send(req, BodyHandlers.discarding(), TrafficClass.METADATA, () -> {
+        }, true);
+    }
+
+    Map<String, Object> stats() {
+        List<Bulkhead> all;
+        synchronized (bulkheads) {
+            all = new ArrayList<>(bulkheads.values());
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        for (Bulkhead b : all) {
+            result.put(b.mirror.toString(), b.toMap());
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    final class Bulkhead {
+
+        private final URL mirror;
+        private final int limit;
+        private final PriorityQueue<Waiter<?>> queue = new PriorityQueue<>(QUEUE_ORDER);
+        private long sequence;
+        private int active;
+        private int maxQueued;
+        private long sent;
+        private long waited;
+        private long totalWaitNanos;
+        private long maxWaitNanos;
+
+        Bulkhead(URL mirror, int limit) {
+            this.mirror = mirror;
+            this.limit = limit;
+        }
+
+        <T> CompletableFuture<HttpResponse<T>> send(HttpRequest req, BodyHandler<T> handler,
+                TrafficClass cls, Runnable onDispatch, boolean probe) {
+            Waiter<T> waiter = new Waiter<>(req, handler, cls, onDispatch, probe, clock.getAsLong());
+            boolean now;
+            synchronized (this) {
+                waiter.sequence = sequence++;
+                // Never jump the queue, even if a slot just came free
+                now = active < limit && queue.isEmpty();
+                if (now) {
+                    active++;
+                } else {
+                    queue.add(waiter);
+                    maxQueued = Math.max(maxQueued, queue.size());
+                }
+            }
+            waiter.result.whenComplete((response, thrown) -> {
+                if (thrown instanceof CancellationException) {
+                    cancelled(waiter);
+                }
+            });
+            if (now) {
+                dispatch(waiter);
+            }
+            return waiter.result;
+        }
+
+        private void cancelled(Waiter<?> waiter) {
+            synchronized (this) {
+                if (queue.remove(waiter)) {
+                    return;
+                }
+            }
+            waiter.abort();
+        }
+
+        private void dispatch(Waiter<?> waiter) {
+            synchronized (this) {
+                sent++;
+            }
+            waiter.start(this);
+        }
+
+        void release() {
+            Waiter<?> next;
+            synchronized (this) {
+                next = queue.poll();
+                if (next == null) {
+                    active--;
+                    return;
+                }
+                // Hand the slot straight to the next in line
+                long wait = clock.getAsLong() - next.enqueued;
+                waited++;
+                totalWaitNanos += wait;
+                maxWaitNanos = Math.max(maxWaitNanos, wait);
+            }
+            dispatch(next);
+        }
+
+        synchronized Map<String, Object> toMap() {
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("limit", limit);
+            result.put("active", active);
+            result.put("queued", queue.size());
+            result.put("maxQueued", maxQueued);
+            if (!queue.isEmpty()) {
+                long oldest = Long.MAX_VALUE;
+                for (Waiter<?> w : queue) {
+                    oldest = Math.min(oldest, w.enqueued);
+                }
+                result.put("oldestWaitMillis", (clock.getAsLong() - oldest) / 1_000_000D);
+            }
+            result.put("sent", sent);
+            result.put("waited", waited);
+            result.put("averageWaitMillis", waited == 0 ? 0D : (totalWaitNanos / (double) waited) / 1_000_000D);
+            result.put("maxWaitMillis", maxWaitNanos / 1_000_000D);
+            return result;
+        }
+    }
+
+    private final class Waiter<T> {
+
+        final CompletableFuture<HttpResponse<T>> result = new CompletableFuture<>();
+        private final HttpRequest req;
+        private final BodyHandler<T> handler;
+        private final Runnable onDispatch;
+        private final boolean probe;
+        final TrafficClass cls;
+        final long enqueued;
+        long sequence;
+        private CompletableFuture<HttpResponse<T>> sent;
+
+        Waiter(HttpRequest req, BodyHandler<T> handler, TrafficClass cls, Runnable onDispatch,
+                boolean probe, long enqueued) {
+            this.req = req;
+            this.handler = handler;
+            this.probe = probe;
+            this.cls = cls;
+            this.onDispatch = onDispatch;
+            this.enqueued = enqueued;
+        }
+
+        void start(Bulkhead bulkhead) {
+            if (result.isDone()) {
+                // Cancelled after being taken off the queue
+                bulkhead.release();
+                return;
+            }
+            if (!probe && breakers.isOpen(bulkhead.mirror)) {
+                bulkhead.release();
+                result.completeExceptionally(new MirrorBreakers.CircuitOpenException(
+                        "Circuit open for " + bulkhead.mirror));
+                return;
+            }
+            onDispatch.run();
+            AtomicBoolean responded = new AtomicBoolean();
+            BodyHandler<T> h = probe ? handler : info -> {
+                responded.set(true);
+                breakers.succeeded(bulkhead.mirror);
+                return handler.apply(info);
+            };
+            CompletableFuture<HttpResponse<T>> fut;
+            try {
+                fut = client.sendAsync(req, h);
+            } catch (RuntimeException ex) {
+                bulkhead.release();
+                result.completeExceptionally(ex);
+                return;
+            }
+            synchronized (this) {
+                sent = fut;
+            }
+            fut.whenComplete((response, thrown) -> {
+                // Before the slot goes to the next request, so that it is
+                // not sent if this failure opens the breaker
+                if (thrown != null && !probe && !responded.get()) {
+                    breakers.failed(bulkhead.mirror, thrown);
+                }
+                bulkhead.release();
+                if (thrown != null) {
+                    result.completeExceptionally(thrown);
+                } else {
+                    result.complete(response);
+                }
+            });
+            if (result.isCancelled()) {
+                fut.cancel(true);
+            }
+        }
+
+        void abort() {
+            CompletableFuture<HttpResponse<T>> fut;
+            synchronized (this) {
+                fut = sent;
+            }
+            if (fut != null) {
+                fut.cancel(true);
+            }
+        }
+    }
+}
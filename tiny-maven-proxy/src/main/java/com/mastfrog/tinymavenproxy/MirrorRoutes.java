@@ -0,0 +1,249 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.tinymavenproxy;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.mastfrog.function.throwing.ThrowingRunnable;
+import com.mastfrog.shutdown.hooks.ShutdownHooks;
+import com.mastfrog.url.Path;
+import com.mastfrog.url.URL;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.file.Files;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Learns which mirror serves which groupId, as a trie over path elements,
+ * so a miss under a known groupId prefix can go to the mirror that served
+ * it before instead of every mirror.  Persisted to the state dir on
+ * shutdown.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class MirrorRoutes implements ThrowingRunnable {
+
+    static final String FILE_NAME = "mirror-routes";
+    private final Node root = new Node();
+    private final java.nio.file.Path file;
+    private final String owner;
+    private final Map<String, URL> mirrors = new HashMap<>();
+    private boolean dirty;
+
+    @Inject
+    @SuppressWarnings("LeakingThisInConstructor")
+    MirrorRoutes(Config config, @Named("runId") String runId, ShutdownHooks onShutdown) throws IOException {
+        this(config.stateDir.toPath().resolve(FILE_NAME), runId, config);
+        onShutdown.addLastThrowing(this);
+    }
+
+    MirrorRoutes(java.nio.file.Path file, String owner, Iterable<URL> mirrors) throws IOException {
+        this.file = file;
+        this.owner = owner;
+        for (URL u : mirrors) {
+            this.mirrors.put(u.toString(), u);
+        }
+        load();
+    }
+
+    /**
+     * The number of elements of a path which make up its groupId - all but
+     * the artifactId, version and file name.
+     */
+    private static int groupLength(Path path) {
+        return path.size() - 3;
+    }
+
+    /**
+     * Record that a mirror successfully served a path.
+     */
+    synchronized void learn(Path path, URL mirror) {
+        int length = groupLength(path);
+        if (length < 1) {
+            return;
+        }
+        Node node = root;
+        for (int i = 0; i < length; i++) {
+            node = node.child(path.getElement(i).toString());
+        }
+        if (!mirror.equals(node.mirror)) {
+            node.mirror = mirror;
+            dirty = true;
+        }
+    }
+
+    /**
+     * Get the mirror which served the longest groupId prefix of a path, or
+     * null if none is known.
+     */
+    synchronized URL route(Path path) {
+        URL result = null;
+        Node node = root;
+        for (int i = 0; i < path.size() - 1 && node != null; i++) {
+            node = node.get(path.getElement(i).toString());
+            if (node != null && node.mirror != null) {
+                result = node.mirror;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reorder a list of mirrors so that the one which is known to serve
+     * this path's groupId, if any, comes first.
+     */
+    List<URL> prefer(Path path, List<URL> mirrors) {
+        URL routed = route(path);
+        if (routed == null || !mirrors.contains(routed) || mirrors.get(0).equals(routed)) {
+            return mirrors;
+        }
+        List<URL> result = new ArrayList<>(mirrors.size());
+        result.add(routed);
+        for (URL u : mirrors) {
+            if (!u.equals(routed)) {
+                result.add(u);
+            }
+        }
+        return result;
+    }
+
+    synchronized int size() {
+        return root.count();
+    }
+
+    synchronized Map<String, String> routes() {
+        Map<String, String> result = new TreeMap<>();
+        root.collect(new StringBuilder(), result);
+        return result;
+    }
+
+    private void load() throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (BufferedReader in = Files.newBufferedReader(file, UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab < 1) {
+                    continue;
+                }
+                // Routes to mirrors no longer configured are dropped
+                URL mirror = mirrors.get(line.substring(tab + 1));
+                if (mirror == null) {
+                    continue;
+                }
+                Node node = root;
+                for (String element : line.substring(0, tab).split("/")) {
+                    if (!element.isEmpty()) {
+                        node = node.child(element);
+                    }
+                }
+                if (node != root) {
+                    node.mirror = mirror;
+                }
+            }
+        }
+    }
+
+    synchronized void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        Files.createDirectories(file.getParent());
+        // Other processes sharing the state dir save to the same file
+        java.nio.file.Path tmp = file.resolveSibling(FILE_NAME + "." + owner + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(tmp, UTF_8)) {
+            for (Map.Entry<String, String> e : routes().entrySet()) {
+                out.write(e.getKey());
+                out.write('\t');
+                out.write(e.getValue());
+                out.write('\n');
+            }
+        }
+        Files.move(tmp, file, REPLACE_EXISTING, ATOMIC_MOVE);
+        dirty = false;
+    }
+
+    @Override
+    public void run() throws Exception {
+        save();
+    }
+
+    private static final class Node {
+
+        private Map<String, Node> children;
+        private URL mirror;
+
+        Node get(String element) {
+            return children == null ? null : children.get(element);
+        }
+
+        Node child(String element) {
+            if (children == null) {
+                // Most groupId elements have exactly one child
+                children = new HashMap<>(2);
+            }
+            return children.computeIfAbsent(element, e -> new Node());
+        }
+
+        int count() {
+            int result = mirror == null ? 0 : 1;
+            if (children != null) {
+                for (Node kid : children.values()) {
+                    result += kid.count();
+                }
+            }
+            return result;
+        }
+
+        void collect(StringBuilder prefix, Map<String, String> into) {
+            if (mirror != null) {
+                into.put(prefix.toString(), mirror.toString());
+            }
+            if (children != null) {
+                int length = prefix.length();
+                for (Map.Entry<String, Node> e : children.entrySet()) {
+                    if (length > 0) {
+                        prefix.append('/');
+                    }
+                    prefix.append(e.getKey());
+                    e.getValue().collect(prefix, into);
+                    prefix.setLength(length);
+                }
+            }
+        }
+    }
+}
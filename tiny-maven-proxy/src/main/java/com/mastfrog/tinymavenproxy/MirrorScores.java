@@ -0,0 +1,311 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.tinymavenproxy;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.mastfrog.url.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import java.util.function.LongSupplier;
+
+/**
+ * Tracks exponentially weighted moving averages of header latency,
+ * throughput and success rate for each mirror, and ranks mirrors by the
+ * expected cost of fetching a typical artifact from them.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class MirrorScores {
+
+    private static final double ALPHA = 0.3;
+    private static final double MIN_SUCCESS_RATE = 0.05;
+    private static final double REFERENCE_BYTES = 64 * 1024;
+    private static final int LATENCY_WINDOW = 64;
+    private static final int MIN_PERCENTILE_SAMPLES = 8;
+    private static final long MIN_HEDGE_DELAY_MILLIS = 20;
+    private final Map<String, Score> scores = new LinkedHashMap<>();
+    private final Config config;
+    private final long staleNanos;
+    private final LongSupplier clock;
+    private final long defaultHedgeDelayMillis;
+
+    @Inject
+    MirrorScores(Config config) {
+        this(config, System::nanoTime);
+    }
+
+    MirrorScores(Config config, LongSupplier clock) {
+        this.config = config;
+        this.clock = clock;
+        this.staleNanos = NANOSECONDS.convert(config.mirrorScoreStaleSeconds, SECONDS);
+        this.defaultHedgeDelayMillis = config.hedgeDelayMillis;
+        for (URL u : config) {
+            scores.put(u.toString(), new Score(u));
+        }
+    }
+
+    Score score(URL mirror) {
+        synchronized (scores) {
+            return scores.computeIfAbsent(mirror.toString(), m -> new Score(mirror));
+        }
+    }
+
+    /**
+     * Start timing a request to a mirror.
+     */
+    Sample start(URL mirror) {
+        return new Sample(score(mirror), clock.getAsLong());
+    }
+
+    /**
+     * Returns the configured mirrors, cheapest first; mirrors with no
+     * recent samples sort first, in configuration order, so that they get
+     * (re)measured.
+     */
+    List<URL> rank() {
+        List<URL> result = new ArrayList<>();
+        config.forEach(result::add);
+        return rank(result);
+    }
+
+    List<URL> rank(List<URL> mirrors) {
+        long now = clock.getAsLong();
+        Map<URL, Double> costs = new LinkedHashMap<>();
+        for (URL u : mirrors) {
+            costs.put(u, score(u).cost(now, staleNanos));
+        }
+        List<URL> result = new ArrayList<>(mirrors);
+        // List.sort is stable, so ties stay in configuration order
+        result.sort(Comparator.comparingDouble(costs::get));
+        return result;
+    }
+
+    /**
+     * How long to wait for response headers from a mirror before hedging
+     * with a request to the next one - its recent 95th percentile header
+     * latency, or the configured default if there are too few samples.
+     */
+    long hedgeDelayMillis(URL mirror) {
+        double p95 = score(mirror).percentileMillis(0.95);
+        if (Double.isNaN(p95)) {
+            return defaultHedgeDelayMillis;
+        }
+        return Math.max(MIN_HEDGE_DELAY_MILLIS, (long) Math.ceil(p95));
+    }
+
+    Map<String, Object> stats() {
+        long now = clock.getAsLong();
+        List<Score> all;
+        synchronized (scores) {
+            all = new ArrayList<>(scores.values());
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        for (Score s : all) {
+            result.put(s.mirror.toString(), s.toMap(now, staleNanos));
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * Timing for one request to one mirror.
+     */
+    final class Sample {
+
+        private final Score score;
+        private volatile long started;
+        private volatile long headersAt;
+        private volatile boolean gotHeaders;
+
+        Sample(Score score, long started) {
+            this.score = score;
+            this.started = started;
+        }
+
+        URL mirror() {
+            return score.mirror;
+        }
+
+        boolean hasHeaders() {
+            return gotHeaders;
+        }
+
+        /**
+         * The request has left the queue and actually been sent - time
+         * spent waiting for a slot says nothing about the mirror.
+         */
+        void dispatched() {
+            started = clock.getAsLong();
+        }
+
+        /**
+         * Response headers arrived.
+         */
+        void headers(int status) {
+            long now = clock.getAsLong();
+            headersAt = now;
+            gotHeaders = true;
+            score.latency(now, now - started);
+            if (status == 404 || status == 410) {
+                // Most mirrors lack most paths, which says nothing of how
+                // healthy they are
+                score.notFound(now);
+            } else if (status > 399) {
+                score.failed(now);
+            }
+        }
+
+        /**
+         * The body was fully received.
+         */
+        void completed(long bytes) {
+            long now = clock.getAsLong();
+            long start = gotHeaders ? headersAt : started;
+            score.completed(now, bytes, now - start);
+        }
+
+        void failed() {
+            // Only through the success rate - a timeout's duration is the
+            // timeout, and counted as latency would push the hedge delay up
+            // to it, just when hedging is most needed
+            score.failed(clock.getAsLong());
+        }
+    }
+
+    static final class Score {
+
+        final URL mirror;
+        private double latencyMillis = Double.NaN;
+        private double bytesPerMilli = Double.NaN;
+        private double successRate = 1;
+        private long successes;
+        private long notFound;
+        private long failures;
+        private long lastSample;
+        private boolean sampled;
+        private final long[] recentLatencies = new long[LATENCY_WINDOW];
+        private int latencyCount;
+
+        Score(URL mirror) {
+            this.mirror = mirror;
+        }
+
+        private static double ewma(double old, double sample) {
+            if (Double.isNaN(old)) {
+                return sample;
+            }
+            return (ALPHA * sample) + ((1 - ALPHA) * old);
+        }
+
+        synchronized void latency(long now, long nanos) {
+            latencyMillis = ewma(latencyMillis, nanos / 1_000_000D);
+            recentLatencies[latencyCount++ % LATENCY_WINDOW] = nanos;
+            touch(now);
+        }
+
+        synchronized double percentileMillis(double percentile) {
+            int count = Math.min(latencyCount, LATENCY_WINDOW);
+            if (count < MIN_PERCENTILE_SAMPLES) {
+                return Double.NaN;
+            }
+            long[] sorted = Arrays.copyOf(recentLatencies, count);
+            Arrays.sort(sorted);
+            int index = Math.min(count - 1, (int) Math.ceil(percentile * count) - 1);
+            return sorted[index] / 1_000_000D;
+        }
+
+        synchronized void completed(long now, long bytes, long nanos) {
+            successes++;
+            successRate = ewma(successRate, 1);
+            // Tiny bodies say more about latency than throughput
+            if (bytes > 1024 && nanos > 0) {
+                bytesPerMilli = ewma(bytesPerMilli, bytes / (nanos / 1_000_000D));
+            }
+            touch(now);
+        }
+
+        synchronized void notFound(long now) {
+            notFound++;
+            touch(now);
+        }
+
+        synchronized void failed(long now) {
+            failures++;
+            successRate = ewma(successRate, 0);
+            touch(now);
+        }
+
+        private void touch(long now) {
+            lastSample = now;
+            sampled = true;
+        }
+
+        synchronized boolean isStale(long now, long staleNanos) {
+            return !sampled || now - lastSample > staleNanos;
+        }
+
+        /**
+         * Expected milliseconds to successfully fetch a typical artifact.
+         */
+        synchronized double cost(long now, long staleNanos) {
+            if (isStale(now, staleNanos) || Double.isNaN(latencyMillis)) {
+                return 0;
+            }
+            double result = latencyMillis;
+            if (!Double.isNaN(bytesPerMilli) && bytesPerMilli > 0) {
+                result += REFERENCE_BYTES / bytesPerMilli;
+            }
+            return result / Math.max(MIN_SUCCESS_RATE, successRate);
+        }
+
+        synchronized Map<String, Object> toMap(long now, long staleNanos) {
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("cost", cost(now, staleNanos));
+            result.put("stale", isStale(now, staleNanos));
+            if (!Double.isNaN(latencyMillis)) {
+                result.put("latencyMillis", latencyMillis);
+            }
+            double p95 = percentileMillis(0.95);
+            if (!Double.isNaN(p95)) {
+                result.put("p95LatencyMillis", p95);
+            }
+            if (!Double.isNaN(bytesPerMilli)) {
+                result.put("bytesPerSecond", (long) (bytesPerMilli * 1000));
+            }
+            result.put("successRate", successRate);
+            result.put("successes", successes);
+            result.put("notFound", notFound);
+            result.put("failures", failures);
+            return result;
+        }
+    }
+}
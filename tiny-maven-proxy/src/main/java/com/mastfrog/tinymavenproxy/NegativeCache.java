@@ -0,0 +1,375 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.tinymavenproxy;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.mastfrog.acteur.server.ServerModule;
+import com.mastfrog.function.throwing.ThrowingRunnable;
+import com.mastfrog.shutdown.hooks.ShutdownHooks;
+import com.mastfrog.url.Path;
+import com.mastfrog.url.URL;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.file.Files;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Remembers which mirrors do not have which paths, in a fixed amount of
+ * memory: a ring of Bloom filters, each covering a slice of the expiry
+ * time, the oldest being cleared and reused as time passes.  A flood of
+ * misses fills a filter early and moves on to the next one, which keeps
+ * the false positive rate down at the cost of forgetting sooner.  A false
+ * positive means a mirror is not asked for a path it may have, so filters
+ * are sized for a rate around one in two thousand with all of them full.
+ * Persisted to the state dir as each filter fills and on shutdown.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class NegativeCache implements ThrowingRunnable {
+
+    static final String FILE_NAME = "negative-cache";
+    private static final int MAGIC = 0x4e454731;
+    private static final int GENERATIONS = 4;
+    private static final int BITS_PER_ENTRY = 20;
+    private static final int HASHES = 14;
+    // Stands in for the mirror when no mirror could supply a path for
+    // reasons other than not having it
+    private static final String ANY = "*";
+    private final long[][] bits;
+    private final long[] starts = new long[GENERATIONS];
+    private final int[] counts = new int[GENERATIONS];
+    private final int perGeneration;
+    private final long bitCount;
+    private final long ttlMillis;
+    private final long spanMillis;
+    private final LongSupplier clock;
+    private final Iterable<URL> mirrors;
+    private final java.nio.file.Path file;
+    private final String owner;
+    private final Executor saver;
+    private final Object saveLock = new Object();
+    private int current;
+    private boolean dirty;
+    private final LongAdder recorded = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    @Inject
+    @SuppressWarnings("LeakingThisInConstructor")
+    NegativeCache(Config config, @Named("runId") String runId, ShutdownHooks onShutdown,
+            @Named(ServerModule.BACKGROUND_THREAD_POOL_NAME) ExecutorService pool) throws IOException {
+        this(config.stateDir.toPath().resolve(FILE_NAME), runId, config, config.failedPathCacheEntries,
+                MINUTES.toMillis(config.failedPathCacheMinutes), System::currentTimeMillis, pool);
+        onShutdown.addLastThrowing(this);
+    }
+
+    NegativeCache(java.nio.file.Path file, String owner, Iterable<URL> mirrors, int entries,
+            long ttlMillis, LongSupplier clock, Executor saver) throws IOException {
+        this.file = file;
+        this.owner = owner;
+        this.mirrors = mirrors;
+        this.clock = clock;
+        this.saver = saver;
+        this.ttlMillis = ttlMillis;
+        spanMillis = Math.max(1, ttlMillis / GENERATIONS);
+        perGeneration = Math.max(64, Math.min(1 << 26, entries / GENERATIONS));
+        int words = (int) ((perGeneration * (long) BITS_PER_ENTRY + 63) / 64);
+        bitCount = words * 64L;
+        bits = new long[GENERATIONS][words];
+        long now = clock.getAsLong();
+        Arrays.fill(starts, now - ttlMillis);
+        starts[current] = now;
+        load();
+    }
+
+    /**
+     * Record that a mirror answered 404 or 410 for a path.
+     */
+    void notFound(URL mirror, Path path) {
+        add(hash(mirror.toString(), path));
+    }
+
+    /**
+     * Record that no mirror could supply a path.
+     */
+    void failed(Path path) {
+        add(hash(ANY, path));
+    }
+
+    boolean isNotFound(URL mirror, Path path) {
+        return contains(hash(mirror.toString(), path));
+    }
+
+    /**
+     * Whether a path is known to be unobtainable - every mirror has answered
+     * that it does not have it, or none could supply it.
+     */
+    boolean isFailed(Path path) {
+        boolean result = contains(hash(ANY, path));
+        if (!result) {
+            result = true;
+            for (URL u : mirrors) {
+                if (!isNotFound(u, path)) {
+                    result = false;
+                    break;
+                }
+            }
+        }
+        if (result) {
+            rejected.increment();
+        }
+        return result;
+    }
+
+    /**
+     * Remove mirrors which are known not to have a path from a list.
+     */
+    List<URL> filter(Path path, List<URL> mirrors) {
+        List<URL> result = null;
+        for (int i = 0; i < mirrors.size(); i++) {
+            URL u = mirrors.get(i);
+            if (isNotFound(u, path)) {
+                if (result == null) {
+                    result = new ArrayList<>(mirrors.subList(0, i));
+                }
+                skipped.increment();
+            } else if (result != null) {
+                result.add(u);
+            }
+        }
+        return result == null ? mirrors : result;
+    }
+
+    private static long[] hash(String mirror, Path path) {
+        HashCode code = Hashing.murmur3_128().newHasher()
+                .putString(mirror, UTF_8)
+                .putByte((byte) 0)
+                .putString(path.toString(), UTF_8)
+                .hash();
+        ByteBuffer buf = ByteBuffer.wrap(code.asBytes());
+        return new long[]{buf.getLong(), buf.getLong() | 1};
+    }
+
+    private int bit(long[] hash, int i) {
+        return (int) Math.floorMod(hash[0] + i * hash[1], bitCount);
+    }
+
+    private void add(long[] hash) {
+        recorded.increment();
+        boolean rotated;
+        synchronized (this) {
+            rotated = rotate(clock.getAsLong());
+            long[] words = bits[current];
+            for (int i = 0; i < HASHES; i++) {
+                int bit = bit(hash, i);
+                words[bit >>> 6] |= 1L << bit;
+            }
+            counts[current]++;
+            dirty = true;
+        }
+        if (rotated && saver != null) {
+            saver.execute(this::saveQuietly);
+        }
+    }
+
+    private synchronized boolean contains(long[] hash) {
+        long now = clock.getAsLong();
+        for (int g = 0; g < GENERATIONS; g++) {
+            if (counts[g] == 0 || now - starts[g] >= ttlMillis) {
+                continue;
+            }
+            long[] words = bits[g];
+            boolean all = true;
+            for (int i = 0; i < HASHES && all; i++) {
+                int bit = bit(hash, i);
+                all = (words[bit >>> 6] & (1L << bit)) != 0;
+            }
+            if (all) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean rotate(long now) {
+        if (counts[current] < perGeneration && now - starts[current] < spanMillis) {
+            return false;
+        }
+        current = (current + 1) % GENERATIONS;
+        Arrays.fill(bits[current], 0L);
+        counts[current] = 0;
+        starts[current] = now;
+        return true;
+    }
+
+    synchronized Map<String, Object> stats() {
+        long now = clock.getAsLong();
+        long entries = 0;
+        double notFalse = 1;
+        for (int g = 0; g < GENERATIONS; g++) {
+            if (counts[g] == 0 || now - starts[g] >= ttlMillis) {
+                continue;
+            }
+            entries += counts[g];
+            double fp = Math.pow(1 - Math.exp(-(double) HASHES * counts[g] / bitCount), HASHES);
+            notFalse *= 1 - fp;
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("bytes", GENERATIONS * bitCount / 8);
+        result.put("capacity", (long) perGeneration * GENERATIONS);
+        result.put("entries", entries);
+        result.put("falsePositiveRate", 1 - notFalse);
+        result.put("recorded", recorded.sum());
+        result.put("mirrorsSkipped", skipped.sum());
+        result.put("rejected", rejected.sum());
+        return result;
+    }
+
+    private void load() throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            // Sized differently - start over
+            if (in.readInt() != MAGIC || in.readInt() != GENERATIONS || in.readInt() != HASHES
+                    || in.readInt() != bits[0].length) {
+                return;
+            }
+            long[][] newBits = new long[GENERATIONS][bits[0].length];
+            long[] newStarts = new long[GENERATIONS];
+            int[] newCounts = new int[GENERATIONS];
+            int newCurrent = in.readInt();
+            for (int g = 0; g < GENERATIONS; g++) {
+                newStarts[g] = in.readLong();
+                newCounts[g] = in.readInt();
+                if (newCounts[g] > 0) {
+                    for (int i = 0; i < newBits[g].length; i++) {
+                        newBits[g][i] = in.readLong();
+                    }
+                }
+            }
+            if (newCurrent < 0 || newCurrent >= GENERATIONS) {
+                return;
+            }
+            synchronized (this) {
+                for (int g = 0; g < GENERATIONS; g++) {
+                    bits[g] = newBits[g];
+                }
+                System.arraycopy(newStarts, 0, starts, 0, GENERATIONS);
+                System.arraycopy(newCounts, 0, counts, 0, GENERATIONS);
+                current = newCurrent;
+            }
+        } catch (EOFException ex) {
+            // Truncated by a crash mid-write - start over
+        }
+    }
+
+    void save() throws IOException {
+        synchronized (saveLock) {
+            write();
+        }
+    }
+
+    private void write() throws IOException {
+        long[][] snapshot = new long[GENERATIONS][];
+        long[] savedStarts;
+        int[] savedCounts;
+        int savedCurrent;
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            for (int g = 0; g < GENERATIONS; g++) {
+                snapshot[g] = counts[g] == 0 ? null : bits[g].clone();
+            }
+            savedStarts = starts.clone();
+            savedCounts = counts.clone();
+            savedCurrent = current;
+            dirty = false;
+        }
+        Files.createDirectories(file.getParent());
+        // Other processes sharing the state dir save to the same file
+        java.nio.file.Path tmp = file.resolveSibling(FILE_NAME + "." + owner + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(GENERATIONS);
+            out.writeInt(HASHES);
+            out.writeInt(bits[0].length);
+            out.writeInt(savedCurrent);
+            for (int g = 0; g < GENERATIONS; g++) {
+                out.writeLong(savedStarts[g]);
+                out.writeInt(savedCounts[g]);
+                if (snapshot[g] != null) {
+                    for (long word : snapshot[g]) {
+                        out.writeLong(word);
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            synchronized (this) {
+                dirty = true;
+            }
+            throw ex;
+        }
+        Files.move(tmp, file, REPLACE_EXISTING, ATOMIC_MOVE);
+    }
+
+    private void saveQuietly() {
+        try {
+            save();
+        } catch (IOException ex) {
+            // Saved again on shutdown
+            synchronized (this) {
+                dirty = true;
+            }
+        }
+    }
+
+    @Override
+    public void run() throws Exception {
+        save();
+    }
+}
@@ -0,0 +1,849 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.tinymavenproxy;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.pool.AbstractChannelPoolHandler;
+import io.netty.channel.pool.AbstractChannelPoolMap;
+import io.netty.channel.pool.ChannelPool;
+import io.netty.channel.pool.SimpleChannelPool;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.resolver.AddressResolver;
+import io.netty.resolver.AddressResolverGroup;
+import io.netty.resolver.InetNameResolver;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+import java.io.IOException;
+import java.net.Authenticator;
+import java.net.CookieHandler;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.BodySubscriber;
+import java.net.http.HttpResponse.PushPromiseHandler;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+
+/**
+ * An HTTP/1.1 client for upstream requests which runs on the server's own
+ * Netty event loops, rather than the selector and executor threads of the
+ * JDK's client, with keep-alive connections pooled per origin.  It
+ * implements just what the proxy uses of HttpClient - asynchronous
+ * requests without bodies, with timeouts and redirects - so it can be
+ * swapped in for the JDK's client without the rest of the code knowing.
+ * Demand from body subscribers is honored by turning off auto-read and
+ * reading from the socket only while the subscriber wants more, so a slow
+ * subscriber pushes back on the mirror rather than buffering.  As with the
+ * JDK's client, body handlers and subscribers are called on the executor,
+ * never on an event loop, since what they do includes file I/O.  Body
+ * subscribers which implement {@link ReleasingSubscriber} are passed views
+ * of the buffers the body was read into; others get copies.
+ *
+ * @author Tim Boudreau
+ */
+final class NettyHttpClient extends HttpClient {
+
+    private static final int MAX_REDIRECTS = 5;
+    private final Duration connectTimeout;
+    private final Executor executor;
+    private final SslContext ssl;
+    private final AbstractChannelPoolMap<Origin, ChannelPool> pools;
+    private final OffLoopResolver resolver;
+
+    NettyHttpClient(EventLoopGroup group, ByteBufAllocator alloc, Duration connectTimeout, Executor executor) {
+        this.connectTimeout = connectTimeout;
+        this.executor = executor;
+        try {
+            ssl = SslContextBuilder.forClient().build();
+        } catch (SSLException ex) {
+            throw new IllegalStateException(ex);
+        }
+        resolver = new OffLoopResolver(executor);
+        Bootstrap bootstrap = new Bootstrap()
+                .group(group)
+                .channel(NioSocketChannel.class)
+                .resolver(resolver)
+                .option(ChannelOption.ALLOCATOR, alloc)
+                .option(ChannelOption.AUTO_READ, false)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) connectTimeout.toMillis());
+        pools = new AbstractChannelPoolMap<Origin, ChannelPool>() {
+            @Override
+            protected ChannelPool newPool(Origin origin) {
+                return new SimpleChannelPool(bootstrap.clone()
+                        .remoteAddress(InetSocketAddress.createUnresolved(origin.host, origin.port)),
+                        new AbstractChannelPoolHandler() {
+                    @Override
+                    public void channelCreated(Channel ch) {
+                        if (origin.secure) {
+                            SslHandler handler = ssl.newHandler(ch.alloc(), origin.host, origin.port);
+                            SSLEngine engine = handler.engine();
+                            SSLParameters params = engine.getSSLParameters();
+                            params.setEndpointIdentificationAlgorithm("HTTPS");
+                            engine.setSSLParameters(params);
+                            ch.pipeline().addLast(handler);
+                        }
+                        ch.pipeline().addLast(new HttpClientCodec());
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Resolves host names with blocking InetAddress lookups, as Netty's
+     * default resolver does, but on the executor rather than on the event
+     * loop making the connection, which is one of the server's own - so a
+     * slow DNS server holds up only the connections waiting on it.
+     */
+    static final class OffLoopResolver extends AddressResolverGroup<InetSocketAddress> {
+
+        private final Executor executor;
+
+        OffLoopResolver(Executor executor) {
+            this.executor = executor;
+        }
+
+        @Override
+        protected AddressResolver<InetSocketAddress> newResolver(EventExecutor loop) {
+            return new InetNameResolver(loop) {
+                @Override
+                protected void doResolve(String host, Promise<InetAddress> promise) {
+                    lookup(promise, () -> InetAddress.getByName(host));
+                }
+
+                @Override
+                protected void doResolveAll(String host, Promise<List<InetAddress>> promise) {
+                    lookup(promise, () -> Arrays.asList(InetAddress.getAllByName(host)));
+                }
+            }.asAddressResolver();
+        }
+
+        private <T> void lookup(Promise<T> promise, Callable<T> lookup) {
+            try {
+                executor.execute(() -> {
+                    try {
+                        promise.trySuccess(lookup.call());
+                    } catch (Exception ex) {
+                        promise.tryFailure(ex);
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                promise.tryFailure(ex);
+            }
+        }
+    }
+
+    /**
+     * A body subscriber which passes each list of buffers it is sent to
+     * {@link NettyHttpClient#release(List)} once it no longer needs them, so
+     * it can be sent views of pooled buffers rather than copies.
+     */
+    interface ReleasingSubscriber {
+    }
+
+    /**
+     * Release the buffers passed to a {@link ReleasingSubscriber}; does
+     * nothing if they did not come from this client.
+     */
+    static void release(List<ByteBuffer> item) {
+        if (item instanceof Chunks) {
+            ((Chunks) item).release();
+        }
+    }
+
+    /**
+     * Close idle pooled connections.
+     */
+    void close() {
+        pools.close();
+        resolver.close();
+    }
+
+    @Override
+    public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, BodyHandler<T> handler) {
+        if (request.bodyPublisher().map(pub -> pub.contentLength() != 0).orElse(false)) {
+            throw new IllegalArgumentException("Request bodies not supported: " + request);
+        }
+        CompletableFuture<HttpResponse<T>> result = new CompletableFuture<>();
+        send(request, request.uri(), handler, result, 0, false);
+        return result;
+    }
+
+    private <T> void send(HttpRequest request, URI uri, BodyHandler<T> handler,
+            CompletableFuture<HttpResponse<T>> result, int redirects, boolean retry) {
+        Origin origin;
+        try {
+            origin = new Origin(uri);
+        } catch (IllegalArgumentException ex) {
+            result.completeExceptionally(ex);
+            return;
+        }
+        ChannelPool pool = pools.get(origin);
+        pool.acquire().addListener(f -> {
+            if (!f.isSuccess()) {
+                result.completeExceptionally(f.cause());
+                return;
+            }
+            Channel ch = (Channel) f.getNow();
+            if (result.isDone()) {
+                pool.release(ch);
+                return;
+            }
+            new Exchange<>(request, uri, origin, handler, result, redirects, retry, pool, ch).start();
+        });
+    }
+
+    private static boolean isRedirect(int status) {
+        switch (status) {
+            case 301:
+            case 302:
+            case 303:
+            case 307:
+            case 308:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * One request and response on a pooled connection, which handles the
+     * response and acts as the body subscriber's subscription.  Everything
+     * but request() and cancel() happens on the connection's event loop,
+     * except calls to the body handler and subscriber, which are made one at
+     * a time, in order, on the executor.
+     */
+    private final class Exchange<T> extends ChannelInboundHandlerAdapter implements Flow.Subscription {
+
+        private final HttpRequest request;
+        private final URI uri;
+        private final Origin origin;
+        private final BodyHandler<T> handler;
+        private final CompletableFuture<HttpResponse<T>> result;
+        private final int redirects;
+        private final boolean retry;
+        private final ChannelPool pool;
+        private final Channel channel;
+        private final Executor signals = MoreExecutors.newSequentialExecutor(executor);
+        private final Deque<Chunks> ready = new ArrayDeque<>(4);
+        private Chunks batch = new Chunks();
+        private ScheduledFuture<?> timeout;
+        private long readingSince;
+        private io.netty.handler.codec.http.HttpResponse response;
+        private BodySubscriber<T> subscriber;
+        private URI redirectTo;
+        private Throwable failure;
+        private long demand;
+        private boolean received;
+        private boolean done;
+        private boolean delivering;
+
+        Exchange(HttpRequest request, URI uri, Origin origin, BodyHandler<T> handler,
+                CompletableFuture<HttpResponse<T>> result, int redirects, boolean retry,
+                ChannelPool pool, Channel channel) {
+            this.request = request;
+            this.uri = uri;
+            this.origin = origin;
+            this.handler = handler;
+            this.result = result;
+            this.redirects = redirects;
+            this.retry = retry;
+            this.pool = pool;
+            this.channel = channel;
+        }
+
+        void start() {
+            channel.pipeline().addLast(this);
+            request.timeout().ifPresent(t -> {
+                timeout = channel.eventLoop().schedule(() -> {
+                    if (response == null) {
+                        fail(new HttpTimeoutException("Request timed out: " + uri));
+                    }
+                }, t.toMillis(), TimeUnit.MILLISECONDS);
+            });
+            result.whenComplete((resp, thrown) -> {
+                if (thrown instanceof CancellationException) {
+                    channel.eventLoop().execute(() -> abort());
+                }
+            });
+            String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+            if (uri.getRawQuery() != null) {
+                path += "?" + uri.getRawQuery();
+            }
+            DefaultFullHttpRequest req = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1,
+                    HttpMethod.valueOf(request.method()), path, Unpooled.EMPTY_BUFFER);
+            req.headers().set(HttpHeaderNames.HOST, origin.hostHeader());
+            request.headers().map().forEach(req.headers()::add);
+            channel.writeAndFlush(req).addListener(f -> {
+                if (!f.isSuccess()) {
+                    fail(f.cause());
+                } else {
+                    read();
+                }
+            });
+        }
+
+        private void read() {
+            if (readingSince == 0) {
+                readingSince = System.nanoTime();
+            }
+            channel.read();
+        }
+
+        /**
+         * Once headers have arrived the request timeout no longer applies,
+         * but a mirror which then stops sending the body would hold the
+         * connection, and the download waiting on it, forever - so fail if
+         * that long passes while waiting for the socket.  Time spent waiting
+         * for the subscriber to ask for more does not count.
+         */
+        private void checkIdle(long idleMillis) {
+            if (done) {
+                return;
+            }
+            long waited = readingSince == 0 ? 0
+                    : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - readingSince);
+            if (waited >= idleMillis) {
+                fail(new HttpTimeoutException("Nothing read from " + origin.host
+                        + " for " + waited + "ms: " + uri));
+            } else {
+                timeout = channel.eventLoop().schedule(() -> checkIdle(idleMillis),
+                        idleMillis - waited, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            readingSince = 0;
+            try {
+                if (done) {
+                    return;
+                }
+                if (msg instanceof io.netty.handler.codec.http.HttpResponse) {
+                    onResponse((io.netty.handler.codec.http.HttpResponse) msg);
+                }
+                if (msg instanceof HttpContent && !done) {
+                    HttpContent content = (HttpContent) msg;
+                    int bytes = content.content().readableBytes();
+                    if (bytes > 0 && redirectTo == null) {
+                        batch.add(content.content());
+                    }
+                    if (msg instanceof LastHttpContent) {
+                        received = true;
+                        if (redirectTo != null) {
+                            redirect();
+                        } else {
+                            endBatch();
+                        }
+                    }
+                }
+            } finally {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+
+        private void onResponse(io.netty.handler.codec.http.HttpResponse response) {
+            this.response = response;
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            request.timeout().ifPresent(t -> checkIdle(t.toMillis()));
+            int status = response.status().code();
+            String location = response.headers().get(HttpHeaderNames.LOCATION);
+            if (isRedirect(status) && location != null && redirects < MAX_REDIRECTS) {
+                redirectTo = uri.resolve(location);
+                return;
+            }
+            Info info = new Info(status, headers(response.headers()));
+            signals.execute(() -> {
+                BodySubscriber<T> sub;
+                try {
+                    sub = handler.apply(info);
+                } catch (RuntimeException ex) {
+                    channel.eventLoop().execute(() -> fail(ex));
+                    return;
+                }
+                sub.getBody().whenComplete((body, thrown) -> {
+                    if (thrown != null) {
+                        result.completeExceptionally(thrown);
+                    } else {
+                        result.complete(new Response<>(request, uri, info, body));
+                    }
+                });
+                // Before any demand from onSubscribe reaches the event loop
+                channel.eventLoop().execute(() -> subscribed(sub));
+                sub.onSubscribe(this);
+            });
+        }
+
+        private void subscribed(BodySubscriber<T> sub) {
+            subscriber = sub;
+            if (failure != null) {
+                // Failed while the subscriber was being created
+                signals.execute(() -> sub.onError(failure));
+            }
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) {
+            if (done) {
+                return;
+            }
+            endBatch();
+            if (!received && (response == null || redirectTo != null
+                    || (subscriber != null && demand > 0 && ready.isEmpty()))) {
+                read();
+            }
+        }
+
+        private void endBatch() {
+            if (!batch.isEmpty()) {
+                ready.add(batch);
+                batch = new Chunks();
+            }
+            deliver();
+        }
+
+        private void deliver() {
+            if (subscriber == null || delivering) {
+                return;
+            }
+            delivering = true;
+            try {
+                BodySubscriber<T> sub = subscriber;
+                boolean views = sub instanceof ReleasingSubscriber;
+                while (!done && demand > 0 && !ready.isEmpty()) {
+                    demand--;
+                    List<ByteBuffer> item = views ? ready.poll() : ready.poll().copy();
+                    signals.execute(() -> sub.onNext(item));
+                }
+                if (!done && received && ready.isEmpty()) {
+                    done = true;
+                    signals.execute(sub::onComplete);
+                    release(HttpUtil.isKeepAlive(response));
+                }
+            } finally {
+                delivering = false;
+            }
+        }
+
+        private void redirect() {
+            done = true;
+            release(HttpUtil.isKeepAlive(response));
+            HttpRequest.Builder next = HttpRequest.newBuilder(redirectTo)
+                    .method(request.method(), HttpRequest.BodyPublishers.noBody());
+            request.timeout().ifPresent(next::timeout);
+            request.headers().map().forEach((name, values) -> {
+                values.forEach(value -> next.header(name, value));
+            });
+            send(next.build(), redirectTo, handler, result, redirects + 1, false);
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                cancel();
+                return;
+            }
+            if (channel.eventLoop().inEventLoop()) {
+                addDemand(n);
+            } else {
+                channel.eventLoop().execute(() -> addDemand(n));
+            }
+        }
+
+        private void addDemand(long n) {
+            demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+            deliver();
+            if (!done && !received && demand > 0 && ready.isEmpty()) {
+                read();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            channel.eventLoop().execute(this::abort);
+        }
+
+        private void abort() {
+            if (!done) {
+                done = true;
+                release(false);
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            if (!done) {
+                fail(new IOException("Connection closed by " + origin.host));
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            fail(cause);
+        }
+
+        private void fail(Throwable thrown) {
+            if (done) {
+                return;
+            }
+            done = true;
+            failure = thrown;
+            release(false);
+            BodySubscriber<T> sub = subscriber;
+            if (sub != null) {
+                signals.execute(() -> sub.onError(thrown));
+            } else if (response == null && !retry && !(thrown instanceof HttpTimeoutException)) {
+                // A pooled connection the server had closed while idle -
+                // try once more on another
+                send(request, uri, handler, result, redirects, true);
+            } else {
+                result.completeExceptionally(thrown);
+            }
+        }
+
+        private void release(boolean reusable) {
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            // Whatever was read and not delivered
+            batch.release();
+            while (!ready.isEmpty()) {
+                ready.poll().release();
+            }
+            if (channel.pipeline().context(this) != null) {
+                channel.pipeline().remove(this);
+            }
+            if (!reusable) {
+                channel.close();
+            }
+            pool.release(channel);
+        }
+    }
+
+    /**
+     * The body content of one read from the socket, as views of the buffers
+     * it was decoded into, which are retained until released.
+     */
+    static final class Chunks extends AbstractList<ByteBuffer> {
+
+        private final List<ByteBuf> bufs = new ArrayList<>(4);
+        private final List<ByteBuffer> views = new ArrayList<>(4);
+        private boolean released;
+
+        void add(ByteBuf buf) {
+            views.add(buf.nioBuffer());
+            bufs.add(buf.retain());
+        }
+
+        @Override
+        public ByteBuffer get(int index) {
+            return views.get(index);
+        }
+
+        @Override
+        public int size() {
+            return views.size();
+        }
+
+        /**
+         * Copy the content, for a subscriber which may keep the buffers,
+         * and release this.
+         */
+        List<ByteBuffer> copy() {
+            int length = 0;
+            for (ByteBuffer view : views) {
+                length += view.remaining();
+            }
+            ByteBuffer copy = ByteBuffer.allocate(length);
+            for (ByteBuffer view : views) {
+                copy.put(view.duplicate());
+            }
+            copy.flip();
+            release();
+            return Collections.singletonList(copy);
+        }
+
+        synchronized void release() {
+            if (!released) {
+                released = true;
+                bufs.forEach(ReferenceCountUtil::release);
+            }
+        }
+    }
+
+    private static HttpHeaders headers(io.netty.handler.codec.http.HttpHeaders headers) {
+        Map<String, List<String>> map = new LinkedHashMap<>();
+        for (Map.Entry<String, String> e : headers) {
+            map.computeIfAbsent(e.getKey(), k -> new ArrayList<>(1)).add(e.getValue());
+        }
+        return HttpHeaders.of(map, (name, value) -> true);
+    }
+
+    /**
+     * The scheme, host and port requests can share connections by.
+     */
+    static final class Origin {
+
+        final boolean secure;
+        final String host;
+        final int port;
+
+        Origin(URI uri) {
+            if ("https".equalsIgnoreCase(uri.getScheme())) {
+                secure = true;
+            } else if ("http".equalsIgnoreCase(uri.getScheme())) {
+                secure = false;
+            } else {
+                throw new IllegalArgumentException("Unsupported scheme: " + uri);
+            }
+            if (uri.getHost() == null) {
+                throw new IllegalArgumentException("No host: " + uri);
+            }
+            host = uri.getHost();
+            port = uri.getPort() > 0 ? uri.getPort() : secure ? 443 : 80;
+        }
+
+        String hostHeader() {
+            return port == (secure ? 443 : 80) ? host : host + ":" + port;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Origin)) {
+                return false;
+            }
+            Origin other = (Origin) o;
+            return secure == other.secure && port == other.port && host.equals(other.host);
+        }
+
+        @Override
+        public int hashCode() {
+            return (host.hashCode() * 31 + port) * (secure ? 1 : -1);
+        }
+    }
+
+    private static final class Info implements HttpResponse.ResponseInfo {
+
+        private final int status;
+        private final HttpHeaders headers;
+
+        Info(int status, HttpHeaders headers) {
+            this.status = status;
+            this.headers = headers;
+        }
+
+        @Override
+        public int statusCode() {
+            return status;
+        }
+
+        @Override
+        public HttpHeaders headers() {
+            return headers;
+        }
+
+        @Override
+        public Version version() {
+            return Version.HTTP_1_1;
+        }
+    }
+
+    private static final class Response<T> implements HttpResponse<T> {
+
+        private final HttpRequest request;
+        private final URI uri;
+        private final Info info;
+        private final T body;
+
+        Response(HttpRequest request, URI uri, Info info, T body) {
+            this.request = request;
+            this.uri = uri;
+            this.info = info;
+            this.body = body;
+        }
+
+        @Override
+        public int statusCode() {
+            return info.statusCode();
+        }
+
+        @Override
+        public HttpRequest request() {
+            return request;
+        }
+
+        @Override
+        public Optional<HttpResponse<T>> previousResponse() {
+            return Optional.empty();
+        }
+
+        @Override
+        public HttpHeaders headers() {
+            return info.headers();
+        }
+
+        @Override
+        public T body() {
+            return body;
+        }
+
+        @Override
+        public Optional<SSLSession> sslSession() {
+            return Optional.empty();
+        }
+
+        @Override
+        public URI uri() {
+            return uri;
+        }
+
+        @Override
+        public Version version() {
+            return Version.HTTP_1_1;
+        }
+    }
+
+    @Override
+    public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request,
+            BodyHandler<T> handler, PushPromiseHandler<T> pushPromiseHandler) {
+        return sendAsync(request, handler);
+    }
+
+    @Override
+    public <T> HttpResponse<T> send(HttpRequest request, BodyHandler<T> handler)
+            throws IOException, InterruptedException {
+        try {
+            return sendAsync(request, handler).get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    @Override
+    public Optional<CookieHandler> cookieHandler() {
+        return Optional.empty();
+    }
+
+    @Override
+    public Optional<Duration> connectTimeout() {
+        return Optional.of(connectTimeout);
+    }
+
+    @Override
+    public Redirect followRedirects() {
+        return Redirect.ALWAYS;
+    }
+
+    @Override
+    public Optional<ProxySelector> proxy() {
+        return Optional.empty();
+    }
+
+    @Override
+    public SSLContext sslContext() {
+        try {
+            return SSLContext.getDefault();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    @Override
+    public SSLParameters sslParameters() {
+        return new SSLParameters();
+    }
+
+    @Override
+    public Optional<Authenticator> authenticator() {
+        return Optional.empty();
+    }
+
+    @Override
+    public Version version() {
+        return Version.HTTP_1_1;
+    }
+
+    @Override
+    public Optional<Executor> executor() {
+        return Optional.of(executor);
+    }
+}
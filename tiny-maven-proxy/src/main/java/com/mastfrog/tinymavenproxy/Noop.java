@@ -44,7 +44,9 @@ class Noop<T> implements HttpResponse.BodySubscriber<T> {
 
     @Override
     public void onSubscribe(Flow.Subscription subscription) {
-        // do nothing
+        // Nobody wants the body; without this the connection is left
+        // hanging with it unread
+        subscription.cancel();
     }
 
     @Override
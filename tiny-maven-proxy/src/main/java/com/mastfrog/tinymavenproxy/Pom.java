@@ -0,0 +1,365 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.tinymavenproxy;
+
+import com.mastfrog.url.Path;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Just enough of a Maven POM to predict what a client resolving it will ask
+ * for next - its parent, the BOMs it imports and its dependencies, with
+ * whatever versions can be worked out without a full model builder.
+ *
+ * @author Tim Boudreau
+ */
+final class Pom {
+
+    private static final Pattern PROPERTY = Pattern.compile("\\$\\{([^}]+)\\}");
+    private static final XMLInputFactory XML = XMLInputFactory.newFactory();
+
+    static {
+        XML.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XML.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    final Dependency parent;
+    final String groupId;
+    final String artifactId;
+    final String version;
+    final String packaging;
+    final Map<String, String> properties;
+    final List<Dependency> dependencies;
+    final List<Dependency> managed;
+
+    Pom(Dependency parent, String groupId, String artifactId, String version, String packaging,
+            Map<String, String> properties, List<Dependency> dependencies, List<Dependency> managed) {
+        this.parent = parent;
+        this.groupId = groupId == null && parent != null ? parent.groupId : groupId;
+        this.artifactId = artifactId;
+        this.version = version == null && parent != null ? parent.version : version;
+        this.packaging = packaging == null ? "jar" : packaging;
+        this.properties = properties;
+        this.dependencies = dependencies;
+        this.managed = managed;
+    }
+
+    static Pom parse(InputStream in) throws IOException {
+        try {
+            XMLStreamReader reader = XML.createXMLStreamReader(in);
+            try {
+                return parse(reader);
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    private static Pom parse(XMLStreamReader reader) throws XMLStreamException, IOException {
+        Deque<String> stack = new ArrayDeque<>();
+        Map<String, String> project = new LinkedHashMap<>();
+        Map<String, String> parent = null;
+        Map<String, String> properties = new LinkedHashMap<>();
+        List<Dependency> dependencies = new ArrayList<>();
+        List<Dependency> managed = new ArrayList<>();
+        Map<String, String> dependency = null;
+        StringBuilder text = new StringBuilder();
+        while (reader.hasNext()) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    String name = reader.getLocalName();
+                    if (stack.isEmpty() && !"project".equals(name)) {
+                        throw new IOException("Not a POM: " + name);
+                    }
+                    stack.push(name);
+                    text.setLength(0);
+                    if (stack.size() == 2 && "parent".equals(name)) {
+                        parent = new LinkedHashMap<>();
+                    } else if ("dependency".equals(name) && isDependencyList(stack)) {
+                        dependency = new LinkedHashMap<>();
+                    }
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                    text.append(reader.getText());
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    String ended = stack.pop();
+                    String value = text.toString().trim();
+                    text.setLength(0);
+                    if (stack.size() == 1) {
+                        project.put(ended, value);
+                    } else if (stack.size() == 2 && "parent".equals(stack.peek()) && parent != null) {
+                        parent.put(ended, value);
+                    } else if (stack.size() == 2 && "properties".equals(stack.peek())) {
+                        properties.put(ended, value);
+                    } else if (dependency != null && "dependency".equals(stack.peek())) {
+                        dependency.put(ended, value);
+                    } else if (dependency != null && "dependency".equals(ended)) {
+                        (stack.size() == 2 ? dependencies : managed).add(Dependency.of(dependency));
+                        dependency = null;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (!project.containsKey("artifactId")) {
+            throw new IOException("No artifactId");
+        }
+        return new Pom(parent == null ? null : Dependency.of(parent), project.get("groupId"),
+                project.get("artifactId"), project.get("version"), project.get("packaging"),
+                properties, dependencies, managed);
+    }
+
+    private static boolean isDependencyList(Deque<String> stack) {
+        // stack is innermost-first: dependency, dependencies, project or
+        // dependency, dependencies, dependencyManagement, project - but not
+        // the ones under build/plugins or profiles
+        Object[] els = stack.toArray();
+        if (els.length == 3) {
+            return "dependencies".equals(els[1]);
+        }
+        return els.length == 4 && "dependencies".equals(els[1]) && "dependencyManagement".equals(els[2]);
+    }
+
+    Path path() {
+        return pathOf(groupId, artifactId, version, null, "pom");
+    }
+
+    /**
+     * The parent POM, if there is one and its coordinates are resolvable.
+     */
+    Path parentPath() {
+        if (parent == null) {
+            return null;
+        }
+        Set<Path> result = new LinkedHashSet<>();
+        addIfResolvable(result, parent, properties(Collections.emptyList()), "pom");
+        return result.isEmpty() ? null : result.iterator().next();
+    }
+
+    /**
+     * The BOMs this POM imports into its dependency management, given its
+     * ancestors, nearest first, to resolve their versions.
+     */
+    List<Path> importPaths(List<Pom> ancestors) {
+        Map<String, String> props = properties(ancestors);
+        Set<Path> result = new LinkedHashSet<>();
+        for (Dependency d : managed) {
+            if (d.isImport()) {
+                addIfResolvable(result, d, props, "pom");
+            }
+        }
+        return new ArrayList<>(result);
+    }
+
+    /**
+     * The POM and, where there is one, the jar of each dependency a client
+     * resolving this POM will need - declared or inherited, not test,
+     * provided, system or optional - whose version can be worked out from
+     * the POM, its ancestors (nearest first) and the BOMs it imports.
+     */
+    List<Path> dependencyPaths(List<Pom> ancestors, List<Pom> imports) {
+        Map<String, String> props = properties(ancestors);
+        Map<String, String> versions = new LinkedHashMap<>();
+        for (Pom bom : imports) {
+            Map<String, String> bomProps = bom.properties(Collections.emptyList());
+            for (Dependency d : bom.managed) {
+                versions.put(d.key(), interpolate(d.version, bomProps));
+            }
+        }
+        List<Pom> chain = new ArrayList<>(ancestors);
+        Collections.reverse(chain);
+        chain.add(this);
+        List<Dependency> deps = new ArrayList<>();
+        for (Pom p : chain) {
+            for (Dependency d : p.managed) {
+                if (!d.isImport() && d.version != null) {
+                    versions.put(d.key(), interpolate(d.version, props));
+                }
+            }
+            deps.addAll(p.dependencies);
+        }
+        Set<Path> result = new LinkedHashSet<>();
+        for (Dependency d : deps) {
+            if (!d.isTransitive()) {
+                continue;
+            }
+            Dependency resolved = d.version == null ? d.withVersion(versions.get(d.key())) : d;
+            addIfResolvable(result, resolved, props, "pom");
+            if (resolved.type == null || "jar".equals(resolved.type)) {
+                addIfResolvable(result, resolved, props, "jar");
+            }
+        }
+        return new ArrayList<>(result);
+    }
+
+    private static void addIfResolvable(Set<Path> into, Dependency d, Map<String, String> props, String ext) {
+        String g = interpolate(d.groupId, props);
+        String a = interpolate(d.artifactId, props);
+        String v = interpolate(d.version, props);
+        String c = "pom".equals(ext) ? null : interpolate(d.classifier, props);
+        if (isCoordinate(g) && isCoordinate(a) && isCoordinate(v) && (c == null || isCoordinate(c))) {
+            into.add(pathOf(g, a, v, c, ext));
+        }
+    }
+
+    private static boolean isCoordinate(String s) {
+        // Unresolved properties, version ranges and anything that could
+        // escape the repository layout
+        return s != null && !s.isEmpty() && !s.contains("${") && !s.contains("..")
+                && s.indexOf('/') < 0 && s.indexOf('\\') < 0 && s.indexOf(',') < 0
+                && s.charAt(0) != '[' && s.charAt(0) != '(';
+    }
+
+    static Path pathOf(String groupId, String artifactId, String version, String classifier, String ext) {
+        StringBuilder sb = new StringBuilder(groupId.replace('.', '/'))
+                .append('/').append(artifactId)
+                .append('/').append(version)
+                .append('/').append(artifactId).append('-').append(version);
+        if (classifier != null && !classifier.isEmpty()) {
+            sb.append('-').append(classifier);
+        }
+        return Path.parse(sb.append('.').append(ext).toString());
+    }
+
+    private Map<String, String> properties(List<Pom> ancestors) {
+        Map<String, String> result = new LinkedHashMap<>();
+        for (int i = ancestors.size() - 1; i >= 0; i--) {
+            result.putAll(ancestors.get(i).properties);
+        }
+        result.putAll(properties);
+        builtIn(result, "project.", groupId, artifactId, version);
+        builtIn(result, "pom.", groupId, artifactId, version);
+        if (parent != null) {
+            builtIn(result, "project.parent.", parent.groupId, parent.artifactId, parent.version);
+        }
+        return result;
+    }
+
+    private static void builtIn(Map<String, String> props, String prefix, String g, String a, String v) {
+        putIfNotNull(props, prefix + "groupId", g);
+        putIfNotNull(props, prefix + "artifactId", a);
+        putIfNotNull(props, prefix + "version", v);
+    }
+
+    private static void putIfNotNull(Map<String, String> props, String key, String value) {
+        if (value != null) {
+            props.put(key, value);
+        }
+    }
+
+    static String interpolate(String value, Map<String, String> props) {
+        if (value == null || value.indexOf('$') < 0) {
+            return value;
+        }
+        String result = value;
+        // Properties may refer to other properties, but not forever
+        for (int i = 0; i < 8 && result.contains("${"); i++) {
+            Matcher m = PROPERTY.matcher(result);
+            StringBuffer sb = new StringBuffer();
+            boolean changed = false;
+            while (m.find()) {
+                String replacement = props.get(m.group(1));
+                if (replacement != null) {
+                    changed = true;
+                }
+                m.appendReplacement(sb, Matcher.quoteReplacement(replacement == null ? m.group() : replacement));
+            }
+            m.appendTail(sb);
+            result = sb.toString();
+            if (!changed) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    static final class Dependency {
+
+        final String groupId;
+        final String artifactId;
+        final String version;
+        final String type;
+        final String classifier;
+        final String scope;
+        final boolean optional;
+
+        Dependency(String groupId, String artifactId, String version, String type,
+                String classifier, String scope, boolean optional) {
+            this.groupId = groupId;
+            this.artifactId = artifactId;
+            this.version = version;
+            this.type = type;
+            this.classifier = classifier;
+            this.scope = scope;
+            this.optional = optional;
+        }
+
+        static Dependency of(Map<String, String> els) {
+            return new Dependency(els.get("groupId"), els.get("artifactId"), els.get("version"),
+                    els.get("type"), els.get("classifier"), els.get("scope"),
+                    "true".equals(els.get("optional")));
+        }
+
+        Dependency withVersion(String version) {
+            return new Dependency(groupId, artifactId, version, type, classifier, scope, optional);
+        }
+
+        String key() {
+            return groupId + ':' + artifactId;
+        }
+
+        boolean isImport() {
+            return "import".equals(scope) && "pom".equals(type);
+        }
+
+        boolean isTransitive() {
+            return !optional && (scope == null || "compile".equals(scope) || "runtime".equals(scope));
+        }
+
+        @Override
+        public String toString() {
+            return groupId + ':' + artifactId + ':' + version;
+        }
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.tinymavenproxy;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.mastfrog.acteur.server.ServerModule;
+import com.mastfrog.acteur.util.RequestID;
+import com.mastfrog.bunyan.java.v2.Logs;
+import com.mastfrog.tinymavenproxy.TempFiles.TempFile;
+import static com.mastfrog.tinymavenproxy.TinyMavenProxy.DOWNLOAD_LOGGER;
+import com.mastfrog.url.Path;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Downloads files into the cache before clients ask for them, for two
+ * reasons.  When a client fetches a POM which was not cached, the files that
+ * go with it by its packaging - the jar, for <code>jar</code> packaging - are
+ * fetched straight away, at normal priority, since the client will ask for
+ * them next.  And each POM that is cached is read for what a client
+ * resolving it will ask for after that - its parent, the BOMs it imports and
+ * its dependencies' POMs and jars - which are fetched a bounded number of
+ * levels deep, a bounded number at a time, behind all other upstream
+ * traffic.  Prefetched POMs are read again when a client first asks for
+ * them, so the prefetch stays ahead of the client as it works its way down
+ * the dependency graph.  A prefetched file a client asks for counts as
+ * useful; one no client asks for within a few minutes, as wasted.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class Prefetcher {
+
+    private static final int MAX_QUEUED = 1024;
+    private static final int MAX_ANCESTORS = 10;
+    private static final int UNCLAIMED_MINUTES = 10;
+    private final Config config;
+    private final FileFinder finder;
+    private final Provider<DownloaderV2A> downloader;
+    private final SiblingRules rules;
+    private final ExecutorService pool;
+    private final Logs logs;
+    private final RequestID.Factory ids = new RequestID.Factory();
+    private final Deque<Path> queue = new ArrayDeque<>();
+    // Queued or in flight, by how many levels they are from a POM a client
+    // asked for
+    private final Map<Path, Integer> depths = new ConcurrentHashMap<>();
+    private final Map<Path, Reason> inFlight = new ConcurrentHashMap<>();
+    // Prefetched and not yet asked for
+    private final Cache<Path, Reason> unclaimed;
+    private int active;
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder[] fetched = counters();
+    private final LongAdder[] failed = counters();
+    private final LongAdder[] useful = counters();
+    private final LongAdder[] wasted = counters();
+
+    @Inject
+    Prefetcher(Config config, FileFinder finder, Provider<DownloaderV2A> downloader,
+            SiblingRules rules, @Named(ServerModule.BACKGROUND_THREAD_POOL_NAME) ExecutorService pool,
+            @Named(DOWNLOAD_LOGGER) Logs logs) {
+        this.config = config;
+        this.finder = finder;
+        this.downloader = downloader;
+        this.rules = rules;
+        this.pool = pool;
+        this.logs = logs.child("prefetch", true);
+        unclaimed = CacheBuilder.newBuilder()
+                .maximumSize(16384)
+                .expireAfterWrite(UNCLAIMED_MINUTES, TimeUnit.MINUTES)
+                .<Path, Reason>removalListener(removal -> {
+                    if (removal.getCause() != RemovalCause.EXPLICIT && removal.getCause() != RemovalCause.REPLACED) {
+                        wasted[removal.getValue().ordinal()].increment();
+                    }
+                }).build();
+    }
+
+    private static LongAdder[] counters() {
+        LongAdder[] result = new LongAdder[Reason.values().length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = new LongAdder();
+        }
+        return result;
+    }
+
+    /**
+     * A file has been downloaded into the cache.
+     */
+    void cached(Path path, File file) {
+        if (TrafficClass.of(path) != TrafficClass.POM) {
+            depths.remove(path);
+            return;
+        }
+        Integer depth = depths.remove(path);
+        // Only a POM a client asked for, which was not already on its way
+        boolean siblings = config.siblings && depth == null;
+        boolean scan = config.prefetchDepth > 0;
+        if (siblings || scan) {
+            pool.submit(() -> {
+                Pom pom = load(file);
+                if (pom != null) {
+                    if (siblings) {
+                        fetchSiblings(path, pom);
+                    }
+                    if (scan) {
+                        scan(pom, depth == null ? 0 : depth);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * A client has asked for a path, cached or not.
+     */
+    void requested(Path path) {
+        Path key = path.normalize().elideEmptyElements();
+        Reason reason = inFlight.remove(key);
+        if (reason != null) {
+            useful[reason.ordinal()].increment();
+            // The client has caught up to here; when it arrives, look
+            // further ahead from it
+            depths.replace(key, 0);
+            return;
+        }
+        reason = unclaimed.asMap().remove(key);
+        if (reason != null) {
+            useful[reason.ordinal()].increment();
+            if (config.prefetchDepth > 0 && TrafficClass.of(key) == TrafficClass.POM) {
+                File file = finder.find(key);
+                if (file != null) {
+                    pool.submit(() -> {
+                        Pom pom = load(file);
+                        if (pom != null) {
+                            scan(pom, 0);
+                        }
+                    });
+                }
+            }
+        }
+    }
+
+    private void fetchSiblings(Path path, Pom pom) {
+        SiblingRules.SiblingRule rule = rules.rule(pom.packaging);
+        if (rule == null) {
+            return;
+        }
+        for (Path sibling : rule.siblings(path, pom)) {
+            if (inFlight.containsKey(sibling) || finder.find(sibling) != null) {
+                continue;
+            }
+            CompletableFuture<TempFile> fut = null;
+            try {
+                fut = downloader.get().prefetch(sibling, ids.next(), false);
+            } catch (URISyntaxException | RuntimeException ex) {
+                logs.debug("sibling-failed").add("path", sibling).add(ex).close();
+            }
+            if (fut != null) {
+                track(sibling, fut, Reason.SIBLING, null);
+            }
+        }
+    }
+
+    private void scan(Pom pom, int depth) {
+        if (depth >= config.prefetchDepth) {
+            return;
+        }
+        List<Pom> ancestors = new ArrayList<>();
+        for (Pom curr = pom; ancestors.size() < MAX_ANCESTORS;) {
+            Pom parent = cachedPom(curr.parentPath());
+            if (parent == null) {
+                break;
+            }
+            ancestors.add(parent);
+            curr = parent;
+        }
+        List<Path> importPaths = pom.importPaths(ancestors);
+        List<Pom> imports = new ArrayList<>();
+        for (Path p : importPaths) {
+            Pom imported = cachedPom(p);
+            if (imported != null) {
+                imports.add(imported);
+            }
+        }
+        Path parentPath = pom.parentPath();
+        if (parentPath != null) {
+            enqueue(parentPath, depth + 1);
+        }
+        for (Path p : importPaths) {
+            enqueue(p, depth + 1);
+        }
+        for (Path p : pom.dependencyPaths(ancestors, imports)) {
+            enqueue(p, depth + 1);
+        }
+        drain();
+    }
+
+    private Pom cachedPom(Path path) {
+        File f = path == null ? null : finder.find(path);
+        return f == null ? null : load(f);
+    }
+
+    private Pom load(File file) {
+        try (InputStream in = new FileInputStream(file)) {
+            return Pom.parse(in);
+        } catch (IOException | RuntimeException ex) {
+            logs.debug("unparseable").add("file", file.toString()).add("reason", ex.toString()).close();
+            return null;
+        }
+    }
+
+    private void enqueue(Path path, int depth) {
+        if (depths.containsKey(path) || finder.find(path) != null) {
+            return;
+        }
+        synchronized (this) {
+            if (queue.size() >= MAX_QUEUED) {
+                dropped.increment();
+                return;
+            }
+            if (depths.putIfAbsent(path, depth) != null) {
+                return;
+            }
+            queue.add(path);
+        }
+        queued.increment();
+    }
+
+    private void drain() {
+        for (;;) {
+            Path next;
+            synchronized (this) {
+                if (active >= config.prefetchConcurrency || queue.isEmpty()) {
+                    return;
+                }
+                next = queue.poll();
+                active++;
+            }
+            CompletableFuture<TempFile> fut = null;
+            try {
+                if (finder.find(next) == null) {
+                    fut = downloader.get().prefetch(next, ids.next(), true);
+                }
+            } catch (URISyntaxException | RuntimeException ex) {
+                logs.debug("prefetch-failed").add("path", next).add(ex).close();
+            }
+            if (fut == null) {
+                // Cached, failed or already being downloaded for a client
+                depths.remove(next);
+                done();
+                continue;
+            }
+            track(next, fut, Reason.DEPENDENCY, () -> {
+                done();
+                drain();
+            });
+        }
+    }
+
+    private void track(Path path, CompletableFuture<TempFile> fut, Reason reason, Runnable then) {
+        inFlight.put(path, reason);
+        fut.whenComplete((file, thrown) -> {
+            if (thrown == null) {
+                fetched[reason.ordinal()].increment();
+                if (inFlight.remove(path) != null) {
+                    unclaimed.put(path, reason);
+                }
+            } else {
+                failed[reason.ordinal()].increment();
+                inFlight.remove(path);
+                depths.remove(path);
+            }
+            if (then != null) {
+                then.run();
+            }
+        });
+    }
+
+    private synchronized void done() {
+        active--;
+    }
+
+    Map<String, Object> stats() {
+        unclaimed.cleanUp();
+        Map<String, Object> result = new LinkedHashMap<>();
+        synchronized (this) {
+            result.put("active", active);
+            result.put("waiting", queue.size());
+        }
+        result.put("depth", config.prefetchDepth);
+        result.put("concurrency", config.prefetchConcurrency);
+        result.put("queued", queued.sum());
+        result.put("dropped", dropped.sum());
+        for (Reason reason : Reason.values()) {
+            int ix = reason.ordinal();
+            long f = fetched[ix].sum();
+            long u = useful[ix].sum();
+            long w = wasted[ix].sum();
+            Map<String, Object> counts = new LinkedHashMap<>();
+            counts.put("fetched", f);
+            counts.put("failed", failed[ix].sum());
+            counts.put("useful", u);
+            counts.put("wasted", w);
+            counts.put("hitRate", f == 0 ? 0D : (double) u / f);
+            counts.put("usefulToWasted", w == 0 ? (double) u : (double) u / w);
+            result.put(reason.name().toLowerCase() + "s", counts);
+        }
+        return result;
+    }
+
+    enum Reason {
+        DEPENDENCY,
+        SIBLING
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.tinymavenproxy;
+
+import java.net.http.HttpHeaders;
+import java.util.Optional;
+
+/**
+ * What is needed to safely pick up a partly downloaded file where it left
+ * off: the validators from the original response, for an
+ * <code>If-Range</code> header, so that a file which has changed upstream
+ * is sent whole rather than spliced onto the old one, and its length.
+ *
+ * @author Tim Boudreau
+ */
+final class RangeResume {
+
+    private final String etag;
+    private final String lastModified;
+    private final long length;
+
+    RangeResume(String etag, String lastModified, long length) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.length = length;
+    }
+
+    /**
+     * Get the validators from a response, or null if it has none that can
+     * be used with <code>If-Range</code> - weak ETags cannot.
+     */
+    static RangeResume of(HttpHeaders headers) {
+        String etag = headers.firstValue("etag")
+                .filter(tag -> !tag.startsWith("W/"))
+                .orElse(null);
+        String lastModified = headers.firstValue("last-modified").orElse(null);
+        if (etag == null && lastModified == null) {
+            return null;
+        }
+        return new RangeResume(etag, lastModified,
+                headers.firstValueAsLong("content-length").orElse(-1));
+    }
+
+    long length() {
+        return length;
+    }
+
+    /**
+     * The <code>If-Range</code> value to send, or null if there is none
+     * usable.  ETags are only meaningful to the server that issued them, so
+     * on a different mirror only the Last-Modified date is usable.
+     */
+    String ifRange(boolean sameMirror) {
+        if (sameMirror && etag != null) {
+            return etag;
+        }
+        return lastModified;
+    }
+
+    /**
+     * Check that a response to a range request starting at
+     * <code>offset</code> is the rest of the same file, returning null if it
+     * is, and a description of the problem if not.  A 200 means the file
+     * changed or the server ignores ranges; either way, appending it would
+     * corrupt the file.
+     */
+    String check(int status, HttpHeaders headers, long offset) {
+        if (status != 206) {
+            return "status " + status;
+        }
+        Optional<String> header = headers.firstValue("content-range");
+        if (!header.isPresent()) {
+            return "no content-range";
+        }
+        long[] range = parseContentRange(header.get());
+        if (range == null) {
+            return "bad content-range '" + header.get() + "'";
+        }
+        if (range[0] != offset) {
+            return "range starts at " + range[0] + " not " + offset;
+        }
+        if (length >= 0 && range[2] >= 0 && range[2] != length) {
+            return "length " + range[2] + " not " + length;
+        }
+        return null;
+    }
+
+    /**
+     * Parse a <code>Content-Range</code> header such as
+     * <code>bytes 100-199/200</code> into first byte, last byte and total
+     * length (-1 if given as <code>*</code>), or null if unparseable.
+     */
+    static long[] parseContentRange(String value) {
+        String v = value.trim();
+        if (!v.regionMatches(true, 0, "bytes ", 0, 6)) {
+            return null;
+        }
+        v = v.substring(6).trim();
+        int dash = v.indexOf('-');
+        int slash = v.indexOf('/');
+        if (dash <= 0 || slash < dash) {
+            return null;
+        }
+        try {
+            long first = Long.parseLong(v.substring(0, dash).trim());
+            long last = Long.parseLong(v.substring(dash + 1, slash).trim());
+            String total = v.substring(slash + 1).trim();
+            long length = "*".equals(total) ? -1 : Long.parseLong(total);
+            if (first < 0 || last < first || (length >= 0 && last >= length)) {
+                return null;
+            }
+            return new long[]{first, last, length};
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+}
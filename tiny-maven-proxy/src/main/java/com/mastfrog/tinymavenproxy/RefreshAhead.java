@@ -0,0 +1,135 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.tinymavenproxy;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.mastfrog.acteur.server.ServerModule;
+import com.mastfrog.url.Path;
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps popular files which expire - chiefly <code>maven-metadata.xml</code>
+ * - fresh, so the first client after they expire does not wait on upstream:
+ * a file asked for often enough since it was last validated is revalidated
+ * in the background when it is a hit in the last part of its time-to-live.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class RefreshAhead {
+
+    private static final int MAX_TRACKED = 4096;
+    private final int hits;
+    private final int percent;
+    private final Freshness freshness;
+    private final BiConsumer<Path, File> refresh;
+    private final LongSupplier clock;
+    private final Cache<Path, Hot> hot = CacheBuilder.newBuilder()
+            .maximumSize(MAX_TRACKED)
+            .expireAfterAccess(1, TimeUnit.HOURS)
+            .build();
+    private final LongAdder refreshes = new LongAdder();
+
+    @Inject
+    RefreshAhead(Config config, Freshness freshness, Provider<DownloaderV2A> downloader,
+            @Named(ServerModule.BACKGROUND_THREAD_POOL_NAME) ExecutorService pool) {
+        this(config.refreshAheadHits, config.refreshAheadPercent, freshness, (path, file) -> {
+            pool.submit(() -> downloader.get().refresh(path, file));
+        }, System::currentTimeMillis);
+    }
+
+    RefreshAhead(int hits, int percent, Freshness freshness, BiConsumer<Path, File> refresh, LongSupplier clock) {
+        this.hits = hits;
+        this.percent = percent;
+        this.freshness = freshness;
+        this.refresh = refresh;
+        this.clock = clock;
+    }
+
+    /**
+     * A client was sent a fresh cached file, which goes stale at the passed
+     * time.
+     */
+    void hit(Path path, File file, long expiresAt) {
+        if (hits <= 0 || expiresAt == Long.MAX_VALUE) {
+            return;
+        }
+        long window = freshness.ttlMillis(path) * percent / 100;
+        Hot entry;
+        try {
+            entry = hot.get(path, Hot::new);
+        } catch (ExecutionException ex) {
+            return;
+        }
+        if (entry.hit(expiresAt, expiresAt - clock.getAsLong() <= window, hits)) {
+            refreshes.increment();
+            refresh.accept(path, file);
+        }
+    }
+
+    Map<String, Object> stats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("tracked", hot.size());
+        result.put("refreshes", refreshes.sum());
+        return result;
+    }
+
+    /**
+     * Hits on one path since it was last validated.
+     */
+    private static final class Hot {
+
+        private long expiresAt;
+        private int hits;
+        private boolean refreshed;
+
+        synchronized boolean hit(long expiresAt, boolean inWindow, int threshold) {
+            if (expiresAt != this.expiresAt) {
+                // Downloaded or revalidated since - start counting again
+                this.expiresAt = expiresAt;
+                hits = 0;
+                refreshed = false;
+            }
+            hits++;
+            if (!refreshed && inWindow && hits >= threshold) {
+                refreshed = true;
+                return true;
+            }
+            return false;
+        }
+    }
+}
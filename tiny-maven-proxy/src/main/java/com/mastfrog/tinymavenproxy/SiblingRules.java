@@ -0,0 +1,90 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.tinymavenproxy;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.mastfrog.url.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Rules, by packaging, for which files a client that has just fetched a
+ * POM will ask for next from the same directory - for <code>jar</code>
+ * packaging, the jar.  Populated from configuration; other rules may be
+ * registered in code.  Checksums need no rule, since they are written
+ * locally as each file is cached.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class SiblingRules {
+
+    private final Map<String, SiblingRule> rules = new ConcurrentHashMap<>();
+
+    @Inject
+    SiblingRules(Config config) {
+        config.siblingSuffixes.forEach((packaging, suffixes) -> {
+            if (!suffixes.isEmpty()) {
+                register(packaging, suffixes(suffixes));
+            }
+        });
+    }
+
+    void register(String packaging, SiblingRule rule) {
+        rules.put(packaging, rule);
+    }
+
+    SiblingRule rule(String packaging) {
+        return rules.get(packaging);
+    }
+
+    /**
+     * A rule which replaces the <code>.pom</code> of the POM's file name
+     * with each of the passed suffixes, e.g. <code>.jar</code> or
+     * <code>-sources.jar</code>.
+     */
+    static SiblingRule suffixes(List<String> suffixes) {
+        return (pomPath, pom) -> {
+            String str = pomPath.toString();
+            if (!str.endsWith(".pom")) {
+                return Collections.emptyList();
+            }
+            String base = str.substring(0, str.length() - 4);
+            List<Path> result = new ArrayList<>(suffixes.size());
+            for (String suffix : suffixes) {
+                result.add(Path.parse(base + suffix));
+            }
+            return result;
+        };
+    }
+
+    interface SiblingRule {
+
+        List<Path> siblings(Path pomPath, Pom pom);
+    }
+}
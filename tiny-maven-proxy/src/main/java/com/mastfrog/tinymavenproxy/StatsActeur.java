@@ -0,0 +1,67 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.tinymavenproxy;
+
+import com.google.inject.Inject;
+import com.mastfrog.acteur.Acteur;
+import com.mastfrog.acteur.annotations.HttpCall;
+import com.mastfrog.acteur.header.entities.CacheControl;
+import com.mastfrog.acteur.headers.Headers;
+import static com.mastfrog.acteur.headers.Method.GET;
+import com.mastfrog.acteur.preconditions.Description;
+import com.mastfrog.acteur.preconditions.Methods;
+import com.mastfrog.acteur.preconditions.Path;
+import com.mastfrog.mime.MimeType;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Exposes the proxy's internal statistics as JSON.
+ *
+ * @author Tim Boudreau
+ */
+@HttpCall
+@Methods(GET)
+@Path("/_stats")
+@Description(category = "Info", value = "Mirror scores and download statistics")
+public class StatsActeur extends Acteur {
+
+    @Inject
+    StatsActeur(MirrorScores scores, DownloaderV2A downloader, MirrorBulkheads bulkheads,
+            BandwidthScheduler bandwidth, Prefetcher prefetcher, NegativeCache negatives, MirrorBreakers breakers,
+            RefreshAhead refreshAhead) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("mirrors", scores.stats());
+        result.put("downloads", downloader.stats());
+        result.put("bulkheads", bulkheads.stats());
+        result.put("breakers", breakers.stats());
+        result.put("bandwidth", bandwidth.stats());
+        result.put("prefetch", prefetcher.stats());
+        result.put("negativeCache", negatives.stats());
+        result.put("refreshAhead", refreshAhead.stats());
+        add(Headers.CACHE_CONTROL, CacheControl.PRIVATE_NO_CACHE_NO_STORE);
+        add(Headers.CONTENT_TYPE, MimeType.JSON_UTF_8);
+        ok(result);
+    }
+}
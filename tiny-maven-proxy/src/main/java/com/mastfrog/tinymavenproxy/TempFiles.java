@@ -28,34 +28,44 @@ import com.google.inject.Singleton;
 import com.mastfrog.function.throwing.ThrowingRunnable;
 import com.mastfrog.settings.Settings;
 import com.mastfrog.shutdown.hooks.ShutdownHooks;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import static java.lang.System.getProperty;
 import static java.lang.Thread.holdsLock;
 import java.net.http.HttpResponse;
 import java.net.http.HttpResponse.ResponseInfo;
 import java.nio.ByteBuffer;
-import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import static java.nio.file.Files.deleteIfExists;
 import static java.nio.file.Files.move;
 import static java.nio.file.Files.createDirectories;
 import static java.nio.file.Files.exists;
-import static java.nio.file.Files.newByteChannel;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
 import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
 import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
 import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
 import static java.nio.file.StandardOpenOption.WRITE;
 import java.nio.file.attribute.FileTime;
 import java.time.Instant;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
 import static java.util.Collections.newSetFromMap;
 import static java.util.Collections.synchronizedSet;
+import java.util.List;
 import java.util.Optional;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.WeakHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -71,12 +81,14 @@ final class TempFiles implements ThrowingRunnable {
     private static final AtomicLong COUNTER = new AtomicLong();
     private final Set<TempFile> unclosed
             = synchronizedSet(newSetFromMap(new WeakHashMap<>()));
+    private final ByteBufAllocator alloc;
 
     @Inject
     @SuppressWarnings("LeakingThisInConstructor")
-    TempFiles(Settings settings, ShutdownHooks onShutdown) {
+    TempFiles(Settings settings, ShutdownHooks onShutdown, ByteBufAllocator alloc) {
         this.tmp = Paths.get(settings.getString("download-tmp",
                 getProperty("java.io.tmpdir")));
+        this.alloc = alloc;
         onShutdown.addLastThrowing(this);
     }
 
@@ -86,9 +98,20 @@ final class TempFiles implements ThrowingRunnable {
     }
 
     public TempFile tempFile(String dlId) {
-        Path nue = tmp.resolve(PREFIX + "-" + dlId
+        return addTempFile(new TempFile(newPath(dlId)));
+    }
+
+    /**
+     * A temp file for a body small enough to keep in memory, which is only
+     * written to disk when it is moved into the cache.
+     */
+    public TempFile inMemory(String dlId, int length) {
+        return addTempFile(new TempFile(newPath(dlId), alloc.directBuffer(length)));
+    }
+
+    private Path newPath(String dlId) {
+        return tmp.resolve(PREFIX + "-" + dlId
                 + "-" + Long.toString(COUNTER.incrementAndGet(), 36));
-        return addTempFile(new TempFile(nue));
     }
 
     @Override
@@ -98,18 +121,45 @@ final class TempFiles implements ThrowingRunnable {
         }
     }
 
+    /**
+     * Called when a batch of buffers has been written to a temp file, or
+     * failed to be.
+     */
+    interface WriteCallback {
+
+        void written(long bytes, Throwable thrown);
+    }
+
     static final class TempFile implements AutoCloseable {
 
         static Boolean atomicMoves;
         private final Path path;
-        private SeekableByteChannel channel;
+        private AsynchronousFileChannel channel;
+        private final Writer writer = new Writer(true);
         private boolean closed;
         private Instant lastModified;
         private HttpResponse.ResponseInfo info;
         private Path dest;
+        private long written;
+        private List<Runnable> onAvailable;
+        private final Digests digests = new Digests();
+        private byte[] gzipped;
+        // For a file downloaded in several ranges at once
+        private List<AsynchronousFileChannel> rangeChannels;
+        private TreeMap<Long, Long> rangesAhead;
+        // The contents, for a file kept in memory until it is cached
+        private final boolean inMemory;
+        private ByteBuf buffer;
 
         public TempFile(Path path) {
             this.path = path;
+            this.inMemory = false;
+        }
+
+        TempFile(Path path, ByteBuf buffer) {
+            this.path = path;
+            this.buffer = buffer;
+            this.inMemory = true;
         }
 
         static void atomicMoveBroken() {
@@ -133,11 +183,18 @@ final class TempFiles implements ThrowingRunnable {
             return path;
         }
 
+        /**
+         * Digests of the contents, which the writer updates as it appends.
+         */
+        public Digests digests() {
+            return digests;
+        }
+
         public Optional<Instant> lastModified() {
             return Optional.ofNullable(lastModified);
         }
 
-        public boolean isClosed() {
+        public synchronized boolean isClosed() {
             return closed;
         }
 
@@ -155,29 +212,395 @@ final class TempFiles implements ThrowingRunnable {
             return this;
         }
 
+        /**
+         * The body as it arrived gzipped from upstream, if it did, to be
+         * kept as the file's gzipped copy.
+         */
+        public synchronized Optional<byte[]> gzipped() {
+            return Optional.ofNullable(gzipped);
+        }
+
+        synchronized TempFile gzipped(byte[] gzipped) {
+            this.gzipped = gzipped;
+            return this;
+        }
+
         public synchronized TempFile withResponseInfo(ResponseInfo info) {
             this.info = info;
             return this;
         }
 
-        private SeekableByteChannel channel() throws IOException {
+        private AsynchronousFileChannel channel() throws IOException {
             assert Thread.holdsLock(this);
             if (channel == null) {
-                channel = newByteChannel(path, WRITE, CREATE_NEW, TRUNCATE_EXISTING);
+                channel = AsynchronousFileChannel.open(path, WRITE, CREATE_NEW);
             }
             return channel;
         }
 
-        public synchronized void append(ByteBuffer buf) throws IOException {
-            if (closed) {
+        /**
+         * Append a batch of buffers without blocking; the callback is called
+         * with the byte count once all of them are on disk, and only then
+         * are they counted as written.  One batch may be in progress at a
+         * time, and the buffers must not be touched until it is done.  Each
+         * batch reuses the same completion handler, writing the buffers one
+         * after another, so nothing is allocated here per batch.
+         */
+        public void write(List<ByteBuffer> buffers, WriteCallback callback) {
+            if (inMemory) {
+                append(buffers, callback);
                 return;
             }
-            channel().write(buf);
+            AsynchronousFileChannel ch;
+            Throwable failure = null;
+            synchronized (this) {
+                if (closed) {
+                    failure = new ClosedChannelException();
+                } else if (writer.callback != null) {
+                    failure = new IllegalStateException("Write already in progress to " + path);
+                } else {
+                    try {
+                        ch = channel();
+                        writer.start(ch, buffers, written, callback);
+                    } catch (IOException ex) {
+                        failure = ex;
+                    }
+                }
+            }
+            if (failure != null) {
+                callback.written(0, failure);
+            } else {
+                writer.next();
+            }
+        }
+
+        /**
+         * Write for a file kept in memory, which completes before returning.
+         */
+        private void append(List<ByteBuffer> buffers, WriteCallback callback) {
+            long count = 0;
+            Throwable failure = null;
+            synchronized (this) {
+                if (closed) {
+                    failure = new ClosedChannelException();
+                } else {
+                    for (int i = 0; i < buffers.size(); i++) {
+                        ByteBuffer buf = buffers.get(i);
+                        count += buf.remaining();
+                        buffer.writeBytes(buf);
+                    }
+                }
+            }
+            if (failure != null) {
+                callback.written(0, failure);
+                return;
+            }
+            written(count);
+            callback.written(count, null);
+        }
+
+        /**
+         * Whether the file is being kept in memory until it is cached.
+         */
+        public boolean isInMemory() {
+            return inMemory;
+        }
+
+        /**
+         * Get a new reference, which the caller must release, to the
+         * contents of a file kept in memory, if it has not yet been written
+         * to disk or discarded.
+         */
+        public synchronized Optional<ByteBuf> content() {
+            return buffer == null ? Optional.empty() : Optional.of(buffer.retainedDuplicate());
+        }
+
+        /**
+         * Copy the file as it is so far somewhere else.
+         */
+        public synchronized void copyTo(Path target) throws IOException {
+            if (buffer != null) {
+                writeContent(target);
+            } else {
+                Files.copy(path(), target, REPLACE_EXISTING);
+            }
+        }
+
+        private void writeContent(Path target) throws IOException {
+            assert holdsLock(this);
+            ByteBuf content = buffer.duplicate();
+            try (FileChannel ch = FileChannel.open(target, CREATE, TRUNCATE_EXISTING, WRITE)) {
+                while (content.isReadable()) {
+                    content.readBytes(ch, content.readableBytes());
+                }
+            }
+        }
+
+        private void releaseBuffer() {
+            assert holdsLock(this);
+            if (buffer != null) {
+                buffer.release();
+                buffer = null;
+            }
+        }
+
+        private void written(long count) {
+            List<Runnable> toRun;
+            synchronized (this) {
+                written += count;
+                absorbRanges();
+                toRun = takeListeners();
+            }
+            runListeners(toRun);
+        }
+
+        /**
+         * Give the file its full length up front, for a download fetched in
+         * several ranges at once which will write it out of order.
+         */
+        public synchronized void preallocate(long length) throws IOException {
+            channel();
+            try (RandomAccessFile raf = new RandomAccessFile(path.toFile(), "rw")) {
+                raf.setLength(length);
+            }
+        }
+
+        /**
+         * Open a writer for the range of the file starting at
+         * <code>position</code>, which writes independently of the writer
+         * behind <code>write()</code> and any other range's; what it writes
+         * counts as written only once <code>rangeWritten()</code> has been
+         * called for it, and everything before it has been written.
+         */
+        public synchronized RangeWriter rangeWriter(long position) throws IOException {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+            channel();
+            AsynchronousFileChannel ch = AsynchronousFileChannel.open(path, WRITE);
+            if (rangeChannels == null) {
+                rangeChannels = new ArrayList<>(4);
+            }
+            rangeChannels.add(ch);
+            return new RangeWriter(ch, position);
+        }
+
+        /**
+         * Record that the bytes from start up to end have been written by a
+         * range writer.
+         */
+        public void rangeWritten(long start, long end) {
+            List<Runnable> toRun;
+            synchronized (this) {
+                if (rangesAhead == null) {
+                    rangesAhead = new TreeMap<>();
+                }
+                rangesAhead.put(start, end);
+                absorbRanges();
+                toRun = takeListeners();
+            }
+            runListeners(toRun);
+        }
+
+        private void absorbRanges() {
+            assert holdsLock(this);
+            if (rangesAhead != null) {
+                Long end;
+                while ((end = rangesAhead.remove(written)) != null) {
+                    written = end;
+                }
+            }
+        }
+
+        /**
+         * Writes one range of the file, a batch at a time, like
+         * <code>write()</code>.
+         */
+        final class RangeWriter {
+
+            private final AsynchronousFileChannel channel;
+            private final Writer writer = new Writer(false);
+
+            RangeWriter(AsynchronousFileChannel channel, long position) {
+                this.channel = channel;
+                writer.position = position;
+            }
+
+            public void write(List<ByteBuffer> buffers, WriteCallback callback) {
+                Throwable failure = null;
+                synchronized (TempFile.this) {
+                    if (closed) {
+                        failure = new ClosedChannelException();
+                    } else if (writer.callback != null) {
+                        failure = new IllegalStateException("Write already in progress to " + path);
+                    } else {
+                        writer.start(channel, buffers, writer.position, callback);
+                    }
+                }
+                if (failure != null) {
+                    callback.written(0, failure);
+                } else {
+                    writer.next();
+                }
+            }
+        }
+
+        /**
+         * Writes the buffers of one batch in turn at consecutive offsets,
+         * retrying short writes.
+         */
+        private final class Writer implements CompletionHandler<Integer, ByteBuffer> {
+
+            // Whether what is written counts towards written() directly
+            private final boolean sequential;
+            private AsynchronousFileChannel channel;
+            private List<ByteBuffer> buffers;
+            private WriteCallback callback;
+            private int index;
+            private long position;
+            private long count;
+
+            Writer(boolean sequential) {
+                this.sequential = sequential;
+            }
+
+            void start(AsynchronousFileChannel channel, List<ByteBuffer> buffers, long position,
+                    WriteCallback callback) {
+                assert holdsLock(TempFile.this);
+                this.channel = channel;
+                this.buffers = buffers;
+                this.position = position;
+                this.callback = callback;
+                index = 0;
+                count = 0;
+            }
+
+            void next() {
+                ByteBuffer buf = null;
+                while (index < buffers.size()) {
+                    buf = buffers.get(index);
+                    if (buf.hasRemaining()) {
+                        break;
+                    }
+                    buf = null;
+                    index++;
+                }
+                if (buf == null) {
+                    finish(null);
+                    return;
+                }
+                try {
+                    channel.write(buf, position, buf, this);
+                } catch (RuntimeException ex) {
+                    finish(ex);
+                }
+            }
+
+            @Override
+            public void completed(Integer bytes, ByteBuffer buf) {
+                position += bytes;
+                count += bytes;
+                next();
+            }
+
+            @Override
+            public void failed(Throwable thrown, ByteBuffer buf) {
+                finish(thrown);
+            }
+
+            private void finish(Throwable thrown) {
+                WriteCallback cb;
+                long bytes = count;
+                synchronized (TempFile.this) {
+                    cb = callback;
+                    callback = null;
+                    buffers = null;
+                    channel = null;
+                }
+                if (thrown == null && sequential) {
+                    written(bytes);
+                }
+                cb.written(bytes, thrown);
+            }
+        }
+
+        /**
+         * The number of bytes written so far, for streaming the file to
+         * clients while it is still being downloaded.
+         */
+        public synchronized long written() {
+            return written;
+        }
+
+        /**
+         * Returns true if the file was closed and moved into place, as
+         * opposed to closed and discarded.
+         */
+        public synchronized boolean isCommitted() {
+            return dest != null;
+        }
+
+        /**
+         * Run the passed runnable once more than <code>position</code> bytes
+         * have been written or the file is closed - immediately if that is
+         * already the case.  It may be run on whatever thread is writing.
+         */
+        public void whenAvailable(long position, Runnable r) {
+            synchronized (this) {
+                if (written <= position && !closed) {
+                    if (onAvailable == null) {
+                        onAvailable = new ArrayList<>(3);
+                    }
+                    onAvailable.add(r);
+                    return;
+                }
+            }
+            r.run();
+        }
+
+        /**
+         * Open a channel to read the file, whether it is still downloading
+         * or has already been committed to the cache.  A channel opened
+         * before the file is moved stays readable after it.
+         */
+        public synchronized FileChannel openForRead() throws IOException {
+            if (dest != null) {
+                return FileChannel.open(dest, READ);
+            }
+            if (closed) {
+                throw new IOException("Download to " + path + " was discarded");
+            }
+            if (inMemory) {
+                throw new IOException("Download to " + path + " is in memory");
+            }
+            channel();
+            return FileChannel.open(path, READ);
+        }
+
+        private List<Runnable> takeListeners() {
+            assert holdsLock(this);
+            List<Runnable> result = onAvailable;
+            onAvailable = null;
+            return result;
+        }
+
+        private static void runListeners(List<Runnable> listeners) {
+            if (listeners != null) {
+                for (Runnable r : listeners) {
+                    r.run();
+                }
+            }
         }
 
         private boolean closeChannel() throws IOException {
             assert holdsLock(this);
-            SeekableByteChannel ch = channel;
+            if (rangeChannels != null) {
+                for (AsynchronousFileChannel rc : rangeChannels) {
+                    rc.close();
+                }
+                rangeChannels = null;
+            }
+            AsynchronousFileChannel ch = channel;
             if (ch != null) {
                 ch.close();
                 return true;
@@ -185,45 +608,71 @@ final class TempFiles implements ThrowingRunnable {
             return false;
         }
 
-        public synchronized boolean close(Path moveTo) throws IOException {
-            if (!closed) {
+        public boolean close(Path moveTo) throws IOException {
+            List<Runnable> toRun;
+            synchronized (this) {
+                if (closed) {
+                    return false;
+                }
                 closed = true;
-                closeChannel();
-                if (!exists(moveTo.getParent())) {
-                    try {
-                        createDirectories(moveTo.getParent());
-                    } catch (FileAlreadyExistsException ex) {
-                        // do nothing
+                try {
+                    closeChannel();
+                    if (!exists(moveTo.getParent())) {
+                        try {
+                            createDirectories(moveTo.getParent());
+                        } catch (FileAlreadyExistsException ex) {
+                            // do nothing
+                        }
                     }
-                }
-                if (canAtomicMove()) {
-                    try {
-                        move(path, moveTo, REPLACE_EXISTING, ATOMIC_MOVE);
-                    } catch (IOException ex) {
-                        atomicMoveBroken();
-                        move(path, moveTo, REPLACE_EXISTING);
+                    Path source = path;
+                    if (inMemory) {
+                        // Written next to where it is going, so the move is
+                        // a rename
+                        source = moveTo.resolveSibling("." + moveTo.getFileName() + ".tmp");
+                        writeContent(source);
                     }
-                } else {
-                    move(path, moveTo, REPLACE_EXISTING);
-                }
-                Instant lm = lastModified;
-                if (lm != null) {
-                    Files.setLastModifiedTime(moveTo, FileTime.from(lm));
+                    if (canAtomicMove()) {
+                        try {
+                            move(source, moveTo, REPLACE_EXISTING, ATOMIC_MOVE);
+                        } catch (IOException ex) {
+                            atomicMoveBroken();
+                            move(source, moveTo, REPLACE_EXISTING);
+                        }
+                    } else {
+                        move(source, moveTo, REPLACE_EXISTING);
+                    }
+                    Instant lm = lastModified;
+                    if (lm != null) {
+                        Files.setLastModifiedTime(moveTo, FileTime.from(lm));
+                    }
+                    dest = moveTo;
+                } finally {
+                    releaseBuffer();
+                    toRun = takeListeners();
                 }
-                dest = moveTo;
-                return true;
             }
-            return false;
+            runListeners(toRun);
+            return true;
         }
 
         @Override
-        public synchronized void close() throws IOException {
-            if (!closed) {
+        public void close() throws IOException {
+            List<Runnable> toRun;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
                 closed = true;
-                if (closeChannel()) {
-                    deleteIfExists(path);
+                try {
+                    if (closeChannel()) {
+                        deleteIfExists(path);
+                    }
+                } finally {
+                    releaseBuffer();
+                    toRun = takeListeners();
                 }
             }
+            runListeners(toRun);
         }
     }
 }
@@ -40,6 +40,7 @@ import static com.mastfrog.acteur.headers.Method.HEAD;
 import com.mastfrog.acteur.preconditions.Description;
 import com.mastfrog.acteur.preconditions.Methods;
 import com.mastfrog.acteur.preconditions.PathRegex;
+import com.mastfrog.acteur.server.EventLoopFactory;
 import com.mastfrog.acteur.server.ServerBuilder;
 import com.mastfrog.acteur.server.ServerModule;
 import static com.mastfrog.acteur.server.ServerModule.BYTEBUF_ALLOCATOR_SETTINGS_KEY;
@@ -59,6 +60,7 @@ import static com.mastfrog.giulius.bunyan.java.v2.LoggingModule.SETTINGS_KEY_ASY
 import static com.mastfrog.giulius.bunyan.java.v2.LoggingModule.SETTINGS_KEY_LOG_LEVEL;
 import com.mastfrog.settings.Settings;
 import com.mastfrog.settings.SettingsBuilder;
+import com.mastfrog.shutdown.hooks.ShutdownHooks;
 import com.mastfrog.url.URL;
 import com.mastfrog.util.libversion.VersionInfo;
 import static com.mastfrog.util.preconditions.Checks.notNull;
@@ -96,6 +98,12 @@ public class TinyMavenProxy extends AbstractModule {
     public static final String SETTINGS_KEY_DOWNLOAD_CHUNK_SIZE = "download.chunk.size";
     public static final String SETTINGS_KEY_HTTP_CLIENT_CONNECT_TIMEOUT_SECONDS
             = "http.client.connect.timeout.seconds";
+    /**
+     * Which HTTP client to make upstream requests with - <code>jdk</code> for
+     * the JDK's, or <code>netty</code> for one running on the server's own
+     * event loops.
+     */
+    public static final String SETTINGS_KEY_UPSTREAM_ENGINE = "upstream.engine";
     static final int DEFAULT_DOWNLOAD_CHUNK_SIZE = 1480;
 
     static SettingsBuilder defaultSettings() {
@@ -146,7 +154,7 @@ public class TinyMavenProxy extends AbstractModule {
 
     @Override
     protected void configure() {
-        bind(HttpClient.class).toProvider(JavaHttpClientProvider.class).in(Scopes.SINGLETON);
+        bind(HttpClient.class).toProvider(HttpClientProvider.class).in(Scopes.SINGLETON);
         bind(StartupLogger.class).asEagerSingleton();
         bind(UniqueIDs.class).toProvider(UniqueIDsProvider.class).in(Scopes.SINGLETON);
         bind(ByteBuf.class).annotatedWith(Names.named("index")).toProvider(IndexPageProvider.class);
@@ -200,18 +208,33 @@ public class TinyMavenProxy extends AbstractModule {
     }
 
     @Singleton
-    static class JavaHttpClientProvider implements Provider<HttpClient> {
+    static class HttpClientProvider implements Provider<HttpClient> {
 
         private final java.net.http.HttpClient client;
 
         @Inject
-        JavaHttpClientProvider(@Named(ServerModule.BACKGROUND_THREAD_POOL_NAME) ExecutorService executor,
-                Settings settings) {
-            client = java.net.http.HttpClient.newBuilder()
-                    .connectTimeout(Duration.ofSeconds(
-                            settings.getLong(SETTINGS_KEY_HTTP_CLIENT_CONNECT_TIMEOUT_SECONDS, 20)))
-                    .followRedirects(java.net.http.HttpClient.Redirect.ALWAYS)
-                    .build();
+        HttpClientProvider(@Named(ServerModule.BACKGROUND_THREAD_POOL_NAME) ExecutorService executor,
+                Settings settings, EventLoopFactory loops, ByteBufAllocator alloc, ShutdownHooks onShutdown) {
+            Duration connectTimeout = Duration.ofSeconds(
+                    settings.getLong(SETTINGS_KEY_HTTP_CLIENT_CONNECT_TIMEOUT_SECONDS, 20));
+            String engine = settings.getString(SETTINGS_KEY_UPSTREAM_ENGINE, "jdk");
+            switch (engine) {
+                case "netty":
+                    NettyHttpClient netty = new NettyHttpClient(loops.getWorkerGroup(), alloc,
+                            connectTimeout, executor);
+                    onShutdown.add(netty::close);
+                    client = netty;
+                    break;
+                case "jdk":
+                    client = java.net.http.HttpClient.newBuilder()
+                            .connectTimeout(connectTimeout)
+                            .followRedirects(java.net.http.HttpClient.Redirect.ALWAYS)
+                            .build();
+                    break;
+                default:
+                    throw new ConfigurationError("Unknown " + SETTINGS_KEY_UPSTREAM_ENGINE + " '"
+                            + engine + "' - must be jdk or netty");
+            }
         }
 
         @Override
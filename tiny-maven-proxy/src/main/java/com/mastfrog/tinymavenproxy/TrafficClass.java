@@ -0,0 +1,96 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.tinymavenproxy;
+
+import com.mastfrog.url.Path;
+
+/**
+ * Kinds of upstream request, in priority order - the small files that
+ * block dependency resolution first, large binaries after, and speculative
+ * downloads no client has asked for yet last of all.
+ *
+ * @author Tim Boudreau
+ */
+enum TrafficClass {
+    METADATA,
+    CHECKSUM,
+    POM,
+    JAR,
+    LARGE,
+    PREFETCH;
+
+    static TrafficClass of(Path path) {
+        if (path.size() == 0) {
+            return JAR;
+        }
+        // PathElement.toString() escapes hyphens; Path.toString() does not
+        String str = path.toString();
+        String name = str.substring(str.lastIndexOf('/') + 1);
+        if (name.startsWith("maven-metadata")) {
+            // including maven-metadata.xml.sha1
+            return METADATA;
+        }
+        if (isChecksum(name)) {
+            return CHECKSUM;
+        }
+        if (name.endsWith(".pom")) {
+            return POM;
+        }
+        return JAR;
+    }
+
+    /**
+     * Whether a path is a checksum or signature of another file - including
+     * those of <code>maven-metadata.xml</code>, which are classed as
+     * metadata for scheduling.
+     */
+    static boolean isChecksum(Path path) {
+        String str = path.toString();
+        return isChecksum(str.substring(str.lastIndexOf('/') + 1));
+    }
+
+    private static boolean isChecksum(String name) {
+        return name.endsWith(".sha1") || name.endsWith(".md5") || name.endsWith(".sha256")
+                || name.endsWith(".sha512") || name.endsWith(".asc");
+    }
+
+    /**
+     * Reclassify once the length is known from the response headers.
+     */
+    TrafficClass withLength(long length, long largeThreshold) {
+        return this != PREFETCH && length > largeThreshold ? LARGE : this;
+    }
+
+    /**
+     * Whether files of this kind are text worth asking upstream to send
+     * gzipped; checksums are too small to gain anything from it.
+     */
+    boolean isCompressible() {
+        return this == METADATA || this == POM;
+    }
+
+    String settingsName() {
+        return name().toLowerCase();
+    }
+}
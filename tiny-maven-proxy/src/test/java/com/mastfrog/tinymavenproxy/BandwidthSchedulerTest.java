@@ -0,0 +1,138 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.tinymavenproxy;
+
+import com.mastfrog.settings.Settings;
+import com.mastfrog.settings.SettingsBuilder;
+import static com.mastfrog.tinymavenproxy.Config.SETTINGS_KEY_BANDWIDTH_LIMIT;
+import static com.mastfrog.tinymavenproxy.Config.SETTINGS_KEY_INDEX_DIR;
+import static com.mastfrog.tinymavenproxy.Config.SETTINGS_KEY_MIRROR_URLS;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import java.util.concurrent.atomic.AtomicLong;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class BandwidthSchedulerTest {
+
+    private final AtomicLong clock = new AtomicLong(1);
+    private final List<Runnable> timers = new ArrayList<>();
+    private final List<String> ran = new ArrayList<>();
+
+    @Test
+    public void testUnlimitedByDefault() throws IOException {
+        BandwidthScheduler sched = scheduler(Settings.builder());
+        for (TrafficClass c : TrafficClass.values()) {
+            assertTrue(c.name(), sched.isUnlimited(c));
+        }
+    }
+
+    @Test
+    public void testGlobalLimitServesSmallFilesFirst() throws IOException {
+        BandwidthScheduler sched = scheduler(Settings.builder()
+                .add(SETTINGS_KEY_BANDWIDTH_LIMIT, 100_000));
+        assertFalse(sched.isUnlimited(TrafficClass.POM));
+        // Goes through on the initial burst, and puts the bucket in debt
+        sched.acquire(TrafficClass.JAR, 150_000, run("jar1"));
+        sched.acquire(TrafficClass.JAR, 1_000, run("jar2"));
+        sched.acquire(TrafficClass.METADATA, 1_000, run("metadata"));
+        assertEquals(Arrays.asList("jar1"), ran);
+        assertEquals(1, timers.size());
+
+        // Half a second pays off the debt; the metadata request goes first
+        // and puts the bucket back in debt
+        clock.addAndGet(MILLISECONDS.toNanos(500));
+        fireTimers();
+        assertEquals(Arrays.asList("jar1", "metadata"), ran);
+
+        clock.addAndGet(MILLISECONDS.toNanos(10));
+        fireTimers();
+        assertEquals(Arrays.asList("jar1", "metadata", "jar2"), ran);
+    }
+
+    @Test
+    public void testClassLimitOnlyThrottlesThatClass() throws IOException {
+        BandwidthScheduler sched = scheduler(Settings.builder()
+                .add(SETTINGS_KEY_BANDWIDTH_LIMIT + ".large", 100_000));
+        assertTrue(sched.isUnlimited(TrafficClass.POM));
+        assertFalse(sched.isUnlimited(TrafficClass.LARGE));
+        sched.acquire(TrafficClass.LARGE, 200_000, run("large1"));
+        sched.acquire(TrafficClass.LARGE, 1_000, run("large2"));
+        assertEquals(Arrays.asList("large1"), ran);
+        clock.addAndGet(MILLISECONDS.toNanos(999));
+        fireTimers();
+        assertEquals(Arrays.asList("large1"), ran);
+        clock.addAndGet(MILLISECONDS.toNanos(1));
+        fireTimers();
+        assertEquals(Arrays.asList("large1", "large2"), ran);
+    }
+
+    @Test
+    public void testClassification() {
+        assertEquals(TrafficClass.METADATA, TrafficClass.of(path("com/foo/bar/maven-metadata.xml")));
+        assertEquals(TrafficClass.METADATA, TrafficClass.of(path("com/foo/bar/maven-metadata.xml.sha1")));
+        assertEquals(TrafficClass.CHECKSUM, TrafficClass.of(path("com/foo/bar/1.0/bar-1.0.jar.sha1")));
+        assertEquals(TrafficClass.CHECKSUM, TrafficClass.of(path("com/foo/bar/1.0/bar-1.0.pom.asc")));
+        assertTrue(TrafficClass.isChecksum(path("com/foo/bar/maven-metadata.xml.sha1")));
+        assertTrue(TrafficClass.isChecksum(path("com/foo/bar/1.0/bar-1.0.jar.md5")));
+        assertFalse(TrafficClass.isChecksum(path("com/foo/bar/maven-metadata.xml")));
+        assertFalse(TrafficClass.isChecksum(path("com/foo/bar/1.0/bar-1.0.pom")));
+        assertEquals(TrafficClass.POM, TrafficClass.of(path("com/foo/bar/1.0/bar-1.0.pom")));
+        assertEquals(TrafficClass.JAR, TrafficClass.of(path("com/foo/bar/1.0/bar-1.0.jar")));
+        assertEquals(TrafficClass.LARGE, TrafficClass.of(path("com/foo/bar/1.0/bar-1.0.zip"))
+                .withLength(100_000_000, 8_000_000));
+        assertEquals(TrafficClass.POM, TrafficClass.of(path("com/foo/bar/1.0/bar-1.0.pom"))
+                .withLength(-1, 8_000_000));
+    }
+
+    private static com.mastfrog.url.Path path(String path) {
+        return com.mastfrog.url.Path.parse(path);
+    }
+
+    private Runnable run(String name) {
+        return () -> ran.add(name);
+    }
+
+    private void fireTimers() {
+        List<Runnable> copy = new ArrayList<>(timers);
+        timers.clear();
+        copy.forEach(Runnable::run);
+    }
+
+    private BandwidthScheduler scheduler(SettingsBuilder settings) throws IOException {
+        Settings s = settings.add(SETTINGS_KEY_MIRROR_URLS, "http://a.example/maven2/")
+                .add(SETTINGS_KEY_INDEX_DIR, System.getProperty("java.io.tmpdir") + "/BandwidthSchedulerTest")
+                .build();
+        return new BandwidthScheduler(new Config(s), clock::get, (delay, run) -> timers.add(run));
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.tinymavenproxy;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class ChunkStatsTest {
+
+    private static final int CHUNKS = 50_000;
+
+    @Test
+    public void testCounts() {
+        ChunkStats stats = new ChunkStats();
+        assertEquals(30, stats.received(Arrays.asList(ByteBuffer.allocate(10), ByteBuffer.allocate(20)), 0));
+        assertEquals(5, stats.received(Arrays.asList(ByteBuffer.allocate(5)), 2));
+        assertEquals(2, stats.items());
+        assertEquals(35, stats.bytes());
+    }
+
+    @Test
+    public void testPerChunkBookkeepingDoesNotAllocate() {
+        java.lang.management.ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        assumeTrue(mx instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) mx;
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+        long thread = Thread.currentThread().getId();
+        List<ByteBuffer> item = Arrays.asList(ByteBuffer.allocate(64), ByteBuffer.allocate(256));
+        ChunkStats stats = new ChunkStats();
+        Digests digests = new Digests();
+        // Warm up, so what is measured is compiled code
+        chunks(stats, digests, item);
+        long before = threads.getThreadAllocatedBytes(thread);
+        chunks(stats, digests, item);
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        // A few hundred bytes of slack for the measurement itself -
+        // anything per chunk would be megabytes
+        assertTrue("Allocated " + allocated + " bytes over " + CHUNKS + " chunks", allocated < 1024);
+        assertEquals(2L * CHUNKS, stats.items());
+    }
+
+    private static void chunks(ChunkStats stats, Digests digests, List<ByteBuffer> item) {
+        for (int i = 0; i < CHUNKS; i++) {
+            for (int j = 0; j < item.size(); j++) {
+                digests.update(item.get(j));
+            }
+            stats.received(item, i % 3);
+        }
+    }
+}
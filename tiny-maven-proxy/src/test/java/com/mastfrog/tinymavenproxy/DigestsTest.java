@@ -0,0 +1,74 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.tinymavenproxy;
+
+import com.mastfrog.tinymavenproxy.Digests.Kind;
+import java.nio.ByteBuffer;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class DigestsTest {
+
+    private static final String SHA1_ABC = "a9993e364706816aba3e25717850c26c9cd0d89d";
+    private static final String SHA256_ABC = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+    private static final String MD5_ABC = "900150983cd24fb0d6963f7d28e17f72";
+    private static final String SHA512_ABC = "ddaf35a193617abacc417349ae20413112e6fa4e89a97ea20a9eeee64b55d39a"
+            + "2192992a274fc1a836ba3c23a3feebbd454d4423643ce80e2a9ac94fa54ca49f";
+
+    @Test
+    public void testIncrementalDigests() {
+        Digests digests = new Digests();
+        ByteBuffer a = ByteBuffer.wrap("a".getBytes(UTF_8));
+        ByteBuffer bc = ByteBuffer.wrap("xbc".getBytes(UTF_8));
+        bc.position(1);
+        digests.update(a);
+        digests.update(bc);
+        assertEquals("Position should be untouched", 0, a.position());
+        assertEquals("Position should be untouched", 1, bc.position());
+        assertEquals(SHA1_ABC, digests.hex(Kind.SHA1));
+        assertEquals(SHA256_ABC, digests.hex(Kind.SHA256));
+        assertEquals(MD5_ABC, digests.hex(Kind.MD5));
+        assertEquals(SHA512_ABC, digests.hex(Kind.SHA512));
+        assertEquals(SHA1_ABC, digests.hex(Kind.SHA1));
+    }
+
+    @Test
+    public void testParseSidecar() {
+        assertEquals(SHA1_ABC, Digests.parseSidecar(SHA1_ABC + "\n", Kind.SHA1));
+        assertEquals(SHA1_ABC, Digests.parseSidecar(SHA1_ABC.toUpperCase() + "  foo-1.0.jar\n", Kind.SHA1));
+        assertEquals(SHA256_ABC, Digests.parseSidecar(SHA256_ABC, Kind.SHA256));
+        assertEquals(SHA512_ABC, Digests.parseSidecar(SHA512_ABC, Kind.SHA512));
+        assertEquals(MD5_ABC, Digests.parseSidecar(MD5_ABC, Kind.MD5));
+        assertNull(Digests.parseSidecar(SHA256_ABC, Kind.SHA1));
+        assertNull(Digests.parseSidecar("<html><body>Not Found</body></html>", Kind.SHA1));
+        assertNull(Digests.parseSidecar(SHA1_ABC.replace('a', 'g'), Kind.SHA1));
+        assertNull(Digests.parseSidecar("", Kind.SHA1));
+    }
+}
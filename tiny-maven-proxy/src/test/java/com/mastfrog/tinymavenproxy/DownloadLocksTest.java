@@ -0,0 +1,137 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.tinymavenproxy;
+
+import com.mastfrog.tinymavenproxy.DownloadLocks.Lock;
+import com.mastfrog.url.Path;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import java.util.stream.Stream;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class DownloadLocksTest {
+
+    private static final Path PATH = Path.parse("com/foo/bar/1.0/bar-1.0.jar");
+    private java.nio.file.Path dir;
+    private java.nio.file.Path target;
+    private java.nio.file.Path lockFile;
+    private ExecutorService pool;
+    private DownloadLocks first;
+    private DownloadLocks second;
+
+    @Before
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("DownloadLocksTest");
+        target = dir.resolve(PATH.toString());
+        lockFile = target.resolveSibling(".bar-1.0.jar.lock");
+        pool = Executors.newCachedThreadPool();
+        first = new DownloadLocks(dir, "first", 10, 60_000, pool);
+        second = new DownloadLocks(dir, "second", 10, 60_000, pool);
+    }
+
+    @After
+    public void teardown() throws IOException {
+        pool.shutdownNow();
+        try (Stream<java.nio.file.Path> all = Files.walk(dir)) {
+            all.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    public void testLoserServesWinnersFile() throws Exception {
+        Lock lock = first.acquire(PATH).get(5, SECONDS);
+        assertNotNull(lock);
+        assertTrue(Files.exists(lockFile));
+        CompletableFuture<Lock> waiting = second.acquire(PATH);
+        Thread.sleep(50);
+        assertFalse(waiting.isDone());
+        Files.write(target, new byte[]{1, 2, 3});
+        lock.release();
+        assertNull(waiting.get(5, SECONDS));
+        assertFalse(Files.exists(lockFile));
+        assertEquals(1L, second.stats().get("servedByOthers"));
+    }
+
+    @Test
+    public void testLockPassesOnIfWinnerFails() throws Exception {
+        Lock lock = first.acquire(PATH).get(5, SECONDS);
+        CompletableFuture<Lock> waiting = second.acquire(PATH);
+        Thread.sleep(50);
+        assertFalse(waiting.isDone());
+        lock.release();
+        Lock taken = waiting.get(5, SECONDS);
+        assertNotNull(taken);
+        assertEquals("second", new String(Files.readAllBytes(lockFile)));
+        taken.release();
+        assertFalse(Files.exists(lockFile));
+    }
+
+    @Test
+    public void testStaleLockIsTakenOver() throws Exception {
+        Files.createDirectories(lockFile.getParent());
+        Files.write(lockFile, "dead".getBytes());
+        Files.setLastModifiedTime(lockFile, FileTime.fromMillis(System.currentTimeMillis() - 120_000));
+        Lock lock = first.acquire(PATH).get(5, SECONDS);
+        assertNotNull(lock);
+        assertEquals("first", new String(Files.readAllBytes(lockFile)));
+        assertEquals(1L, first.stats().get("takenOver"));
+        first.run();
+        assertFalse(Files.exists(lockFile));
+    }
+
+    @Test
+    public void testCachedFileNeedsNoLock() throws Exception {
+        Files.createDirectories(target.getParent());
+        Files.write(target, new byte[]{1});
+        assertNull(first.acquire(PATH).get(5, SECONDS));
+        assertFalse(Files.exists(lockFile));
+    }
+
+    @Test
+    public void testCancelledWaiterStopsWaiting() throws Exception {
+        Lock lock = first.acquire(PATH).get(5, SECONDS);
+        CompletableFuture<Lock> waiting = second.acquire(PATH);
+        waiting.cancel(false);
+        lock.release();
+        Thread.sleep(50);
+        assertFalse(Files.exists(lockFile));
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.tinymavenproxy;
+
+import com.mastfrog.settings.Settings;
+import static com.mastfrog.tinymavenproxy.Config.SETTINGS_KEY_CACHE_TTL;
+import static com.mastfrog.tinymavenproxy.Config.SETTINGS_KEY_INDEX_DIR;
+import com.mastfrog.url.Path;
+import java.io.File;
+import java.io.IOException;
+import java.net.http.HttpHeaders;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class FreshnessTest {
+
+    private static final Path METADATA = Path.parse("com/foo/foo-bar/maven-metadata.xml");
+    private static final Path SNAPSHOT = Path.parse("com/foo/foo-bar/1.0-SNAPSHOT/foo-bar-1.0-20220101.120000-1.jar");
+    private static final Path RELEASE = Path.parse("com/foo/foo-bar/1.0/foo-bar-1.0.jar");
+
+    @Test
+    public void testKinds() {
+        assertEquals(Freshness.Kind.METADATA, Freshness.Kind.of(METADATA));
+        assertEquals(Freshness.Kind.METADATA, Freshness.Kind.of(Path.parse("com/foo/foo-bar/maven-metadata.xml.sha1")));
+        assertEquals(Freshness.Kind.SNAPSHOT, Freshness.Kind.of(SNAPSHOT));
+        assertEquals(Freshness.Kind.RELEASE, Freshness.Kind.of(RELEASE));
+    }
+
+    @Test
+    public void testStalenessAndValidators() throws IOException {
+        java.nio.file.Path dir = Files.createTempDirectory("FreshnessTest");
+        AtomicLong clock = new AtomicLong(System.currentTimeMillis());
+        Freshness freshness = new Freshness(config(), dir.resolve("state"), "test", clock::get);
+        File cached = cachedFile(dir, METADATA);
+        File release = cachedFile(dir, RELEASE);
+        File snapshot = cachedFile(dir, SNAPSHOT);
+
+        freshness.validated(METADATA, "https://repo.example/maven2/", headers("etag", "\"abc\""), null);
+        assertFalse(freshness.isStale(METADATA, cached));
+        clock.addAndGet(59_000);
+        assertFalse(freshness.isStale(METADATA, cached));
+        clock.addAndGet(1_000);
+        assertTrue(freshness.isStale(METADATA, cached));
+
+        Freshness.Validators v = freshness.validators(METADATA, cached);
+        assertEquals("https://repo.example/maven2/", v.mirror);
+        assertEquals("\"abc\"", v.etag);
+        assertNull(v.lastModified);
+        assertEquals(v, v.forMirror("https://repo.example/maven2/", cached));
+        // Other mirrors only get the file's time, since the ETag is not theirs
+        Freshness.Validators other = v.forMirror("https://other.example/maven2/", cached);
+        assertNull(other.etag);
+        assertTrue(other.lastModified, other.lastModified.endsWith("GMT"));
+
+        // A 304 without validators keeps the old ones, and restarts the clock
+        freshness.validated(METADATA, "https://repo.example/maven2/", headers(), v);
+        assertFalse(freshness.isStale(METADATA, cached));
+        assertEquals("\"abc\"", freshness.validators(METADATA, cached).etag);
+
+        // Checksums written next to a cached file are as fresh as it is
+        Path sha1 = Path.parse(METADATA + ".sha1");
+        File sha1File = cachedFile(dir, sha1);
+        clock.addAndGet(3_600_000);
+        assertFalse(freshness.isStale(sha1, sha1File));
+
+        // Releases never go stale; snapshots go by file time with no record
+        assertFalse(freshness.expires(RELEASE));
+        assertFalse(freshness.isStale(RELEASE, release));
+        assertTrue(freshness.isStale(SNAPSHOT, snapshot));
+        Freshness.Validators fromFile = freshness.validators(SNAPSHOT, snapshot);
+        assertNull(fromFile.mirror);
+        assertNull(fromFile.etag);
+        assertTrue(fromFile.lastModified, fromFile.lastModified.endsWith("GMT"));
+    }
+
+    private static Config config() throws IOException {
+        return new Config(Settings.builder()
+                .add(SETTINGS_KEY_INDEX_DIR, System.getProperty("java.io.tmpdir") + "/FreshnessTest")
+                .add(SETTINGS_KEY_CACHE_TTL + ".metadata", "60")
+                .build());
+    }
+
+    private static File cachedFile(java.nio.file.Path dir, Path path) throws IOException {
+        java.nio.file.Path file = dir.resolve("repo").resolve(path.toString());
+        Files.createDirectories(file.getParent());
+        Files.write(file, new byte[]{1, 2, 3});
+        return file.toFile();
+    }
+
+    private static HttpHeaders headers(String... keysAndValues) {
+        Map<String, List<String>> map = new LinkedHashMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            map.put(keysAndValues[i], Arrays.asList(keysAndValues[i + 1]));
+        }
+        return HttpHeaders.of(map.isEmpty() ? Collections.emptyMap() : map, (k, v) -> true);
+    }
+}
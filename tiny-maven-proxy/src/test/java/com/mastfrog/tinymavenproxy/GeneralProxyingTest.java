@@ -56,22 +56,29 @@ import com.mastfrog.util.file.FileUtils;
 import com.mastfrog.util.libversion.VersionInfo;
 import com.mastfrog.util.net.PortFinder;
 import com.mastfrog.util.preconditions.Exceptions;
+import com.mastfrog.util.strings.Strings;
 import io.netty.channel.Channel;
+import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.net.http.HttpResponse.BodyHandlers;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.time.Duration;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import javax.inject.Provider;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
@@ -88,7 +95,8 @@ public class GeneralProxyingTest {
 
     @Test(timeout = 40000)
     public void testIt(HttpTestHarness<Object> harness,
-            FakeMavenServers servers, Server server) throws Throwable {
+            FakeMavenServers servers, Server server, Config config,
+            DownloaderV2A downloader) throws Throwable {
 
 //        System.out.println("PORT " + server.getPort());
 //        System.out.println("HAVE SERVERS: ");
@@ -97,6 +105,56 @@ public class GeneralProxyingTest {
 //            System.out.println(" * " + p);
 //        }
         Thread.sleep(2000);
+
+        // A HEAD for something not cached should be answered from upstream's
+        // headers, without downloading it
+        Map.Entry<Path, String> headed = servers.content().get(0);
+        TestResults<HttpResponse<String>> headResult = harness.get(headed.getKey())
+                .method("HEAD", HttpRequest.BodyPublishers.noBody())
+                .responseFinishedTimeout(TIMEOUT)
+                .applyingAssertions(asser -> {
+                    // The fake servers' own HEAD responses say content-length: 0,
+                    // so the length cannot be checked here
+                    asser.assertOk()
+                            .assertHasHeader("content-length")
+                            .assertHeader("last-modified", lm -> {
+                                return lm != null && Headers.LAST_MODIFIED.toValue(lm).toInstant()
+                                        .equals(WHEN);
+                            });
+                });
+        TestResults<HttpResponse<String>> headMissing = harness.get("xx11/yy22/head.pom")
+                .method("HEAD", HttpRequest.BodyPublishers.noBody())
+                .responseFinishedTimeout(TIMEOUT)
+                .test(assr -> {
+                    assr.assertGone();
+                });
+        headResult.await(TIMEOUT);
+        headMissing.await(TIMEOUT);
+        headResult.assertAllSucceeded();
+        headMissing.assertAllSucceeded();
+        assertFalse("HEAD should not have cached " + headed.getKey(),
+                new File(config.dir, headed.getKey().toString()).exists());
+
+        // Folders of the cache dir the proxy keeps its own files in, like
+        // the state dir, are neither served nor listed
+        File priv = new File(config.dir, "_private/com/foo/secret.pom");
+        assertTrue(priv.getParentFile().mkdirs() || priv.getParentFile().isDirectory());
+        Files.write(priv.toPath(), "secret".getBytes(UTF_8));
+        TestResults<HttpResponse<String>> privateFile = harness.get("_private/com/foo/secret.pom")
+                .responseFinishedTimeout(TIMEOUT)
+                .test(assr -> {
+                    assr.assertNotFound();
+                });
+        TestResults<HttpResponse<String>> privateListing = harness.get("_private/com?browse=true")
+                .responseFinishedTimeout(TIMEOUT)
+                .test(assr -> {
+                    assr.assertNotFound();
+                });
+        privateFile.await(TIMEOUT);
+        privateListing.await(TIMEOUT);
+        privateFile.assertAllSucceeded();
+        privateListing.assertAllSucceeded();
+
         Map<Path, TestResults<HttpResponse<String>>> pending = new LinkedHashMap<>();
 
         for (Map.Entry<Path, String> e : servers.content()) {
@@ -149,6 +207,23 @@ public class GeneralProxyingTest {
         if (ae != null) {
             throw ae;
         }
+        // The fake servers publish a .sha1 for each .pom
+        @SuppressWarnings("unchecked")
+        Map<String, Object> checksums = (Map<String, Object>) downloader.stats().get("checksums");
+        assertEquals(checksums.toString(), 0L, checksums.get("mismatches"));
+        assertTrue(checksums.toString(), ((Long) checksums.get("verified")) > 0);
+
+        // Checksums the fake servers do not publish should have been
+        // written from the digests computed while downloading
+        for (Map.Entry<Path, String> e : servers.content()) {
+            if (e.getKey().toString().endsWith(".pom")) {
+                File md5 = new File(config.dir, e.getKey() + ".md5");
+                assertTrue(md5.toString(), md5.exists());
+                assertEquals(Strings.toPaddedHex(MessageDigest.getInstance("MD5")
+                        .digest(e.getValue().getBytes(UTF_8))).toLowerCase(),
+                        new String(Files.readAllBytes(md5.toPath()), UTF_8));
+            }
+        }
     }
 
     @OnInjection
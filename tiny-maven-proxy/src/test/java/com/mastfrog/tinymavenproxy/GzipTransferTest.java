@@ -0,0 +1,165 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.tinymavenproxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class GzipTransferTest {
+
+    @Test
+    public void testInflatesInPiecesAndKeepsCompressedBytes() throws IOException {
+        byte[] pom = pom();
+        byte[] gz = gzip(pom);
+        assertTrue(gz.length * 5 < pom.length);
+        GzipTransfer transfer = new GzipTransfer();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // Pieces small enough to split the gzip header
+        for (int i = 0; i < gz.length; i += 7) {
+            ByteBuffer piece = ByteBuffer.wrap(Arrays.copyOfRange(gz, i, Math.min(gz.length, i + 7)));
+            write(transfer.inflate(Collections.singletonList(piece)), out);
+        }
+        write(transfer.finish(), out);
+        assertArrayEquals(pom, out.toByteArray());
+        assertArrayEquals(gz, transfer.gzipped());
+        assertEquals(gz.length, transfer.compressedBytes());
+        assertEquals(pom.length, transfer.inflatedBytes());
+    }
+
+    @Test
+    public void testSourceBuffersMayBeReusedAfterInflating() throws IOException {
+        byte[] pom = pom();
+        byte[] gz = gzip(pom);
+        GzipTransfer transfer = new GzipTransfer();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // Split inside the header and inside the trailer, so the decoder
+        // must hold onto input across calls; the one buffer stands in for
+        // a pooled chunk which is released and reused once inflated
+        int[] splits = {0, 5, gz.length - 4, gz.length};
+        ByteBuffer pooled = ByteBuffer.allocate(gz.length);
+        for (int i = 0; i < splits.length - 1; i++) {
+            pooled.clear();
+            pooled.put(gz, splits[i], splits[i + 1] - splits[i]).flip();
+            write(transfer.inflate(Collections.singletonList(pooled)), out);
+            pooled.clear();
+            while (pooled.hasRemaining()) {
+                pooled.put((byte) 0xFF);
+            }
+        }
+        write(transfer.finish(), out);
+        assertArrayEquals(pom, out.toByteArray());
+        assertArrayEquals(gz, transfer.gzipped());
+    }
+
+    @Test
+    public void testTruncatedBodyFails() throws IOException {
+        byte[] gz = gzip(pom());
+        GzipTransfer transfer = new GzipTransfer();
+        transfer.inflate(Collections.singletonList(ByteBuffer.wrap(Arrays.copyOf(gz, gz.length - 10))));
+        try {
+            transfer.finish();
+            fail("Truncated body should not be accepted");
+        } catch (IOException ex) {
+            // ok
+        }
+    }
+
+    @Test
+    public void testInflatedHeaders() {
+        Map<String, List<String>> map = new LinkedHashMap<>();
+        map.put("Content-Encoding", Arrays.asList("gzip"));
+        map.put("Content-Length", Arrays.asList("123"));
+        map.put("ETag", Arrays.asList("\"x\""));
+        HttpHeaders headers = HttpHeaders.of(map, (k, v) -> true);
+        HttpResponse.ResponseInfo info = new HttpResponse.ResponseInfo() {
+            @Override
+            public int statusCode() {
+                return 200;
+            }
+
+            @Override
+            public HttpHeaders headers() {
+                return headers;
+            }
+
+            @Override
+            public HttpClient.Version version() {
+                return HttpClient.Version.HTTP_1_1;
+            }
+        };
+        assertTrue(GzipTransfer.isGzipped(info));
+        HttpResponse.ResponseInfo inflated = GzipTransfer.inflated(info);
+        assertFalse(GzipTransfer.isGzipped(inflated));
+        assertFalse(inflated.headers().firstValue("content-length").isPresent());
+        assertEquals("\"x\"", inflated.headers().firstValue("etag").get());
+        assertEquals(200, inflated.statusCode());
+    }
+
+    private static void write(List<ByteBuffer> bufs, ByteArrayOutputStream out) {
+        for (ByteBuffer buf : bufs) {
+            byte[] bytes = new byte[buf.remaining()];
+            buf.get(bytes);
+            out.write(bytes, 0, bytes.length);
+        }
+    }
+
+    private static byte[] pom() {
+        StringBuilder sb = new StringBuilder("<project>\n  <dependencies>\n");
+        for (int i = 0; i < 200; i++) {
+            sb.append("    <dependency>\n      <groupId>com.foo</groupId>\n      <artifactId>foo-")
+                    .append(i).append("</artifactId>\n      <version>1.").append(i)
+                    .append("</version>\n    </dependency>\n");
+        }
+        return sb.append("  </dependencies>\n</project>\n").toString().getBytes(UTF_8);
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gz = new GZIPOutputStream(out)) {
+            gz.write(bytes);
+        }
+        return out.toByteArray();
+    }
+}
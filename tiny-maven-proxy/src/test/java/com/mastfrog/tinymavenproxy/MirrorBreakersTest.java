@@ -0,0 +1,121 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.tinymavenproxy;
+
+import com.mastfrog.url.URL;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.http.HttpTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class MirrorBreakersTest {
+
+    private static final URL A = URL.parse("http://a.example/maven2/");
+    private static final URL B = URL.parse("http://b.example/maven2/");
+    private final List<Runnable> scheduled = new ArrayList<>();
+    private final List<CompletableFuture<Object>> probes = new ArrayList<>();
+    private MirrorBreakers breakers;
+
+    @Before
+    public void setup() {
+        breakers = new MirrorBreakers(Arrays.asList(A, B), 3, mirror -> {
+            CompletableFuture<Object> probe = new CompletableFuture<>();
+            probes.add(probe);
+            return probe;
+        }, scheduled::add, System::nanoTime, null);
+    }
+
+    private void runScheduled() {
+        List<Runnable> copy = new ArrayList<>(scheduled);
+        scheduled.clear();
+        copy.forEach(Runnable::run);
+    }
+
+    @Test
+    public void testOpensAfterConsecutiveFailures() {
+        breakers.failed(A, new ConnectException("refused"));
+        breakers.failed(A, new HttpTimeoutException("timed out"));
+        breakers.succeeded(A);
+        breakers.failed(A, new ConnectException("refused"));
+        breakers.failed(A, new ConnectException("refused"));
+        assertFalse(breakers.isOpen(A));
+        // Cancellation says nothing about the mirror
+        breakers.failed(A, new CancellationException());
+        assertFalse(breakers.isOpen(A));
+        breakers.failed(A, new ConnectException("refused"));
+        assertTrue(breakers.isOpen(A));
+        assertFalse(breakers.isOpen(B));
+        assertEquals(Collections.singletonList(B), breakers.filter(Arrays.asList(A, B)));
+        assertEquals(1L, stat(A, "shortCircuited"));
+        assertEquals(1, scheduled.size());
+    }
+
+    @Test
+    public void testProbeClosesBreaker() {
+        for (int i = 0; i < 3; i++) {
+            breakers.failed(B, new IOException("reset"));
+        }
+        assertTrue(breakers.isOpen(B));
+        runScheduled();
+        assertEquals(1, probes.size());
+        probes.get(0).completeExceptionally(new ConnectException("still down"));
+        assertTrue(breakers.isOpen(B));
+        assertEquals(1, scheduled.size());
+        runScheduled();
+        assertEquals(2, probes.size());
+        probes.get(1).complete("up");
+        assertFalse(breakers.isOpen(B));
+        assertEquals("closed", stat(B, "state"));
+        assertEquals(1L, stat(B, "opens"));
+        assertEquals(2L, stat(B, "probes"));
+        // Closed by other traffic first, the pending probe does nothing
+        for (int i = 0; i < 3; i++) {
+            breakers.failed(B, new IOException("reset"));
+        }
+        breakers.succeeded(B);
+        runScheduled();
+        assertEquals(2, probes.size());
+    }
+
+    private Object stat(URL mirror, String key) {
+        @SuppressWarnings("unchecked")
+        Map<String, Object> m = (Map<String, Object>) breakers.stats().get(mirror.toString());
+        return m.get(key);
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.tinymavenproxy;
+
+import com.mastfrog.settings.Settings;
+import static com.mastfrog.tinymavenproxy.Config.SETTINGS_KEY_INDEX_DIR;
+import static com.mastfrog.tinymavenproxy.Config.SETTINGS_KEY_MIRROR_MAX_CONCURRENT;
+import static com.mastfrog.tinymavenproxy.Config.SETTINGS_KEY_MIRROR_URLS;
+import com.mastfrog.url.URL;
+import java.io.IOException;
+import java.net.Authenticator;
+import java.net.ConnectException;
+import java.net.CookieHandler;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.net.http.HttpResponse.PushPromiseHandler;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class MirrorBulkheadsTest {
+
+    private static final URL A = URL.parse("http://a.example/maven2/");
+    private static final URL B = URL.parse("http://b.example/maven2/");
+    private final AtomicLong clock = new AtomicLong(1);
+    private FakeClient client;
+    private MirrorBulkheads bulkheads;
+    private MirrorBreakers breakers;
+    private final List<Runnable> probes = new ArrayList<>();
+
+    @Before
+    public void setup() throws IOException {
+        Settings s = Settings.builder()
+                .add(SETTINGS_KEY_MIRROR_URLS, A + "," + B)
+                .add(SETTINGS_KEY_INDEX_DIR, System.getProperty("java.io.tmpdir") + "/MirrorBulkheadsTest")
+                .add(SETTINGS_KEY_MIRROR_MAX_CONCURRENT, 2)
+                .add(SETTINGS_KEY_MIRROR_MAX_CONCURRENT + ".b.example", 1)
+                .build();
+        client = new FakeClient();
+        Config config = new Config(s);
+        breakers = new MirrorBreakers(config, 2, mirror -> new CompletableFuture<>(), probes::add, clock::get, null);
+        bulkheads = new MirrorBulkheads(client, config, breakers, clock::get);
+    }
+
+    @Test
+    public void testExcessRequestsQueueInOrder() {
+        List<CompletableFuture<HttpResponse<Void>>> results = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            results.add(send(A, "a" + i));
+        }
+        assertEquals(2, client.sent.size());
+        assertEquals(3, stat(A, "queued"));
+        clock.addAndGet(MILLISECONDS.toNanos(100));
+        client.finish(0);
+        assertTrue(results.get(0).isDone());
+        assertEquals(3, client.sent.size());
+        assertEquals("/a2", client.sent.get(2).uri.getPath());
+        client.finish(1);
+        client.finish(2);
+        assertEquals(5, client.sent.size());
+        assertEquals("/a3", client.sent.get(3).uri.getPath());
+        assertEquals("/a4", client.sent.get(4).uri.getPath());
+        assertEquals(0, stat(A, "queued"));
+        assertEquals(3, stat(A, "maxQueued"));
+        assertEquals(3L, stat(A, "waited"));
+        assertEquals(100D, (Double) stat(A, "maxWaitMillis"), 0.001);
+    }
+
+    @Test
+    public void testMirrorsHaveSeparateLimits() {
+        send(A, "a0");
+        send(B, "b0");
+        send(B, "b1");
+        send(A, "a1");
+        assertEquals(3, client.sent.size());
+        assertEquals(1, stat(B, "limit"));
+        assertEquals(1, stat(B, "queued"));
+        assertEquals(0, stat(A, "queued"));
+    }
+
+    @Test
+    public void testCancelledWaiterIsNeverSent() {
+        send(B, "b0");
+        CompletableFuture<HttpResponse<Void>> cancelled = send(B, "b1");
+        send(B, "b2");
+        cancelled.cancel(false);
+        assertEquals(1, stat(B, "queued"));
+        client.finish(0);
+        assertEquals(2, client.sent.size());
+        assertEquals("/b2", client.sent.get(1).uri.getPath());
+    }
+
+    @Test
+    public void testCancellingSentRequestFreesItsSlot() {
+        CompletableFuture<HttpResponse<Void>> first = send(B, "b0");
+        send(B, "b1");
+        first.cancel(false);
+        assertTrue(client.sent.get(0).future.isCancelled());
+        assertEquals(2, client.sent.size());
+        assertEquals(1, stat(B, "active"));
+    }
+
+    @Test
+    public void testDispatchCallbackRunsWhenSent() {
+        AtomicLong dispatched = new AtomicLong();
+        send(B, "b0");
+        bulkheads.send(B, request(B, "b1"), BodyHandlers.discarding(), TrafficClass.JAR, dispatched::incrementAndGet);
+        assertEquals(0, dispatched.get());
+        client.finish(0);
+        assertEquals(1, dispatched.get());
+    }
+
+    @Test
+    public void testSmallFetchesJumpAheadOfJars() {
+        send(B, "b0");
+        send(B, "big.jar", TrafficClass.LARGE);
+        send(B, "lib.jar", TrafficClass.JAR);
+        send(B, "lib.pom", TrafficClass.POM);
+        send(B, "maven-metadata.xml", TrafficClass.METADATA);
+        send(B, "lib2.pom", TrafficClass.POM);
+        for (int i = 0; i < 5; i++) {
+            client.finish(i);
+        }
+        assertEquals("/maven-metadata.xml", client.sent.get(1).uri.getPath());
+        assertEquals("/lib.pom", client.sent.get(2).uri.getPath());
+        assertEquals("/lib2.pom", client.sent.get(3).uri.getPath());
+        assertEquals("/lib.jar", client.sent.get(4).uri.getPath());
+        assertEquals("/big.jar", client.sent.get(5).uri.getPath());
+    }
+
+    @Test
+    public void testQueuedRequestsFailFastWhenBreakerOpens() throws InterruptedException {
+        CompletableFuture<HttpResponse<Void>> first = send(B, "b0");
+        CompletableFuture<HttpResponse<Void>> second = send(B, "b1");
+        CompletableFuture<HttpResponse<Void>> third = send(B, "b2");
+        client.fail(0, new ConnectException("refused"));
+        assertTrue(first.isCompletedExceptionally());
+        assertEquals(2, client.sent.size());
+        client.fail(1, new ConnectException("refused"));
+        assertTrue(breakers.isOpen(B));
+        assertEquals(1, probes.size());
+        // Taken off the queue, but never sent
+        assertEquals(2, client.sent.size());
+        try {
+            third.get();
+            fail("Should have failed");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof MirrorBreakers.CircuitOpenException);
+        }
+        assertEquals(0, stat(B, "active"));
+        assertTrue(second.isCompletedExceptionally());
+        send(A, "a0");
+        assertEquals(3, client.sent.size());
+    }
+
+    @Test
+    public void testProbesTakeSlotsButAreSentWhileOpen() throws InterruptedException {
+        send(B, "b0");
+        send(B, "b1");
+        client.fail(0, new ConnectException("refused"));
+        client.fail(1, new ConnectException("refused"));
+        assertTrue(breakers.isOpen(B));
+        CompletableFuture<HttpResponse<Void>> first = bulkheads.probe(B, request(B, ""));
+        CompletableFuture<HttpResponse<Void>> second = bulkheads.probe(B, request(B, ""));
+        // B has one slot
+        assertEquals(3, client.sent.size());
+        assertEquals(1, stat(B, "active"));
+        assertEquals(1, stat(B, "queued"));
+        // A failed probe is the breaker's business, not the bulkhead's
+        client.fail(2, new ConnectException("refused"));
+        assertTrue(first.isCompletedExceptionally());
+        assertEquals(4, client.sent.size());
+        client.finish(3);
+        assertTrue(second.isDone());
+        assertEquals(0, stat(B, "active"));
+        assertTrue(breakers.isOpen(B));
+    }
+
+    private Object stat(URL mirror, String key) {
+        @SuppressWarnings("unchecked")
+        Map<String, Object> m = (Map<String, Object>) bulkheads.stats().get(mirror.toString());
+        return m.get(key);
+    }
+
+    private CompletableFuture<HttpResponse<Void>> send(URL mirror, String name) {
+        return send(mirror, name, TrafficClass.JAR);
+    }
+
+    private CompletableFuture<HttpResponse<Void>> send(URL mirror, String name, TrafficClass cls) {
+        return bulkheads.send(mirror, request(mirror, name), BodyHandlers.discarding(), cls, () -> {
+        });
+    }
+
+    private static HttpRequest request(URL mirror, String name) {
+        return HttpRequest.newBuilder(URI.create("http://" + mirror.getHost() + "/" + name)).build();
+    }
+
+    static final class Sent {
+
+        final URI uri;
+        final CompletableFuture<HttpResponse<?>> future = new CompletableFuture<>();
+
+        Sent(URI uri) {
+            this.uri = uri;
+        }
+    }
+
+    static final class FakeClient extends HttpClient {
+
+        final List<Sent> sent = new ArrayList<>();
+
+        void finish(int index) {
+            sent.get(index).future.complete(null);
+        }
+
+        void fail(int index, Throwable thrown) {
+            sent.get(index).future.completeExceptionally(thrown);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, BodyHandler<T> responseBodyHandler) {
+            Sent s = new Sent(request.uri());
+            sent.add(s);
+            CompletableFuture<?> f = s.future;
+            return (CompletableFuture<HttpResponse<T>>) f;
+        }
+
+        @Override
+        public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request,
+                BodyHandler<T> responseBodyHandler, PushPromiseHandler<T> pushPromiseHandler) {
+            return sendAsync(request, responseBodyHandler);
+        }
+
+        @Override
+        public <T> HttpResponse<T> send(HttpRequest request, BodyHandler<T> responseBodyHandler) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Optional<CookieHandler> cookieHandler() {
+            return Optional.empty();
+        }
+
+        @Override
+        public Optional<Duration> connectTimeout() {
+            return Optional.empty();
+        }
+
+        @Override
+        public Redirect followRedirects() {
+            return Redirect.NEVER;
+        }
+
+        @Override
+        public Optional<ProxySelector> proxy() {
+            return Optional.empty();
+        }
+
+        @Override
+        public SSLContext sslContext() {
+            return null;
+        }
+
+        @Override
+        public SSLParameters sslParameters() {
+            return null;
+        }
+
+        @Override
+        public Optional<Authenticator> authenticator() {
+            return Optional.empty();
+        }
+
+        @Override
+        public Version version() {
+            return Version.HTTP_1_1;
+        }
+
+        @Override
+        public Optional<Executor> executor() {
+            return Optional.empty();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.tinymavenproxy;
+
+import com.mastfrog.url.Path;
+import com.mastfrog.url.URL;
+import java.io.IOException;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class MirrorRoutesTest {
+
+    private static final URL A = URL.parse("http://a.example/maven2/");
+    private static final URL B = URL.parse("http://b.example/maven2/");
+    private static final URL C = URL.parse("http://c.example/maven2/");
+    private static final List<URL> ALL = Arrays.asList(A, B, C);
+    private java.nio.file.Path dir;
+    private java.nio.file.Path file;
+
+    @Before
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("MirrorRoutesTest");
+        file = dir.resolve(MirrorRoutes.FILE_NAME);
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(dir);
+    }
+
+    @Test
+    public void testLongestGroupPrefixWins() throws IOException {
+        MirrorRoutes routes = new MirrorRoutes(file, "test", ALL);
+        routes.learn(path("com/atlassian/jira/jira-api/9.0/jira-api-9.0.pom"), B);
+        routes.learn(path("com/atlassian/jira/plugins/thing/1.0/thing-1.0.jar"), C);
+        assertSame(B, routes.route(path("com/atlassian/jira/jira-core/9.0/jira-core-9.0.jar")));
+        assertSame(C, routes.route(path("com/atlassian/jira/plugins/other/2.0/other-2.0.jar")));
+        assertNull(routes.route(path("com/atlassian/confluence/api/1.0/api-1.0.jar")));
+        assertNull(routes.route(path("org/apache/commons/commons-lang3/3.0/commons-lang3-3.0.jar")));
+        assertEquals(2, routes.size());
+    }
+
+    @Test
+    public void testPreferMovesRoutedMirrorFirst() throws IOException {
+        MirrorRoutes routes = new MirrorRoutes(file, "test", ALL);
+        routes.learn(path("com/atlassian/jira/jira-api/9.0/jira-api-9.0.pom"), C);
+        assertEquals(Arrays.asList(C, A, B),
+                routes.prefer(path("com/atlassian/jira/jira-api/9.1/jira-api-9.1.pom"), ALL));
+        assertEquals(ALL, routes.prefer(path("org/foo/bar/1.0/bar-1.0.pom"), ALL));
+        assertEquals(Collections.singletonList(A),
+                routes.prefer(path("com/atlassian/jira/jira-api/9.1/jira-api-9.1.pom"),
+                        Collections.singletonList(A)));
+    }
+
+    @Test
+    public void testTooShortPathsAreNotLearned() throws IOException {
+        MirrorRoutes routes = new MirrorRoutes(file, "test", ALL);
+        routes.learn(path("foo/1.0/foo-1.0.pom"), B);
+        assertEquals(0, routes.size());
+    }
+
+    @Test
+    public void testRoutesPersist() throws IOException {
+        MirrorRoutes routes = new MirrorRoutes(file, "test", ALL);
+        routes.learn(path("com/atlassian/jira/jira-api/9.0/jira-api-9.0.pom"), B);
+        routes.learn(path("org/netbeans/api/org-openide-util/RELEASE150/org-openide-util-RELEASE150.jar"), C);
+        routes.save();
+        MirrorRoutes reloaded = new MirrorRoutes(file, "test", ALL);
+        assertEquals(routes.routes(), reloaded.routes());
+        assertSame(B, reloaded.route(path("com/atlassian/jira/jira-core/9.0/jira-core-9.0.jar")));
+        assertSame(C, reloaded.route(path("org/netbeans/api/org-openide-nodes/RELEASE150/org-openide-nodes-RELEASE150.jar")));
+        // A mirror removed from the configuration loses its routes
+        MirrorRoutes fewer = new MirrorRoutes(file, "test", Arrays.asList(A, B));
+        assertEquals(1, fewer.size());
+        assertNull(fewer.route(path("org/netbeans/api/org-openide-nodes/RELEASE150/org-openide-nodes-RELEASE150.jar")));
+    }
+
+    @Test
+    public void testProcessesSharingStateDirUseTheirOwnTempFiles() throws IOException {
+        // Another process's save in progress
+        java.nio.file.Path theirs = dir.resolve(MirrorRoutes.FILE_NAME + ".other.tmp");
+        Files.write(theirs, "partial".getBytes(UTF_8));
+        try {
+            MirrorRoutes routes = new MirrorRoutes(file, "test", ALL);
+            routes.learn(path("com/atlassian/jira/jira-api/9.0/jira-api-9.0.pom"), B);
+            routes.save();
+            assertEquals("partial", new String(Files.readAllBytes(theirs), UTF_8));
+            assertSame(B, new MirrorRoutes(file, "test", ALL)
+                    .route(path("com/atlassian/jira/jira-core/9.0/jira-core-9.0.jar")));
+        } finally {
+            Files.deleteIfExists(theirs);
+        }
+    }
+
+    private static Path path(String path) {
+        return Path.parse(path);
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.tinymavenproxy;
+
+import com.mastfrog.settings.Settings;
+import static com.mastfrog.tinymavenproxy.Config.SETTINGS_KEY_HEDGE_DELAY_MILLIS;
+import static com.mastfrog.tinymavenproxy.Config.SETTINGS_KEY_INDEX_DIR;
+import static com.mastfrog.tinymavenproxy.Config.SETTINGS_KEY_MIRROR_SCORE_STALE_SECONDS;
+import static com.mastfrog.tinymavenproxy.Config.SETTINGS_KEY_MIRROR_URLS;
+import com.mastfrog.url.URL;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import java.util.concurrent.atomic.AtomicLong;
+import static org.junit.Assert.assertEquals;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class MirrorScoresTest {
+
+    private static final URL A = URL.parse("http://a.example/maven2/");
+    private static final URL B = URL.parse("http://b.example/maven2/");
+    private static final URL C = URL.parse("http://c.example/maven2/");
+    private final AtomicLong clock = new AtomicLong(1);
+    private MirrorScores scores;
+
+    @Before
+    public void setup() throws IOException {
+        Settings s = Settings.builder()
+                .add(SETTINGS_KEY_MIRROR_URLS, A + "," + B + "," + C)
+                .add(SETTINGS_KEY_INDEX_DIR, System.getProperty("java.io.tmpdir") + "/MirrorScoresTest")
+                .add(SETTINGS_KEY_MIRROR_SCORE_STALE_SECONDS, 60)
+                .add(SETTINGS_KEY_HEDGE_DELAY_MILLIS, 750)
+                .build();
+        scores = new MirrorScores(new Config(s), clock::get);
+    }
+
+    @Test
+    public void testUntriedMirrorsKeepConfigurationOrder() {
+        assertEquals(Arrays.asList(A, B, C), scores.rank());
+    }
+
+    @Test
+    public void testFastestMirrorRanksFirst() {
+        fetch(A, 300, 200);
+        fetch(B, 20, 200);
+        fetch(C, 100, 200);
+        assertEquals(Arrays.asList(B, C, A), scores.rank());
+    }
+
+    @Test
+    public void testFailuresDemoteAFastMirror() {
+        fetch(A, 100, 200);
+        fetch(B, 20, 200);
+        fetch(C, 200, 200);
+        for (int i = 0; i < 5; i++) {
+            MirrorScores.Sample sample = scores.start(B);
+            clock.addAndGet(MILLISECONDS.toNanos(1000));
+            sample.failed();
+        }
+        List<URL> ranked = scores.rank();
+        assertEquals(Arrays.asList(A, B, C), ranked);
+    }
+
+    @Test
+    public void testTimeoutsDoNotRaiseHedgeDelay() {
+        for (int i = 0; i < 10; i++) {
+            fetch(A, 100, 200);
+        }
+        for (int i = 0; i < 2; i++) {
+            MirrorScores.Sample sample = scores.start(A);
+            clock.addAndGet(SECONDS.toNanos(30));
+            sample.failed();
+        }
+        assertEquals(100, scores.hedgeDelayMillis(A));
+    }
+
+    @Test
+    public void testNotFoundDoesNotCountAgainstAMirror() {
+        fetch(A, 40, 404);
+        fetch(A, 40, 410);
+        fetch(A, 40, 404);
+        fetch(B, 50, 200);
+        fetch(C, 60, 200);
+        assertEquals(Arrays.asList(A, B, C), scores.rank());
+        Map<?, ?> stats = (Map<?, ?>) scores.stats().get(A.toString());
+        assertEquals(1D, stats.get("successRate"));
+        assertEquals(3L, stats.get("notFound"));
+    }
+
+    @Test
+    public void testServerErrorsCountAgainstAMirror() {
+        fetch(A, 40, 503);
+        fetch(A, 40, 500);
+        fetch(A, 40, 503);
+        fetch(B, 50, 200);
+        fetch(C, 60, 200);
+        assertEquals(Arrays.asList(B, C, A), scores.rank());
+    }
+
+    @Test
+    public void testStaleMirrorsAreRemeasured() {
+        fetch(A, 300, 200);
+        fetch(B, 20, 200);
+        fetch(C, 100, 200);
+        clock.addAndGet(SECONDS.toNanos(61));
+        fetch(B, 20, 200);
+        fetch(C, 100, 200);
+        assertEquals(Arrays.asList(A, B, C), scores.rank());
+    }
+
+    @Test
+    public void testHedgeDelayIsDefaultUntilEnoughSamples() {
+        assertEquals(750, scores.hedgeDelayMillis(A));
+        for (int i = 0; i < 7; i++) {
+            fetch(A, 100, 200);
+        }
+        assertEquals(750, scores.hedgeDelayMillis(A));
+        fetch(A, 100, 200);
+        assertEquals(100, scores.hedgeDelayMillis(A));
+    }
+
+    @Test
+    public void testHedgeDelayIsNinetyFifthPercentile() {
+        for (int i = 0; i < 95; i++) {
+            fetch(A, 30 + (i % 10), 200);
+        }
+        // One slow outlier in the window should not move the 95th percentile
+        fetch(A, 5000, 200);
+        assertEquals(39, scores.hedgeDelayMillis(A));
+        for (int i = 0; i < 10; i++) {
+            fetch(A, 400, 200);
+        }
+        assertEquals(400, scores.hedgeDelayMillis(A));
+    }
+
+    @Test
+    public void testHedgeDelayHasAFloor() {
+        for (int i = 0; i < 10; i++) {
+            fetch(A, 1, 200);
+        }
+        assertEquals(20, scores.hedgeDelayMillis(A));
+    }
+
+    private void fetch(URL mirror, long millis, int status) {
+        MirrorScores.Sample sample = scores.start(mirror);
+        clock.addAndGet(MILLISECONDS.toNanos(millis));
+        sample.headers(status);
+        if (status < 400) {
+            clock.addAndGet(MILLISECONDS.toNanos(millis));
+            sample.completed(100_000);
+        }
+    }
+}
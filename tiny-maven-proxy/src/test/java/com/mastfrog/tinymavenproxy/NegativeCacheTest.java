@@ -0,0 +1,138 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.tinymavenproxy;
+
+import com.mastfrog.url.Path;
+import com.mastfrog.url.URL;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import java.util.concurrent.atomic.AtomicLong;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class NegativeCacheTest {
+
+    private static final URL A = URL.parse("http://a.example/maven2/");
+    private static final URL B = URL.parse("http://b.example/maven2/");
+    private static final List<URL> MIRRORS = Arrays.asList(A, B);
+    private static final long TTL = MINUTES.toMillis(60);
+    private final AtomicLong clock = new AtomicLong(1_000_000);
+    private java.nio.file.Path dir;
+
+    @Before
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("NegativeCacheTest");
+    }
+
+    @After
+    public void teardown() throws IOException {
+        Files.deleteIfExists(dir.resolve(NegativeCache.FILE_NAME));
+        Files.deleteIfExists(dir);
+    }
+
+    private NegativeCache cache(int entries) throws IOException {
+        return new NegativeCache(dir.resolve(NegativeCache.FILE_NAME), "test", MIRRORS, entries, TTL, clock::get, null);
+    }
+
+    private static Path path(int i) {
+        return Path.parse("com/foo/foo-" + i + "/1.0/foo-" + i + "-1.0.pom");
+    }
+
+    @Test
+    public void testPerMirror() throws IOException {
+        NegativeCache cache = cache(1000);
+        cache.notFound(A, path(1));
+        assertTrue(cache.isNotFound(A, path(1)));
+        assertFalse(cache.isNotFound(B, path(1)));
+        assertFalse(cache.isFailed(path(1)));
+        assertEquals(Collections.singletonList(B), cache.filter(path(1), MIRRORS));
+        assertEquals(MIRRORS, cache.filter(path(2), MIRRORS));
+        cache.notFound(B, path(1));
+        assertTrue(cache.isFailed(path(1)));
+        cache.failed(path(3));
+        assertTrue(cache.isFailed(path(3)));
+        assertFalse(cache.isNotFound(A, path(3)));
+    }
+
+    @Test
+    public void testExpiry() throws IOException {
+        NegativeCache cache = cache(1000);
+        cache.failed(path(1));
+        clock.addAndGet(TTL / 2);
+        cache.failed(path(2));
+        assertTrue(cache.isFailed(path(1)));
+        clock.addAndGet(TTL / 2);
+        assertFalse(cache.isFailed(path(1)));
+        assertTrue(cache.isFailed(path(2)));
+        clock.addAndGet(TTL);
+        assertFalse(cache.isFailed(path(2)));
+    }
+
+    @Test
+    public void testFixedMemoryUnderFlood() throws IOException {
+        NegativeCache cache = cache(1000);
+        long bytes = (Long) cache.stats().get("bytes");
+        for (int i = 0; i < 100_000; i++) {
+            cache.notFound(A, path(i));
+        }
+        assertEquals(bytes, cache.stats().get("bytes"));
+        // Older entries are dropped to keep the false positive rate down
+        assertTrue((Long) cache.stats().get("entries") <= 1000);
+        assertTrue(cache.isNotFound(A, path(99_999)));
+        assertFalse(cache.isNotFound(A, path(0)));
+        int falsePositives = 0;
+        for (int i = 0; i < 10_000; i++) {
+            if (cache.isNotFound(B, path(i))) {
+                falsePositives++;
+            }
+        }
+        assertTrue("" + falsePositives, falsePositives < 20);
+    }
+
+    @Test
+    public void testPersistence() throws IOException {
+        NegativeCache cache = cache(1000);
+        cache.notFound(A, path(1));
+        cache.failed(path(2));
+        cache.save();
+        NegativeCache reloaded = cache(1000);
+        assertTrue(reloaded.isNotFound(A, path(1)));
+        assertFalse(reloaded.isNotFound(B, path(1)));
+        assertTrue(reloaded.isFailed(path(2)));
+        // A differently sized cache cannot use the file
+        assertFalse(cache(100_000).isFailed(path(2)));
+    }
+}
@@ -0,0 +1,374 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.tinymavenproxy;
+
+import com.sun.net.httpserver.HttpServer;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.util.concurrent.EventExecutor;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.net.http.HttpResponse.BodySubscriber;
+import java.net.http.HttpResponse.BodySubscribers;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class NettyHttpClientTest {
+
+    private static final int SIZE = 2 * 1024 * 1024;
+    private static final byte[] BODY = new byte[SIZE];
+    private HttpServer server;
+    private NioEventLoopGroup group;
+    private ExecutorService pool;
+    private NettyHttpClient netty;
+    private HttpClient jdk;
+    private String base;
+
+    static {
+        new Random(5956).nextBytes(BODY);
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/big", ex -> {
+            ex.getResponseHeaders().add("ETag", "\"big\"");
+            boolean head = "HEAD".equals(ex.getRequestMethod());
+            if (head) {
+                ex.getResponseHeaders().add("Content-Length", String.valueOf(SIZE));
+            }
+            ex.sendResponseHeaders(200, head ? -1 : SIZE);
+            if (!head) {
+                try (OutputStream out = ex.getResponseBody()) {
+                    out.write(BODY);
+                }
+            }
+            ex.close();
+        });
+        server.createContext("/moved", ex -> {
+            ex.getResponseHeaders().add("Location", "/big");
+            ex.sendResponseHeaders(302, -1);
+            ex.close();
+        });
+        server.createContext("/stalls", ex -> {
+            // Headers and a little of the body, then nothing
+            ex.sendResponseHeaders(200, SIZE);
+            OutputStream out = ex.getResponseBody();
+            out.write(BODY, 0, 1024);
+            out.flush();
+            try {
+                Thread.sleep(30000);
+            } catch (InterruptedException ie) {
+                // torn down
+            }
+            ex.close();
+        });
+        server.createContext("/missing", ex -> {
+            ex.sendResponseHeaders(404, -1);
+            ex.close();
+        });
+        pool = Executors.newFixedThreadPool(8);
+        server.setExecutor(pool);
+        server.start();
+        base = "http://127.0.0.1:" + server.getAddress().getPort();
+        group = new NioEventLoopGroup(2);
+        netty = new NettyHttpClient(group, ByteBufAllocator.DEFAULT, Duration.ofSeconds(5), pool);
+        jdk = HttpClient.newBuilder().followRedirects(HttpClient.Redirect.ALWAYS)
+                .connectTimeout(Duration.ofSeconds(5)).build();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        netty.close();
+        server.stop(0);
+        group.shutdownGracefully(0, 0, TimeUnit.SECONDS).await();
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void testSameResponsesAsJdkClient() throws Exception {
+        for (HttpClient client : Arrays.asList(jdk, netty)) {
+            HttpResponse<byte[]> big = client.sendAsync(get("/big"), BodyHandlers.ofByteArray()).get(10, TimeUnit.SECONDS);
+            assertEquals(200, big.statusCode());
+            assertEquals("\"big\"", big.headers().firstValue("etag").get());
+            assertArrayEquals(BODY, big.body());
+
+            HttpResponse<byte[]> moved = client.sendAsync(get("/moved"), BodyHandlers.ofByteArray()).get(10, TimeUnit.SECONDS);
+            assertEquals(200, moved.statusCode());
+            assertArrayEquals(BODY, moved.body());
+
+            HttpResponse<Void> head = client.sendAsync(HttpRequest.newBuilder(URI.create(base + "/big"))
+                    .method("HEAD", HttpRequest.BodyPublishers.noBody()).build(), BodyHandlers.discarding())
+                    .get(10, TimeUnit.SECONDS);
+            assertEquals(200, head.statusCode());
+            assertEquals(String.valueOf(SIZE), head.headers().firstValue("content-length").get());
+
+            HttpResponse<Void> missing = client.sendAsync(get("/missing"), BodyHandlers.discarding()).get(10, TimeUnit.SECONDS);
+            assertEquals(404, missing.statusCode());
+        }
+    }
+
+    @Test
+    public void testHonorsDemand() throws Exception {
+        // Ask for one item at a time, from another thread, after a pause -
+        // nothing may arrive unasked for
+        AtomicInteger outstanding = new AtomicInteger();
+        AtomicInteger overruns = new AtomicInteger();
+        List<ByteBuffer> received = new ArrayList<>();
+        CompletableFuture<byte[]> body = new CompletableFuture<>();
+        BodySubscriber<byte[]> slow = new BodySubscriber<byte[]>() {
+            Flow.Subscription subscription;
+
+            @Override
+            public CompletionStage<byte[]> getBody() {
+                return body;
+            }
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                outstanding.incrementAndGet();
+                subscription.request(1);
+            }
+
+            @Override
+            public void onNext(List<ByteBuffer> item) {
+                if (outstanding.decrementAndGet() < 0) {
+                    overruns.incrementAndGet();
+                }
+                received.addAll(item);
+                CompletableFuture.delayedExecutor(1, TimeUnit.MILLISECONDS, pool).execute(() -> {
+                    outstanding.incrementAndGet();
+                    subscription.request(1);
+                });
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                body.completeExceptionally(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                int length = received.stream().mapToInt(ByteBuffer::remaining).sum();
+                byte[] bytes = new byte[length];
+                ByteBuffer all = ByteBuffer.wrap(bytes);
+                received.forEach(all::put);
+                body.complete(bytes);
+            }
+        };
+        HttpResponse<byte[]> resp = netty.sendAsync(get("/big"), info -> slow).get(30, TimeUnit.SECONDS);
+        assertArrayEquals(BODY, resp.body());
+        assertEquals(0, overruns.get());
+    }
+
+    @Test
+    public void testSubscriberIsNotCalledOnEventLoop() throws Exception {
+        Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        HttpResponse<byte[]> resp = netty.sendAsync(get("/big"), info -> {
+            threads.add(Thread.currentThread());
+            BodySubscriber<byte[]> delegate = BodySubscribers.ofByteArray();
+            return new BodySubscriber<byte[]>() {
+                @Override
+                public CompletionStage<byte[]> getBody() {
+                    return delegate.getBody();
+                }
+
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) {
+                    threads.add(Thread.currentThread());
+                    delegate.onSubscribe(subscription);
+                }
+
+                @Override
+                public void onNext(List<ByteBuffer> item) {
+                    threads.add(Thread.currentThread());
+                    delegate.onNext(item);
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    threads.add(Thread.currentThread());
+                    delegate.onError(throwable);
+                }
+
+                @Override
+                public void onComplete() {
+                    threads.add(Thread.currentThread());
+                    delegate.onComplete();
+                }
+            };
+        }).get(30, TimeUnit.SECONDS);
+        assertArrayEquals(BODY, resp.body());
+        assertFalse(threads.isEmpty());
+        for (Thread thread : threads) {
+            for (EventExecutor loop : group) {
+                assertFalse(thread.getName(), loop.inEventLoop(thread));
+            }
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void testStalledBodyTimesOut() throws Exception {
+        HttpRequest req = HttpRequest.newBuilder(URI.create(base + "/stalls"))
+                .timeout(Duration.ofMillis(500)).build();
+        long start = System.currentTimeMillis();
+        try {
+            netty.sendAsync(req, BodyHandlers.ofByteArray()).get(10, TimeUnit.SECONDS);
+            fail("Stalled body should have timed out");
+        } catch (ExecutionException ex) {
+            assertTrue(String.valueOf(ex.getCause()), ex.getCause() instanceof HttpTimeoutException);
+        }
+        assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+
+    @Test
+    public void testResolvesHostNamesOffTheEventLoop() throws Exception {
+        Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        NettyHttpClient.OffLoopResolver resolvers = new NettyHttpClient.OffLoopResolver(run -> {
+            pool.execute(() -> {
+                threads.add(Thread.currentThread());
+                run.run();
+            });
+        });
+        try {
+            InetSocketAddress addr = resolvers.getResolver(group.next())
+                    .resolve(InetSocketAddress.createUnresolved("localhost", 80))
+                    .get(10, TimeUnit.SECONDS);
+            assertFalse(addr.isUnresolved());
+            assertTrue(addr.getAddress().isLoopbackAddress());
+            assertEquals(1, threads.size());
+            for (EventExecutor loop : group) {
+                assertFalse(loop.inEventLoop(threads.iterator().next()));
+            }
+        } finally {
+            resolvers.close();
+        }
+    }
+
+    @Test
+    public void testReleasingSubscriberGetsViews() throws Exception {
+        AtomicInteger copies = new AtomicInteger();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CompletableFuture<byte[]> body = new CompletableFuture<>();
+        class Releasing implements BodySubscriber<byte[]>, NettyHttpClient.ReleasingSubscriber {
+
+            @Override
+            public CompletionStage<byte[]> getBody() {
+                return body;
+            }
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(List<ByteBuffer> item) {
+                if (!(item instanceof NettyHttpClient.Chunks)) {
+                    copies.incrementAndGet();
+                }
+                for (ByteBuffer buf : item) {
+                    byte[] bytes = new byte[buf.remaining()];
+                    buf.get(bytes);
+                    out.write(bytes, 0, bytes.length);
+                }
+                NettyHttpClient.release(item);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                body.completeExceptionally(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                body.complete(out.toByteArray());
+            }
+        }
+        HttpResponse<byte[]> resp = netty.sendAsync(get("/big"), info -> new Releasing()).get(30, TimeUnit.SECONDS);
+        assertArrayEquals(BODY, resp.body());
+        assertEquals(0, copies.get());
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        // Too slow for every build: mvn test -Dtest=NettyHttpClientTest#benchmark -Dbenchmark=true
+        assumeTrue(Boolean.getBoolean("benchmark"));
+        for (HttpClient client : Arrays.asList(jdk, netty, jdk, netty)) {
+            // Warm up each once, then time the second round
+            long start = System.nanoTime();
+            List<CompletableFuture<HttpResponse<Void>>> all = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                all.add(client.sendAsync(get("/big"), BodyHandlers.discarding()));
+            }
+            CompletableFuture.allOf(all.toArray(new CompletableFuture<?>[0])).get(60, TimeUnit.SECONDS);
+            long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            for (CompletableFuture<HttpResponse<Void>> f : all) {
+                assertEquals(200, f.get().statusCode());
+            }
+            System.out.println((client == netty ? "netty" : "jdk  ") + ": 32 x 2Mb in "
+                    + millis + "ms, " + (32L * SIZE / 1024 * 1000 / millis / 1024) + " Mb/s");
+        }
+    }
+
+    private HttpRequest get(String path) {
+        return HttpRequest.newBuilder(URI.create(base + path)).timeout(Duration.ofSeconds(20)).GET().build();
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.tinymavenproxy;
+
+import com.mastfrog.url.Path;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class PomTest {
+
+    private static final String PARENT = "<?xml version=\"1.0\"?>\n"
+            + "<project xmlns=\"http://maven.apache.org/POM/4.0.0\">\n"
+            + "  <groupId>com.foo</groupId><artifactId>foo-parent</artifactId><version>2.0</version>\n"
+            + "  <packaging>pom</packaging>\n"
+            + "  <properties><netty.version>4.1.1</netty.version></properties>\n"
+            + "  <dependencyManagement><dependencies>\n"
+            + "    <dependency><groupId>io.netty</groupId><artifactId>netty-buffer</artifactId>"
+            + "<version>${netty.version}</version></dependency>\n"
+            + "    <dependency><groupId>com.bom</groupId><artifactId>bom</artifactId><version>3</version>"
+            + "<type>pom</type><scope>import</scope></dependency>\n"
+            + "  </dependencies></dependencyManagement>\n"
+            + "  <dependencies><dependency><groupId>org.slf4j</groupId><artifactId>slf4j-api</artifactId>"
+            + "<version>1.7.30</version></dependency></dependencies>\n"
+            + "</project>";
+
+    private static final String CHILD = "<project>\n"
+            + "  <parent><groupId>com.foo</groupId><artifactId>foo-parent</artifactId><version>2.0</version></parent>\n"
+            + "  <artifactId>foo</artifactId>\n"
+            + "  <properties><own>1.5</own></properties>\n"
+            + "  <dependencyManagement><dependencies>\n"
+            + "    <dependency><groupId>com.other</groupId><artifactId>other-bom</artifactId>"
+            + "<version>${own}</version><type>pom</type><scope>import</scope></dependency>\n"
+            + "  </dependencies></dependencyManagement>\n"
+            + "  <dependencies>\n"
+            + "    <dependency><groupId>io.netty</groupId><artifactId>netty-buffer</artifactId></dependency>\n"
+            + "    <dependency><groupId>${project.groupId}</groupId><artifactId>foo-api</artifactId>"
+            + "<version>${project.version}</version><classifier>linux</classifier></dependency>\n"
+            + "    <dependency><groupId>com.bom</groupId><artifactId>from-bom</artifactId></dependency>\n"
+            + "    <dependency><groupId>junit</groupId><artifactId>junit</artifactId><version>4.13</version>"
+            + "<scope>test</scope></dependency>\n"
+            + "    <dependency><groupId>com.opt</groupId><artifactId>opt</artifactId><version>1</version>"
+            + "<optional>true</optional></dependency>\n"
+            + "    <dependency><groupId>com.rng</groupId><artifactId>rng</artifactId><version>[1.0,2.0)</version>"
+            + "</dependency>\n"
+            + "    <dependency><groupId>com.types</groupId><artifactId>types</artifactId><version>1</version>"
+            + "<type>pom</type><exclusions><exclusion><groupId>x</groupId><artifactId>y</artifactId>"
+            + "</exclusion></exclusions></dependency>\n"
+            + "    <dependency><groupId>com.unknown</groupId><artifactId>unmanaged</artifactId></dependency>\n"
+            + "  </dependencies>\n"
+            + "  <build><plugins><plugin><dependencies><dependency><groupId>plug</groupId>"
+            + "<artifactId>in</artifactId><version>1</version></dependency></dependencies></plugin></plugins></build>\n"
+            + "</project>";
+
+    private static final String BOM = "<project><groupId>com.bom</groupId><artifactId>bom</artifactId>"
+            + "<version>3</version><properties><v>9.9</v></properties>"
+            + "<dependencyManagement><dependencies><dependency><groupId>com.bom</groupId>"
+            + "<artifactId>from-bom</artifactId><version>${v}</version></dependency></dependencies>"
+            + "</dependencyManagement></project>";
+
+    @Test
+    public void testParse() throws IOException {
+        Pom child = parse(CHILD);
+        assertEquals("com.foo", child.groupId);
+        assertEquals("2.0", child.version);
+        assertEquals("jar", child.packaging);
+        assertEquals(path("com/foo/foo-parent/2.0/foo-parent-2.0.pom"), child.parentPath());
+        assertEquals(8, child.dependencies.size());
+        assertEquals(1, child.managed.size());
+        assertEquals(path("com/foo/foo/2.0/foo-2.0.pom"), child.path());
+        assertNull(parse(PARENT).parentPath());
+    }
+
+    @Test
+    public void testImports() throws IOException {
+        Pom child = parse(CHILD);
+        assertEquals(Arrays.asList(path("com/other/other-bom/1.5/other-bom-1.5.pom")),
+                child.importPaths(Collections.emptyList()));
+        assertEquals(Arrays.asList(path("com/bom/bom/3/bom-3.pom")),
+                parse(PARENT).importPaths(Collections.emptyList()));
+    }
+
+    @Test
+    public void testDependencies() throws IOException {
+        Pom child = parse(CHILD);
+        List<Path> expected = new ArrayList<>(Arrays.asList(
+                path("io/netty/netty-buffer/4.1.1/netty-buffer-4.1.1.pom"),
+                path("io/netty/netty-buffer/4.1.1/netty-buffer-4.1.1.jar"),
+                path("com/foo/foo-api/2.0/foo-api-2.0.pom"),
+                path("com/foo/foo-api/2.0/foo-api-2.0-linux.jar"),
+                path("com/bom/from-bom/9.9/from-bom-9.9.pom"),
+                path("com/bom/from-bom/9.9/from-bom-9.9.jar"),
+                path("com/types/types/1/types-1.pom"),
+                // inherited from the parent
+                path("org/slf4j/slf4j-api/1.7.30/slf4j-api-1.7.30.pom"),
+                path("org/slf4j/slf4j-api/1.7.30/slf4j-api-1.7.30.jar")));
+        List<Path> got = child.dependencyPaths(Arrays.asList(parse(PARENT)), Arrays.asList(parse(BOM)));
+        assertEquals(expected.size(), got.size());
+        assertEquals(new HashSet<>(expected), new HashSet<>(got));
+
+        // Without the parent, its properties and managed versions are unknown
+        List<Path> orphaned = child.dependencyPaths(Collections.emptyList(), Collections.emptyList());
+        assertEquals(Arrays.asList(path("com/foo/foo-api/2.0/foo-api-2.0.pom"),
+                path("com/foo/foo-api/2.0/foo-api-2.0-linux.jar"),
+                path("com/types/types/1/types-1.pom")), orphaned);
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotAPom() throws IOException {
+        parse("<html><body>Not found</body></html>");
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotXml() throws IOException {
+        parse("Hello, this is some text");
+    }
+
+    private static Pom parse(String xml) throws IOException {
+        return Pom.parse(new ByteArrayInputStream(xml.getBytes(UTF_8)));
+    }
+
+    private static Path path(String path) {
+        return Path.parse(path);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.tinymavenproxy;
+
+import java.net.http.HttpHeaders;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class RangeResumeTest {
+
+    private static final String LAST_MODIFIED = "Tue, 15 Nov 1994 12:45:26 GMT";
+
+    @Test
+    public void testParseContentRange() {
+        assertArrayEquals(new long[]{100, 199, 200}, RangeResume.parseContentRange("bytes 100-199/200"));
+        assertArrayEquals(new long[]{0, 0, -1}, RangeResume.parseContentRange("Bytes 0-0/*"));
+        assertNull(RangeResume.parseContentRange("bytes */200"));
+        assertNull(RangeResume.parseContentRange("bytes 100-99/200"));
+        assertNull(RangeResume.parseContentRange("bytes 100-200/200"));
+        assertNull(RangeResume.parseContentRange("items 1-2/3"));
+        assertNull(RangeResume.parseContentRange("bytes a-b/c"));
+    }
+
+    @Test
+    public void testValidators() {
+        assertNull(RangeResume.of(headers("content-length", "200")));
+        assertNull("Weak ETags cannot be used with If-Range",
+                RangeResume.of(headers("etag", "W/\"abc\"")));
+
+        RangeResume both = RangeResume.of(headers("etag", "\"abc\"", "last-modified", LAST_MODIFIED,
+                "content-length", "200"));
+        assertNotNull(both);
+        assertEquals(200, both.length());
+        assertEquals("\"abc\"", both.ifRange(true));
+        assertEquals(LAST_MODIFIED, both.ifRange(false));
+
+        RangeResume etagOnly = RangeResume.of(headers("etag", "\"abc\""));
+        assertEquals(-1, etagOnly.length());
+        assertEquals("\"abc\"", etagOnly.ifRange(true));
+        assertNull("ETags mean nothing to another mirror", etagOnly.ifRange(false));
+    }
+
+    @Test
+    public void testCheck() {
+        RangeResume r = RangeResume.of(headers("last-modified", LAST_MODIFIED, "content-length", "200"));
+        assertNull(r.check(206, headers("content-range", "bytes 150-199/200"), 150));
+        assertNotNull("Changed upstream", r.check(200, headers("content-length", "200"), 150));
+        assertNotNull(r.check(206, headers(), 150));
+        assertNotNull(r.check(206, headers("content-range", "bytes 100-199/200"), 150));
+        assertNotNull(r.check(206, headers("content-range", "bytes 150-249/250"), 150));
+        assertNull(r.check(206, headers("content-range", "bytes 150-199/*"), 150));
+    }
+
+    private static HttpHeaders headers(String... keysAndValues) {
+        Map<String, List<String>> map = new LinkedHashMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            map.put(keysAndValues[i], Arrays.asList(keysAndValues[i + 1]));
+        }
+        return HttpHeaders.of(map, (name, value) -> true);
+    }
+}
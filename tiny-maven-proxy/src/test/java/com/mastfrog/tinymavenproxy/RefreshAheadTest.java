@@ -0,0 +1,86 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.tinymavenproxy;
+
+import com.mastfrog.settings.Settings;
+import static com.mastfrog.tinymavenproxy.Config.SETTINGS_KEY_CACHE_TTL;
+import static com.mastfrog.tinymavenproxy.Config.SETTINGS_KEY_INDEX_DIR;
+import com.mastfrog.url.Path;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class RefreshAheadTest {
+
+    private static final Path METADATA = Path.parse("com/foo/foo-bar/maven-metadata.xml");
+    private static final Path RELEASE = Path.parse("com/foo/foo-bar/1.0/foo-bar-1.0.jar");
+
+    @Test
+    public void testOnlyHotPathsRefreshOncePerPeriod() throws IOException {
+        java.nio.file.Path dir = Files.createTempDirectory("RefreshAheadTest");
+        AtomicLong clock = new AtomicLong(1_000_000);
+        Freshness freshness = new Freshness(new Config(Settings.builder()
+                .add(SETTINGS_KEY_INDEX_DIR, System.getProperty("java.io.tmpdir") + "/RefreshAheadTest")
+                .add(SETTINGS_KEY_CACHE_TTL + ".metadata", "100")
+                .build()), dir, "test", clock::get);
+        List<Path> refreshed = new ArrayList<>();
+        RefreshAhead ahead = new RefreshAhead(3, 20, freshness, (path, file) -> refreshed.add(path), clock::get);
+        File file = dir.resolve("maven-metadata.xml").toFile();
+        long expiresAt = clock.get() + 100_000;
+
+        // Hot, but not yet near expiry
+        for (int i = 0; i < 5; i++) {
+            ahead.hit(METADATA, file, expiresAt);
+        }
+        assertEquals(0, refreshed.size());
+
+        // In the last 20% - refreshed once, however many more hits
+        clock.set(expiresAt - 20_000);
+        ahead.hit(METADATA, file, expiresAt);
+        ahead.hit(METADATA, file, expiresAt);
+        assertEquals(1, refreshed.size());
+
+        // Revalidated - the count starts again
+        long next = clock.get() + 100_000;
+        clock.set(next - 1_000);
+        ahead.hit(METADATA, file, next);
+        ahead.hit(METADATA, file, next);
+        assertEquals(1, refreshed.size());
+        ahead.hit(METADATA, file, next);
+        assertEquals(2, refreshed.size());
+
+        // Files which never expire are not tracked
+        ahead.hit(RELEASE, file, Long.MAX_VALUE);
+        assertEquals(1L, ahead.stats().get("tracked"));
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.tinymavenproxy;
+
+import com.google.inject.AbstractModule;
+import com.mastfrog.acteur.annotations.GenericApplicationModule;
+import com.mastfrog.acteur.bunyan.ActeurBunyanModule;
+import com.mastfrog.acteur.util.RequestID;
+import com.mastfrog.giulius.tests.GuiceRunner;
+import com.mastfrog.giulius.tests.TestWith;
+import com.mastfrog.settings.Settings;
+import static com.mastfrog.tinymavenproxy.Config.MAVEN_CACHE_DIR;
+import static com.mastfrog.tinymavenproxy.Config.SETTINGS_KEY_BREAKER_FAILURES;
+import static com.mastfrog.tinymavenproxy.Config.SETTINGS_KEY_BREAKER_PROBE_SECONDS;
+import static com.mastfrog.tinymavenproxy.Config.SETTINGS_KEY_MIRROR_URLS;
+import static com.mastfrog.tinymavenproxy.Config.SETTINGS_KEY_STALE_RETRY_SECONDS;
+import com.mastfrog.tinymavenproxy.DownloaderV2A.Revalidated;
+import com.mastfrog.tinymavenproxy.RevalidationTest.M;
+import com.mastfrog.tinymavenproxy.TempFiles.TempFile;
+import static com.mastfrog.tinymavenproxy.TinyMavenProxy.DOWNLOAD_LOGGER;
+import com.mastfrog.url.Path;
+import com.mastfrog.url.URL;
+import com.mastfrog.util.libversion.VersionInfo;
+import com.mastfrog.util.preconditions.Exceptions;
+import com.sun.net.httpserver.HttpServer;
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import java.io.File;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+@RunWith(GuiceRunner.class)
+@TestWith({M.class, TinyMavenProxy.class})
+public class RevalidationTest {
+
+    private static final Path PATH = Path.parse("com/foo/bar/maven-metadata.xml");
+    private static final AtomicInteger GETS = new AtomicInteger();
+    private static final HttpServer MIRROR = mirror();
+    private static final RequestID.Factory IDS = new RequestID.Factory();
+
+    private static HttpServer mirror() {
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            server.createContext("/", ex -> {
+                if ("GET".equals(ex.getRequestMethod())) {
+                    GETS.incrementAndGet();
+                    ex.sendResponseHeaders(304, -1);
+                } else {
+                    ex.sendResponseHeaders(200, -1);
+                }
+                ex.close();
+            });
+            server.start();
+            return server;
+        } catch (IOException ex) {
+            return Exceptions.chuck(ex);
+        }
+    }
+
+    private static URL mirrorUrl() {
+        return URL.parse("http://127.0.0.1:" + MIRROR.getAddress().getPort() + "/");
+    }
+
+    private static File cached(Config config) throws IOException {
+        java.nio.file.Path file = config.dir.toPath().resolve(PATH.toString());
+        Files.createDirectories(file.getParent());
+        Files.write(file, "<metadata/>".getBytes());
+        return file.toFile();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> revalidations(DownloaderV2A downloader) {
+        return (Map<String, Object>) downloader.stats().get("revalidations");
+    }
+
+    private static void await(DownloaderV2A downloader, String key, int value) throws InterruptedException {
+        for (int i = 0; i < 200 && !Integer.valueOf(value).equals(revalidations(downloader).get(key)); i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(value, revalidations(downloader).get(key));
+    }
+
+    @Test(timeout = 30000)
+    public void testRevalidationWithNoMirrorsIsNotLeft(DownloaderV2A downloader, MirrorBreakers breakers,
+            Config config) throws Exception {
+        File cached = cached(config);
+        breakers.failed(mirrorUrl(), new ConnectException("down"));
+        Receiver first = new Receiver();
+        assertEquals(Revalidated.FAILED, downloader.revalidate(PATH, cached, IDS.next(), first).get());
+        assertEquals(HttpResponseStatus.OK, first.status);
+        assertEquals(0, revalidations(downloader).get("inFlight"));
+
+        // Once the mirror is back, the background retry reaches it
+        int gets = GETS.get();
+        breakers.succeeded(mirrorUrl());
+        await(downloader, "retrying", 0);
+        assertTrue(GETS.get() > gets);
+
+        // And so does the next client to ask
+        gets = GETS.get();
+        Receiver second = new Receiver();
+        assertEquals(Revalidated.CURRENT, downloader.revalidate(PATH, cached, IDS.next(), second)
+                .get(10, TimeUnit.SECONDS));
+        assertEquals(gets + 1, GETS.get());
+        await(downloader, "inFlight", 0);
+    }
+
+    @Test(timeout = 30000)
+    public void testNoMirrorsServesStaleAndRetries(DownloaderV2A downloader, MirrorBreakers breakers,
+            Config config) throws Exception {
+        File cached = cached(config);
+        breakers.failed(mirrorUrl(), new ConnectException("down"));
+        Receiver receiver = new Receiver();
+        assertEquals(Revalidated.FAILED, downloader.revalidate(PATH, cached, IDS.next(), receiver).get());
+        assertEquals(HttpResponseStatus.OK, receiver.status);
+        assertEquals(Revalidated.FAILED.warning, receiver.headers.get("Warning"));
+        assertEquals(1, revalidations(downloader).get("retrying"));
+        await(downloader, "inFlight", 0);
+
+        int gets = GETS.get();
+        breakers.succeeded(mirrorUrl());
+        await(downloader, "retrying", 0);
+        assertTrue(GETS.get() > gets);
+        Receiver after = new Receiver();
+        assertEquals(Revalidated.CURRENT, downloader.revalidate(PATH, cached, IDS.next(), after)
+                .get(10, TimeUnit.SECONDS));
+        assertTrue(after.done.await(10, TimeUnit.SECONDS));
+        assertNull(after.headers.get("Warning"));
+    }
+
+    @Test(timeout = 30000)
+    public void testRefreshWithNoMirrorsIsNotLeft(DownloaderV2A downloader, MirrorBreakers breakers,
+            Config config) throws Exception {
+        File cached = cached(config);
+        breakers.failed(mirrorUrl(), new ConnectException("down"));
+        assertEquals(Revalidated.FAILED, downloader.refresh(PATH, cached).get());
+        await(downloader, "inFlight", 0);
+
+        breakers.succeeded(mirrorUrl());
+        await(downloader, "retrying", 0);
+        int gets = GETS.get();
+        assertEquals(Revalidated.CURRENT, downloader.refresh(PATH, cached).get(10, TimeUnit.SECONDS));
+        assertEquals(gets + 1, GETS.get());
+        await(downloader, "inFlight", 0);
+    }
+
+    static final class Receiver implements DownloadReceiver {
+
+        volatile HttpResponseStatus status;
+        volatile HttpHeaders headers;
+        final CountDownLatch done = new CountDownLatch(1);
+
+        @Override
+        public void receive(HttpResponseStatus status, ByteBuf buf, HttpHeaders headers) {
+            this.status = status;
+            done.countDown();
+            buf.release();
+        }
+
+        @Override
+        public void receive(HttpResponseStatus status, File file, HttpHeaders headers) {
+            this.headers = headers;
+            this.status = status;
+            done.countDown();
+        }
+
+        @Override
+        public void streaming(HttpResponseStatus status, TempFile file, HttpHeaders headers) {
+            this.status = status;
+            done.countDown();
+        }
+
+        @Override
+        public void probed(HttpResponseStatus status, HttpHeaders headers) {
+            this.status = status;
+            done.countDown();
+        }
+
+        @Override
+        public void failed(HttpResponseStatus status) {
+            this.status = status;
+            done.countDown();
+        }
+
+        @Override
+        public void failed(HttpResponseStatus status, String msg) {
+            this.status = status;
+            done.countDown();
+        }
+    }
+
+    static class M extends AbstractModule {
+
+        @Override
+        protected void configure() {
+            try {
+                java.nio.file.Path cacheDir = Files.createTempDirectory("RevalidationTest");
+                install(new ActeurBunyanModule(true).bindLogger(DOWNLOAD_LOGGER).bindLogger("startup"));
+                Settings settings = TinyMavenProxy.defaultSettings()
+                        .add(SETTINGS_KEY_MIRROR_URLS, mirrorUrl().toString())
+                        .add(SETTINGS_KEY_BREAKER_FAILURES, 1)
+                        .add(SETTINGS_KEY_BREAKER_PROBE_SECONDS, 600)
+                        .add(SETTINGS_KEY_STALE_RETRY_SECONDS, 1)
+                        .add(MAVEN_CACHE_DIR, cacheDir.toString())
+                        .build();
+                bind(Config.class).toInstance(new Config(settings));
+                bind(VersionInfo.class).toInstance(VersionInfo.find(TinyMavenProxy.class,
+                        "com.mastfrog", "tiny-maven-proxy"));
+                install(new GenericApplicationModule(settings));
+            } catch (Exception ex) {
+                Exceptions.chuck(ex);
+            }
+        }
+    }
+}
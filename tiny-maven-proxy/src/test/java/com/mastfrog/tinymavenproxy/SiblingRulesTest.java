@@ -0,0 +1,71 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.tinymavenproxy;
+
+import com.mastfrog.settings.Settings;
+import static com.mastfrog.tinymavenproxy.Config.SETTINGS_KEY_INDEX_DIR;
+import static com.mastfrog.tinymavenproxy.Config.SETTINGS_KEY_SIBLINGS;
+import com.mastfrog.url.Path;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class SiblingRulesTest {
+
+    private static final Path POM = Path.parse("com/foo/foo-bar/1.0/foo-bar-1.0.pom");
+
+    @Test
+    public void testSuffixRule() {
+        assertEquals(Arrays.asList(Path.parse("com/foo/foo-bar/1.0/foo-bar-1.0.jar"),
+                Path.parse("com/foo/foo-bar/1.0/foo-bar-1.0-sources.jar")),
+                SiblingRules.suffixes(Arrays.asList(".jar", "-sources.jar")).siblings(POM, null));
+        assertEquals(Collections.emptyList(), SiblingRules.suffixes(Arrays.asList(".jar"))
+                .siblings(Path.parse("com/foo/foo-bar/1.0/foo-bar-1.0.jar"), null));
+    }
+
+    @Test
+    public void testDefaultsAndOverrides() throws IOException {
+        SiblingRules rules = new SiblingRules(new Config(Settings.builder()
+                .add(SETTINGS_KEY_INDEX_DIR, System.getProperty("java.io.tmpdir") + "/SiblingRulesTest")
+                .add(SETTINGS_KEY_SIBLINGS + ".aar", ".aar, .jar")
+                .add(SETTINGS_KEY_SIBLINGS + ".bundle", "")
+                .build()));
+        assertNotNull(rules.rule("jar"));
+        assertEquals(Arrays.asList(Path.parse("com/foo/foo-bar/1.0/foo-bar-1.0.jar")),
+                rules.rule("maven-plugin").siblings(POM, null));
+        assertEquals(Arrays.asList(Path.parse("com/foo/foo-bar/1.0/foo-bar-1.0.aar"),
+                Path.parse("com/foo/foo-bar/1.0/foo-bar-1.0.jar")),
+                rules.rule("aar").siblings(POM, null));
+        assertNull(rules.rule("bundle"));
+        assertNull(rules.rule("pom"));
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2022 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.tinymavenproxy;
+
+import com.mastfrog.tinymavenproxy.TempFiles.TempFile;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.nio.ByteBuffer;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class TempFilesTest {
+
+    private Path dir;
+    private TempFile file;
+
+    @Before
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("TempFilesTest");
+        file = new TempFile(dir.resolve("download"));
+    }
+
+    @After
+    public void teardown() throws Exception {
+        file.close();
+        Files.deleteIfExists(dir.resolve("committed"));
+        Files.deleteIfExists(dir);
+    }
+
+    private CompletableFuture<Long> write(ByteBuffer... buffers) {
+        CompletableFuture<Long> result = new CompletableFuture<>();
+        file.write(Arrays.asList(buffers), (bytes, thrown) -> {
+            if (thrown != null) {
+                result.completeExceptionally(thrown);
+            } else {
+                result.complete(bytes);
+            }
+        });
+        return result;
+    }
+
+    private static ByteBuffer buf(String s) {
+        return ByteBuffer.wrap(s.getBytes(UTF_8));
+    }
+
+    @Test
+    public void testBatchesAreWrittenInOrder() throws Exception {
+        AtomicBoolean available = new AtomicBoolean();
+        file.whenAvailable(5, () -> available.set(true));
+        ByteBuffer partlyRead = buf("xxjkl");
+        partlyRead.position(2);
+        assertEquals(9L, (long) write(buf("abc"), buf("def"), partlyRead).get());
+        assertEquals(9, file.written());
+        assertTrue(available.get());
+        assertEquals(5L, (long) write(buf("mnopq"), buf("")).get());
+        assertEquals(14, file.written());
+        Path committed = dir.resolve("committed");
+        assertTrue(file.close(committed));
+        assertEquals("abcdefjklmnopq", new String(Files.readAllBytes(committed), UTF_8));
+    }
+
+    @Test
+    public void testRangesCountAsWrittenOnceContiguous() throws Exception {
+        file.preallocate(12);
+        TempFile.RangeWriter last = file.rangeWriter(8);
+        TempFile.RangeWriter middle = file.rangeWriter(4);
+        CompletableFuture<Long> lastWritten = new CompletableFuture<>();
+        last.write(Arrays.asList(buf("ij"), buf("kl")), (bytes, thrown) -> lastWritten.complete(bytes));
+        assertEquals(4L, (long) lastWritten.get());
+        file.rangeWritten(8, 12);
+        assertEquals(0, file.written());
+        assertEquals(4L, (long) write(buf("abcd")).get());
+        assertEquals(4, file.written());
+        AtomicBoolean available = new AtomicBoolean();
+        file.whenAvailable(8, () -> available.set(true));
+        CompletableFuture<Long> middleWritten = new CompletableFuture<>();
+        middle.write(Arrays.asList(buf("efgh")), (bytes, thrown) -> middleWritten.complete(bytes));
+        assertEquals(4L, (long) middleWritten.get());
+        assertEquals(4, file.written());
+        file.rangeWritten(4, 8);
+        assertEquals(12, file.written());
+        assertTrue(available.get());
+        Path committed = dir.resolve("committed");
+        assertTrue(file.close(committed));
+        assertEquals("abcdefghijkl", new String(Files.readAllBytes(committed), UTF_8));
+    }
+
+    @Test
+    public void testWriteAfterCloseFails() throws Exception {
+        write(buf("abc")).get();
+        file.close();
+        CompletableFuture<Long> fut = write(buf("def"));
+        try {
+            fut.get();
+            fail("Should have failed");
+        } catch (ExecutionException ex) {
+            // expected
+        }
+        assertEquals(3, file.written());
+        assertFalse(Files.exists(dir.resolve("download")));
+    }
+
+    @Test
+    public void testInMemoryFileIsWrittenOnlyWhenCommitted() throws Exception {
+        ByteBuf buffer = Unpooled.buffer(8);
+        TempFile mem = new TempFile(dir.resolve("memory"), buffer);
+        assertTrue(mem.isInMemory());
+        CompletableFuture<Long> written = new CompletableFuture<>();
+        mem.write(Arrays.asList(buf("abcd"), buf("efgh")), (bytes, thrown) -> written.complete(bytes));
+        assertEquals(8L, (long) written.get());
+        assertEquals(8, mem.written());
+        assertFalse(Files.exists(dir.resolve("memory")));
+        Optional<ByteBuf> content = mem.content();
+        assertTrue(content.isPresent());
+        assertEquals("abcdefgh", content.get().toString(UTF_8));
+        content.get().release();
+        Path committed = dir.resolve("committed");
+        assertTrue(mem.close(committed));
+        assertEquals("abcdefgh", new String(Files.readAllBytes(committed), UTF_8));
+        assertFalse(mem.content().isPresent());
+        assertEquals(0, buffer.refCnt());
+    }
+}